@@ -135,6 +135,8 @@ public class LdapArchiveConfiguration extends LdapHL7Configuration {
                 arcDev.getFuzzyAlgorithmClass());
         storeNotDef(attrs, "dcmConfigurationStaleTimeout",
                 arcDev.getConfigurationStaleTimeout(), 0);
+        storeNotDef(attrs, "dcmDeflateEncodedAttributes",
+                arcDev.isDeflateEncodedAttributes(), false);
         return attrs;
     }
 
@@ -253,6 +255,23 @@ public class LdapArchiveConfiguration extends LdapHL7Configuration {
         storeNotDef(attrs, "dcmReturnOtherPatientNames", arcAE.isReturnOtherPatientNames(), false);
         storeNotNull(attrs, "hl7PIXConsumerApplication", arcAE.getLocalPIXConsumerApplication());
         storeNotNull(attrs, "hl7PIXManagerApplication", arcAE.getRemotePIXManagerApplication());
+        storeNotDef(attrs, "dcmGroupCommitSize",
+                arcAE.getGroupCommitSize(), 1);
+        storeNotDef(attrs, "dcmGroupCommitInterval",
+                arcAE.getGroupCommitInterval(), 0);
+        storeNotDef(attrs, "dcmDerivedAttributesMaxStaleness",
+                arcAE.getDerivedAttributesMaxStaleness(), 0);
+        storeNotDef(attrs, "dcmIngestQueueSize",
+                arcAE.getIngestQueueSize(), 0);
+        storeNotDef(attrs, "dcmIngestResponseOnFileWritten",
+                arcAE.isIngestResponseOnFileWritten(), false);
+        storeNotDef(attrs, "dcmContainerMaxObjectSize",
+                arcAE.getContainerMaxObjectSize(), 0);
+        storeNotEmpty(attrs, "dcmQueryMaxNumberOfMatches",
+                arcAE.getQueryMaxNumberOfMatches());
+        storeNotDef(attrs, "dcmQueryPageSize", arcAE.getQueryPageSize(), 0);
+        storeNotDef(attrs, "dcmQueryPrefetchSize",
+                arcAE.getQueryPrefetchSize(), 0);
         return attrs;
     }
 
@@ -277,6 +296,8 @@ public class LdapArchiveConfiguration extends LdapHL7Configuration {
         arcdev.setFuzzyAlgorithmClass(stringValue(attrs.get("dcmFuzzyAlgorithmClass")));
         arcdev.setConfigurationStaleTimeout(
                 intValue(attrs.get("dcmConfigurationStaleTimeout"), 0));
+        arcdev.setDeflateEncodedAttributes(
+                booleanValue(attrs.get("dcmDeflateEncodedAttributes"), false));
     }
 
     @Override
@@ -368,6 +389,23 @@ public class LdapArchiveConfiguration extends LdapHL7Configuration {
                booleanValue(attrs.get("dcmReturnOtherPatientNames"), false));
        arcae.setLocalPIXConsumerApplication(stringValue(attrs.get("hl7PIXConsumerApplication")));
        arcae.setRemotePIXManagerApplication(stringValue(attrs.get("hl7PIXManagerApplication")));
+       arcae.setGroupCommitSize(
+               intValue(attrs.get("dcmGroupCommitSize"), 1));
+       arcae.setGroupCommitInterval(
+               intValue(attrs.get("dcmGroupCommitInterval"), 0));
+       arcae.setDerivedAttributesMaxStaleness(
+               intValue(attrs.get("dcmDerivedAttributesMaxStaleness"), 0));
+       arcae.setIngestQueueSize(
+               intValue(attrs.get("dcmIngestQueueSize"), 0));
+       arcae.setIngestResponseOnFileWritten(
+               booleanValue(attrs.get("dcmIngestResponseOnFileWritten"), false));
+       arcae.setContainerMaxObjectSize(
+               intValue(attrs.get("dcmContainerMaxObjectSize"), 0));
+       arcae.setQueryMaxNumberOfMatches(
+               stringArray(attrs.get("dcmQueryMaxNumberOfMatches")));
+       arcae.setQueryPageSize(intValue(attrs.get("dcmQueryPageSize"), 0));
+       arcae.setQueryPrefetchSize(
+               intValue(attrs.get("dcmQueryPrefetchSize"), 0));
     }
 
     @Override
@@ -453,6 +491,10 @@ public class LdapArchiveConfiguration extends LdapHL7Configuration {
                 aa.getConfigurationStaleTimeout(),
                 bb.getConfigurationStaleTimeout(),
                 0);
+        storeDiff(mods, "dcmDeflateEncodedAttributes",
+                aa.isDeflateEncodedAttributes(),
+                bb.isDeflateEncodedAttributes(),
+                false);
         return mods;
     }
 
@@ -567,6 +609,41 @@ public class LdapArchiveConfiguration extends LdapHL7Configuration {
         storeDiff(mods, "hl7PIXManagerApplication",
                 aa.getRemotePIXManagerApplication(),
                 bb.getRemotePIXManagerApplication());
+        storeDiff(mods, "dcmGroupCommitSize",
+                aa.getGroupCommitSize(),
+                bb.getGroupCommitSize(),
+                1);
+        storeDiff(mods, "dcmGroupCommitInterval",
+                aa.getGroupCommitInterval(),
+                bb.getGroupCommitInterval(),
+                0);
+        storeDiff(mods, "dcmDerivedAttributesMaxStaleness",
+                aa.getDerivedAttributesMaxStaleness(),
+                bb.getDerivedAttributesMaxStaleness(),
+                0);
+        storeDiff(mods, "dcmIngestQueueSize",
+                aa.getIngestQueueSize(),
+                bb.getIngestQueueSize(),
+                0);
+        storeDiff(mods, "dcmIngestResponseOnFileWritten",
+                aa.isIngestResponseOnFileWritten(),
+                bb.isIngestResponseOnFileWritten(),
+                false);
+        storeDiff(mods, "dcmContainerMaxObjectSize",
+                aa.getContainerMaxObjectSize(),
+                bb.getContainerMaxObjectSize(),
+                0);
+        storeDiff(mods, "dcmQueryMaxNumberOfMatches",
+                aa.getQueryMaxNumberOfMatches(),
+                bb.getQueryMaxNumberOfMatches());
+        storeDiff(mods, "dcmQueryPageSize",
+                aa.getQueryPageSize(),
+                bb.getQueryPageSize(),
+                0);
+        storeDiff(mods, "dcmQueryPrefetchSize",
+                aa.getQueryPrefetchSize(),
+                bb.getQueryPrefetchSize(),
+                0);
         return mods;
     }
 
@@ -84,6 +84,8 @@ public class PreferencesArchiveConfiguration extends PreferencesHL7Configuration
                 arcDev.getFuzzyAlgorithmClass());
         storeNotDef(prefs, "dcmConfigurationStaleTimeout",
                 arcDev.getConfigurationStaleTimeout(), 0);
+        storeNotDef(prefs, "dcmDeflateEncodedAttributes",
+                arcDev.isDeflateEncodedAttributes(), false);
     }
 
     @Override
@@ -195,6 +197,23 @@ public class PreferencesArchiveConfiguration extends PreferencesHL7Configuration
         storeNotDef(prefs, "dcmReturnOtherPatientNames", arcAE.isReturnOtherPatientNames(), false);
         storeNotNull(prefs, "hl7PIXConsumerApplication", arcAE.getLocalPIXConsumerApplication());
         storeNotNull(prefs, "hl7PIXManagerApplication", arcAE.getRemotePIXManagerApplication());
+        storeNotDef(prefs, "dcmGroupCommitSize",
+                arcAE.getGroupCommitSize(), 1);
+        storeNotDef(prefs, "dcmGroupCommitInterval",
+                arcAE.getGroupCommitInterval(), 0);
+        storeNotDef(prefs, "dcmDerivedAttributesMaxStaleness",
+                arcAE.getDerivedAttributesMaxStaleness(), 0);
+        storeNotDef(prefs, "dcmIngestQueueSize",
+                arcAE.getIngestQueueSize(), 0);
+        storeNotDef(prefs, "dcmIngestResponseOnFileWritten",
+                arcAE.isIngestResponseOnFileWritten(), false);
+        storeNotDef(prefs, "dcmContainerMaxObjectSize",
+                arcAE.getContainerMaxObjectSize(), 0);
+        storeNotEmpty(prefs, "dcmQueryMaxNumberOfMatches",
+                arcAE.getQueryMaxNumberOfMatches());
+        storeNotDef(prefs, "dcmQueryPageSize", arcAE.getQueryPageSize(), 0);
+        storeNotDef(prefs, "dcmQueryPrefetchSize",
+                arcAE.getQueryPrefetchSize(), 0);
     }
 
     @Override
@@ -244,6 +263,8 @@ public class PreferencesArchiveConfiguration extends PreferencesHL7Configuration
         arcdev.setFuzzyAlgorithmClass(prefs.get("dcmFuzzyAlgorithmClass", null));
         arcdev.setConfigurationStaleTimeout(
                 prefs.getInt("dcmConfigurationStaleTimeout", 0));
+        arcdev.setDeflateEncodedAttributes(
+                prefs.getBoolean("dcmDeflateEncodedAttributes", false));
     }
 
     @Override
@@ -302,6 +323,22 @@ public class PreferencesArchiveConfiguration extends PreferencesHL7Configuration
                 prefs.getBoolean("dcmReturnOtherPatientNames", false));
         arcae.setLocalPIXConsumerApplication(prefs.get("hl7PIXConsumerApplication", null));
         arcae.setRemotePIXManagerApplication(prefs.get("hl7PIXManagerApplication", null));
+        arcae.setGroupCommitSize(
+                prefs.getInt("dcmGroupCommitSize", 1));
+        arcae.setGroupCommitInterval(
+                prefs.getInt("dcmGroupCommitInterval", 0));
+        arcae.setDerivedAttributesMaxStaleness(
+                prefs.getInt("dcmDerivedAttributesMaxStaleness", 0));
+        arcae.setIngestQueueSize(
+                prefs.getInt("dcmIngestQueueSize", 0));
+        arcae.setIngestResponseOnFileWritten(
+                prefs.getBoolean("dcmIngestResponseOnFileWritten", false));
+        arcae.setContainerMaxObjectSize(
+                prefs.getInt("dcmContainerMaxObjectSize", 0));
+        arcae.setQueryMaxNumberOfMatches(
+                stringArray(prefs, "dcmQueryMaxNumberOfMatches"));
+        arcae.setQueryPageSize(prefs.getInt("dcmQueryPageSize", 0));
+        arcae.setQueryPrefetchSize(prefs.getInt("dcmQueryPrefetchSize", 0));
     }
 
     @Override
@@ -403,6 +440,10 @@ public class PreferencesArchiveConfiguration extends PreferencesHL7Configuration
                 aa.getConfigurationStaleTimeout(),
                 bb.getConfigurationStaleTimeout(),
                 0);
+        storeDiff(prefs, "dcmDeflateEncodedAttributes",
+                aa.isDeflateEncodedAttributes(),
+                bb.isDeflateEncodedAttributes(),
+                false);
     }
 
     @Override
@@ -516,6 +557,41 @@ public class PreferencesArchiveConfiguration extends PreferencesHL7Configuration
          storeDiff(prefs, "hl7PIXManagerApplication",
                  aa.getRemotePIXManagerApplication(),
                  bb.getRemotePIXManagerApplication());
+         storeDiff(prefs, "dcmGroupCommitSize",
+                 aa.getGroupCommitSize(),
+                 bb.getGroupCommitSize(),
+                 1);
+         storeDiff(prefs, "dcmGroupCommitInterval",
+                 aa.getGroupCommitInterval(),
+                 bb.getGroupCommitInterval(),
+                 0);
+         storeDiff(prefs, "dcmDerivedAttributesMaxStaleness",
+                 aa.getDerivedAttributesMaxStaleness(),
+                 bb.getDerivedAttributesMaxStaleness(),
+                 0);
+         storeDiff(prefs, "dcmIngestQueueSize",
+                 aa.getIngestQueueSize(),
+                 bb.getIngestQueueSize(),
+                 0);
+         storeDiff(prefs, "dcmIngestResponseOnFileWritten",
+                 aa.isIngestResponseOnFileWritten(),
+                 bb.isIngestResponseOnFileWritten(),
+                 false);
+         storeDiff(prefs, "dcmContainerMaxObjectSize",
+                 aa.getContainerMaxObjectSize(),
+                 bb.getContainerMaxObjectSize(),
+                 0);
+         storeDiff(prefs, "dcmQueryMaxNumberOfMatches",
+                 aa.getQueryMaxNumberOfMatches(),
+                 bb.getQueryMaxNumberOfMatches());
+         storeDiff(prefs, "dcmQueryPageSize",
+                 aa.getQueryPageSize(),
+                 bb.getQueryPageSize(),
+                 0);
+         storeDiff(prefs, "dcmQueryPrefetchSize",
+                 aa.getQueryPrefetchSize(),
+                 bb.getQueryPrefetchSize(),
+                 0);
     }
 
     @Override
@@ -38,16 +38,19 @@
 
 package org.dcm4chee.archive.net;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
-import javax.xml.transform.Templates;
 import javax.xml.transform.TransformerConfigurationException;
 
 import org.dcm4che.conf.api.AttributeCoercion;
 import org.dcm4che.conf.api.AttributeCoercions;
+import org.dcm4che.data.Attributes;
 import org.dcm4che.net.ApplicationEntity;
 import org.dcm4che.net.Dimse;
 import org.dcm4che.net.QueryOption;
@@ -70,6 +73,11 @@ public class ArchiveApplicationEntity extends ApplicationEntity {
 
     public static final int DEF_RETRY_INTERVAL = 60;
 
+    private static final Coercion NO_COERCION = new Coercion() {
+        @Override
+        public void coerce(Attributes attrs, Attributes modified) {}
+    };
+
     private String modifyingSystem;
     private String[] retrieveAETs;
     private String externalRetrieveAET;
@@ -95,12 +103,22 @@ public class ArchiveApplicationEntity extends ApplicationEntity {
     private final List<StoreDuplicate> storeDuplicates  = new ArrayList<StoreDuplicate>();
     private final List<RejectionNote> rejectionNotes = new ArrayList<RejectionNote>();
     private final AttributeCoercions attributeCoercions = new AttributeCoercions();
+    private transient ConcurrentHashMap<List<Object>,Coercion> coercionCache;
     private boolean showEmptyStudy;
     private boolean showEmptySeries;
     private boolean returnOtherPatientIDs;
     private boolean returnOtherPatientNames;
     private String pixManagerApplication;
     private String pixConsumerApplication;
+    private int groupCommitSize = 1;
+    private int groupCommitInterval;
+    private int derivedAttributesMaxStaleness;
+    private int ingestQueueSize;
+    private boolean ingestResponseOnFileWritten;
+    private int containerMaxObjectSize;
+    private String[] queryMaxNumberOfMatches = {};
+    private int queryPageSize;
+    private int queryPrefetchSize;
 
     public ArchiveApplicationEntity(String aeTitle) {
         super(aeTitle);
@@ -121,17 +139,24 @@ public class ArchiveApplicationEntity extends ApplicationEntity {
 
     public void addAttributeCoercion(AttributeCoercion ac) {
         attributeCoercions.add(ac);
+        clearCoercionCache();
     }
 
     public void setAttributeCoercions(AttributeCoercions acs) {
         attributeCoercions.clear();
         attributeCoercions.add(acs);
+        clearCoercionCache();
     }
 
     public boolean removeAttributeCoercion(AttributeCoercion ac) {
+        clearCoercionCache();
         return attributeCoercions.remove(ac);
     }
 
+    public void clearCoercionCache() {
+        coercionCache = null;
+    }
+
     public List<StoreDuplicate> getStoreDuplicates() {
         return storeDuplicates;
     }
@@ -211,10 +236,22 @@ public class ArchiveApplicationEntity extends ApplicationEntity {
         this.storageFilePathFormat = storageFilePathFormat;
     }
 
-    public Templates getAttributeCoercionTemplates(String cuid, Dimse dimse,
-            TransferCapability.Role role, String aet) throws TransformerConfigurationException {
-        AttributeCoercion ac = getAttributeCoercion(cuid, dimse, role, aet);
-        return ac != null ? getArchiveDevice().getTemplates(ac.getURI()) : null;
+    public Coercion getCoercion(String cuid, Dimse dimse,
+            TransferCapability.Role role, String aet)
+            throws TransformerConfigurationException, IOException {
+        ConcurrentHashMap<List<Object>,Coercion> cache = coercionCache;
+        if (cache == null)
+            coercionCache = cache = new ConcurrentHashMap<List<Object>,Coercion>();
+        List<Object> key = Arrays.<Object>asList(cuid, dimse, role, aet);
+        Coercion coercion = cache.get(key);
+        if (coercion == null) {
+            AttributeCoercion ac = getAttributeCoercion(cuid, dimse, role, aet);
+            coercion = ac != null
+                    ? getArchiveDevice().getCoercion(ac.getURI())
+                    : NO_COERCION;
+            cache.put(key, coercion);
+        }
+        return coercion != NO_COERCION ? coercion : null;
     }
 
     public boolean isStoreOriginalAttributes() {
@@ -414,6 +451,109 @@ public class ArchiveApplicationEntity extends ApplicationEntity {
         this.pixConsumerApplication = appName;
     }
 
+    public int getGroupCommitSize() {
+        return groupCommitSize;
+    }
+
+    public void setGroupCommitSize(int groupCommitSize) {
+        this.groupCommitSize = groupCommitSize;
+    }
+
+    public int getGroupCommitInterval() {
+        return groupCommitInterval;
+    }
+
+    public void setGroupCommitInterval(int groupCommitInterval) {
+        this.groupCommitInterval = groupCommitInterval;
+    }
+
+    public int getDerivedAttributesMaxStaleness() {
+        return derivedAttributesMaxStaleness;
+    }
+
+    public void setDerivedAttributesMaxStaleness(int maxStaleness) {
+        this.derivedAttributesMaxStaleness = maxStaleness;
+    }
+
+    public int getIngestQueueSize() {
+        return ingestQueueSize;
+    }
+
+    public void setIngestQueueSize(int ingestQueueSize) {
+        this.ingestQueueSize = ingestQueueSize;
+    }
+
+    public boolean isIngestResponseOnFileWritten() {
+        return ingestResponseOnFileWritten;
+    }
+
+    public void setIngestResponseOnFileWritten(boolean ingestResponseOnFileWritten) {
+        this.ingestResponseOnFileWritten = ingestResponseOnFileWritten;
+    }
+
+    public int getContainerMaxObjectSize() {
+        return containerMaxObjectSize;
+    }
+
+    public void setContainerMaxObjectSize(int containerMaxObjectSize) {
+        this.containerMaxObjectSize = containerMaxObjectSize;
+    }
+
+    public String[] getQueryMaxNumberOfMatches() {
+        return queryMaxNumberOfMatches;
+    }
+
+    /**
+     * Sets the maximal number of C-FIND matches. Values prefixed by
+     * {@code <level>:} only apply to queries on that Query/Retrieve Level.
+     * 
+     * @param queryMaxNumberOfMatches
+     *            values of format {@code [<level>:]<number>}, e.g.
+     *            {@code 2000} and {@code IMAGE:10000}
+     */
+    public void setQueryMaxNumberOfMatches(String... queryMaxNumberOfMatches) {
+        for (String s : queryMaxNumberOfMatches)
+            try {
+                Integer.parseInt(s.substring(s.indexOf(':') + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(s);
+            }
+        this.queryMaxNumberOfMatches = queryMaxNumberOfMatches;
+    }
+
+    /**
+     * Returns the maximal number of C-FIND matches on the specified
+     * Query/Retrieve Level, or 0, if the number of matches is not limited.
+     */
+    public int getQueryMaxNumberOfMatches(String level) {
+        int max = 0;
+        for (String s : queryMaxNumberOfMatches) {
+            int index = s.indexOf(':');
+            if (index < 0) {
+                if (max == 0)
+                    max = Integer.parseInt(s);
+            } else if (s.substring(0, index).equals(level))
+                return Integer.parseInt(s.substring(index + 1));
+        }
+        return max;
+    }
+
+    public int getQueryPageSize() {
+        return queryPageSize;
+    }
+
+    public void setQueryPageSize(int queryPageSize) {
+        this.queryPageSize = queryPageSize;
+    }
+
+    public int getQueryPrefetchSize() {
+        return queryPrefetchSize;
+    }
+
+    public void setQueryPrefetchSize(int queryPrefetchSize) {
+        this.queryPrefetchSize = queryPrefetchSize;
+    }
+
     public StoreParam getStoreParam() {
         StoreParam storeParam = getArchiveDevice().getStoreParam();
         storeParam.setStoreOriginalAttributes(storeOriginalAttributes);
@@ -422,6 +562,8 @@ public class ArchiveApplicationEntity extends ApplicationEntity {
         storeParam.setExternalRetrieveAET(externalRetrieveAET);
         storeParam.setStoreDuplicates(storeDuplicates);
         storeParam.setRejectionNotes(rejectionNotes);
+        storeParam.setGroupCommitSize(groupCommitSize);
+        storeParam.setDerivedAttributesMaxStaleness(derivedAttributesMaxStaleness);
         return storeParam;
     }
 
@@ -445,6 +587,7 @@ public class ArchiveApplicationEntity extends ApplicationEntity {
         queryParam.setShowEmptySeries(showEmptySeries);
         queryParam.setShowEmptyStudy(showEmptyStudy);
         queryParam.setReturnOtherPatientIDs(returnOtherPatientIDs);
+        queryParam.setPageSize(queryPageSize);
         return queryParam;
     }
 
@@ -481,6 +624,15 @@ public class ArchiveApplicationEntity extends ApplicationEntity {
         setReturnOtherPatientNames(arcae.returnOtherPatientNames);
         setRemotePIXManagerApplication(arcae.pixManagerApplication);
         setLocalPIXConsumerApplication(arcae.pixConsumerApplication);
+        setGroupCommitSize(arcae.groupCommitSize);
+        setGroupCommitInterval(arcae.groupCommitInterval);
+        setDerivedAttributesMaxStaleness(arcae.derivedAttributesMaxStaleness);
+        setIngestQueueSize(arcae.ingestQueueSize);
+        setIngestResponseOnFileWritten(arcae.ingestResponseOnFileWritten);
+        setContainerMaxObjectSize(arcae.containerMaxObjectSize);
+        setQueryMaxNumberOfMatches(arcae.queryMaxNumberOfMatches);
+        setQueryPageSize(arcae.queryPageSize);
+        setQueryPrefetchSize(arcae.queryPrefetchSize);
         setStoreDuplicates(arcae.getStoreDuplicates());
         setRejectionNotes(arcae.getRejectionNotes());
         setAttributeCoercions(arcae.getAttributeCoercions());
@@ -40,19 +40,24 @@ package org.dcm4chee.archive.net;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.transform.Templates;
 import javax.xml.transform.TransformerConfigurationException;
 
+import org.dcm4che.conf.api.AttributeCoercion;
 import org.dcm4che.conf.api.ConfigurationException;
 import org.dcm4che.conf.api.DicomConfiguration;
 import org.dcm4che.io.TemplatesCache;
+import org.dcm4che.net.ApplicationEntity;
 import org.dcm4che.net.Device;
 import org.dcm4che.net.hl7.HL7Device;
 import org.dcm4che.soundex.FuzzyStr;
 import org.dcm4chee.archive.ejb.store.Entity;
 import org.dcm4chee.archive.ejb.store.StoreParam;
 import org.dcm4chee.archive.persistence.AttributeFilter;
+import org.dcm4chee.archive.persistence.Utils;
 
 
 /**
@@ -66,9 +71,11 @@ public class ArchiveDevice extends HL7Device implements ArchiveDeviceMBean {
     private final AttributeFilter[] attributeFilters =
             new AttributeFilter[Entity.values().length];
     private int configurationStaleTimeout;
+    private boolean deflateEncodedAttributes;
 
     private transient FuzzyStr fuzzyStr;
     private transient TemplatesCache templatesCache;
+    private transient ConcurrentHashMap<String,CoercionRules> coercionRulesCache;
     private transient DicomConfiguration configuration;
 
     public ArchiveDevice(String name) {
@@ -88,7 +95,14 @@ public class ArchiveDevice extends HL7Device implements ArchiveDeviceMBean {
         DicomConfiguration tmp = configuration;
         if (tmp == null)
             throw new IllegalStateException("configuration not initalized");
-        reconfigure(tmp.findDevice(getDeviceName()));
+        Device from = tmp.findDevice(getDeviceName());
+        // fail before applying a configuration with invalid coercion rules
+        TemplatesCache templates = new TemplatesCache();
+        ConcurrentHashMap<String,CoercionRules> rulesCache =
+                ((ArchiveDevice) from).compileCoercionRules(templates);
+        reconfigure(from);
+        coercionRulesCache = rulesCache;
+        templatesCache = templates;
         rebindConnections();
     }
 
@@ -127,10 +141,63 @@ public class ArchiveDevice extends HL7Device implements ArchiveDeviceMBean {
         this.configurationStaleTimeout = configurationStaleTimeout;
     }
 
+    public boolean isDeflateEncodedAttributes() {
+        return deflateEncodedAttributes;
+    }
+
+    public void setDeflateEncodedAttributes(boolean deflateEncodedAttributes) {
+        this.deflateEncodedAttributes = deflateEncodedAttributes;
+    }
+
     public void clearTemplatesCache() {
         TemplatesCache cache = templatesCache;
         if (cache != null)
             cache.clear();
+        Map<String,CoercionRules> rulesCache = coercionRulesCache;
+        if (rulesCache != null)
+            rulesCache.clear();
+        for (ApplicationEntity ae : getApplicationEntities())
+            if (ae instanceof ArchiveApplicationEntity)
+                ((ArchiveApplicationEntity) ae).clearCoercionCache();
+    }
+
+    /**
+     * Compiles the coercion rule files and XSLT stylesheets referenced by
+     * Attribute Coercions of all Archive AEs, so invalid rules and
+     * stylesheets are detected on loading the configuration and not on
+     * receipt of the first object.
+     */
+    public void loadCoercionRules() throws IOException {
+        TemplatesCache templates = new TemplatesCache();
+        coercionRulesCache = compileCoercionRules(templates);
+        templatesCache = templates;
+    }
+
+    private ConcurrentHashMap<String,CoercionRules> compileCoercionRules(
+            TemplatesCache templates) throws IOException {
+        ConcurrentHashMap<String,CoercionRules> cache =
+                new ConcurrentHashMap<String,CoercionRules>();
+        for (ApplicationEntity ae : getApplicationEntities())
+            if (ae instanceof ArchiveApplicationEntity)
+                for (AttributeCoercion ac :
+                        ((ArchiveApplicationEntity) ae).getAttributeCoercions()) {
+                    String uri = ac.getURI();
+                    if (!uri.endsWith(CoercionRules.FILE_EXT))
+                        try {
+                            templates.get(uri);
+                        } catch (TransformerConfigurationException e) {
+                            throw new IllegalArgumentException(
+                                    uri + ": " + e.getMessage(), e);
+                        }
+                    else if (!cache.containsKey(uri))
+                        try {
+                            cache.put(uri, CoercionRules.load(uri));
+                        } catch (IllegalArgumentException e) {
+                            throw new IllegalArgumentException(
+                                    uri + ": " + e.getMessage(), e);
+                        }
+                }
+        return cache;
     }
 
     public Templates getTemplates(String uri) throws TransformerConfigurationException {
@@ -140,6 +207,20 @@ public class ArchiveDevice extends HL7Device implements ArchiveDeviceMBean {
         return tmp.get(uri);
     }
 
+    public Coercion getCoercion(String uri)
+            throws TransformerConfigurationException, IOException {
+        if (!uri.endsWith(CoercionRules.FILE_EXT))
+            return new XSLTCoercion(getTemplates(uri));
+
+        ConcurrentHashMap<String,CoercionRules> cache = coercionRulesCache;
+        if (cache == null)
+            coercionRulesCache = cache = new ConcurrentHashMap<String,CoercionRules>();
+        CoercionRules rules = cache.get(uri);
+        if (rules == null)
+            cache.put(uri, rules = CoercionRules.load(uri));
+        return rules;
+    }
+
     public void setAttributeFilter(Entity entity, AttributeFilter filter) {
         attributeFilters[entity.ordinal()] = filter;
     }
@@ -165,6 +246,9 @@ public class ArchiveDevice extends HL7Device implements ArchiveDeviceMBean {
         ArchiveDevice arcdev = (ArchiveDevice) from;
         setFuzzyAlgorithmClass(arcdev.fuzzyAlgorithmClass);
         setConfigurationStaleTimeout(arcdev.configurationStaleTimeout);
+        setDeflateEncodedAttributes(arcdev.deflateEncodedAttributes);
+        // only invoked on reconfiguration of the running device
+        Utils.setDeflateEncodedAttributes(deflateEncodedAttributes);
         System.arraycopy(arcdev.attributeFilters, 0,
                 attributeFilters, 0, attributeFilters.length);
     }
@@ -0,0 +1,234 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.net;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.ElementDictionary;
+import org.dcm4che.data.VR;
+import org.dcm4che.util.StringUtils;
+
+/**
+ * Attribute coercion without XSLT, compiled from a rule file with one rule
+ * per line:
+ * <pre>
+ * # comment
+ * set    &lt;tag&gt; &lt;value&gt;[\&lt;value&gt;...]
+ * delete &lt;tag&gt;
+ * copy   &lt;tag&gt; &lt;tag&gt;
+ * map    &lt;tag&gt; &lt;value&gt;=&lt;value&gt; [&lt;value&gt;=&lt;value&gt;...]
+ * </pre>
+ * Tags are specified by 8 hexadecimal digits or by keyword. Values
+ * containing white space are enclosed in double quotes, e.g.
+ * {@code set InstitutionName "General Hospital"}.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+public class CoercionRules implements Coercion {
+
+    public static final String FILE_EXT = ".coercion";
+
+    private final Rule[] rules;
+    private final int[] deleteTags;
+
+    private interface Rule {
+        void apply(Attributes attrs, Attributes coerced);
+    }
+
+    public CoercionRules(List<String> lines) {
+        ArrayList<Rule> ruleList = new ArrayList<Rule>();
+        ArrayList<Integer> deleteList = new ArrayList<Integer>();
+        int lineNo = 0;
+        for (String line : lines) {
+            lineNo++;
+            line = line.trim();
+            if (line.isEmpty() || line.charAt(0) == '#')
+                continue;
+            try {
+                String[] ss = tokenize(line);
+                String op = ss[0];
+                if (op.equals("set") && ss.length == 3)
+                    ruleList.add(set(toTag(ss[1]), ss[2]));
+                else if (op.equals("delete") && ss.length == 2)
+                    deleteList.add(toTag(ss[1]));
+                else if (op.equals("copy") && ss.length == 3)
+                    ruleList.add(copy(toTag(ss[1]), toTag(ss[2])));
+                else if (op.equals("map") && ss.length >= 3)
+                    ruleList.add(map(toTag(ss[1]), ss));
+                else
+                    throw new IllegalArgumentException();
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(
+                        "Invalid coercion rule at line " + lineNo + ": " + line);
+            }
+        }
+        this.rules = ruleList.toArray(new Rule[ruleList.size()]);
+        this.deleteTags = new int[deleteList.size()];
+        for (int i = 0; i < deleteTags.length; i++)
+            deleteTags[i] = deleteList.get(i);
+    }
+
+    /**
+     * Splits a line at white space outside of double quotes and removes the
+     * quotes.
+     */
+    static String[] tokenize(String line) {
+        ArrayList<String> tokens = new ArrayList<String>();
+        StringBuilder sb = new StringBuilder();
+        boolean inToken = false;
+        boolean quoted = false;
+        for (int i = 0, n = line.length(); i < n; i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                inToken = true;
+            } else if (!quoted && Character.isWhitespace(c)) {
+                if (inToken) {
+                    tokens.add(sb.toString());
+                    sb.setLength(0);
+                    inToken = false;
+                }
+            } else {
+                sb.append(c);
+                inToken = true;
+            }
+        }
+        if (quoted)
+            throw new IllegalArgumentException("Missing closing quote");
+        if (inToken)
+            tokens.add(sb.toString());
+        return tokens.toArray(new String[tokens.size()]);
+    }
+
+    public static CoercionRules load(String uri) throws IOException {
+        ArrayList<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new URL(uri).openStream(), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null)
+                lines.add(line);
+        } finally {
+            reader.close();
+        }
+        return new CoercionRules(lines);
+    }
+
+    @Override
+    public void coerce(Attributes attrs, Attributes modified) {
+        Attributes coerced = new Attributes();
+        for (Rule rule : rules)
+            rule.apply(attrs, coerced);
+        attrs.update(coerced, modified);
+        for (int tag : deleteTags) {
+            if (attrs.contains(tag)) {
+                if (modified != null)
+                    modified.addSelected(attrs, new int[] { tag });
+                attrs.remove(tag);
+            }
+        }
+    }
+
+    private static int toTag(String s) {
+        if (s.length() == 8)
+            try {
+                return (int) Long.parseLong(s, 16);
+            } catch (NumberFormatException e) {}
+        int tag = ElementDictionary.tagForKeyword(s, null);
+        if (tag == -1)
+            throw new IllegalArgumentException(s);
+        return tag;
+    }
+
+    private static VR vrOf(int tag) {
+        VR vr = ElementDictionary.vrOf(tag, null);
+        if (vr == VR.SQ)
+            throw new IllegalArgumentException();
+        return vr;
+    }
+
+    private static Rule set(final int tag, String value) {
+        final VR vr = vrOf(tag);
+        final String[] values = StringUtils.split(value, '\\');
+        return new Rule() {
+            @Override
+            public void apply(Attributes attrs, Attributes coerced) {
+                coerced.setString(tag, vr, values);
+            }
+        };
+    }
+
+    private static Rule copy(final int src, final int dest) {
+        final VR vr = vrOf(dest);
+        return new Rule() {
+            @Override
+            public void apply(Attributes attrs, Attributes coerced) {
+                String[] values = attrs.getStrings(src);
+                if (values != null)
+                    coerced.setString(dest, vr, values);
+            }
+        };
+    }
+
+    private static Rule map(final int tag, String[] ss) {
+        final VR vr = vrOf(tag);
+        final HashMap<String,String> map = new HashMap<String,String>();
+        for (int i = 2; i < ss.length; i++) {
+            int index = ss[i].indexOf('=');
+            if (index <= 0)
+                throw new IllegalArgumentException();
+            map.put(ss[i].substring(0, index), ss[i].substring(index+1));
+        }
+        return new Rule() {
+            @Override
+            public void apply(Attributes attrs, Attributes coerced) {
+                String value = map.get(attrs.getString(tag));
+                if (value != null)
+                    coerced.setString(tag, vr, value);
+            }
+        };
+    }
+}
@@ -0,0 +1,440 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.net.service;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Tag;
+import org.dcm4che.io.DicomInputStream;
+import org.dcm4che.net.ApplicationEntity;
+import org.dcm4che.util.SafeClose;
+import org.dcm4chee.archive.ejb.store.InstanceStore;
+import org.dcm4chee.archive.ejb.store.StoreParam;
+import org.dcm4chee.archive.net.ArchiveApplicationEntity;
+import org.dcm4chee.archive.net.ArchiveDevice;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registers existing DICOM files in place, without copying them, by
+ * walking a directory tree on a configured file system. File headers are
+ * parsed in parallel up to the Pixel Data; the parsed objects are
+ * ingested by one {@link InstanceStore} in group commits. Completed
+ * directories are recorded in a checkpoint file, so an interrupted
+ * import continues with the first uncompleted directory.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+public class BulkImport implements BulkImportMBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BulkImport.class);
+
+    private ArchiveDevice device;
+    private Executor executor;
+    private int threads = 4;
+    private int batchSize = 100;
+    private String checkpointFile;
+    private volatile boolean running;
+    private volatile boolean canceled;
+    private volatile String status = "Not started";
+    private final AtomicLong imported = new AtomicLong();
+    private final AtomicLong ignored = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private long startTime;
+    private boolean rolledBack;
+    private int uncommitted;
+    private int uncommittedImported;
+
+    private static class Parsed {
+        final File file;
+        final Attributes fmi;
+        final Attributes ds;
+
+        Parsed(File file, Attributes fmi, Attributes ds) {
+            this.file = file;
+            this.fmi = fmi;
+            this.ds = ds;
+        }
+    }
+
+    public final ArchiveDevice getDevice() {
+        return device;
+    }
+
+    public final void setDevice(ArchiveDevice device) {
+        this.device = device;
+    }
+
+    public final Executor getExecutor() {
+        return executor;
+    }
+
+    public final void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public final int getThreads() {
+        return threads;
+    }
+
+    @Override
+    public final void setThreads(int threads) {
+        if (threads <= 0)
+            throw new IllegalArgumentException("threads: " + threads);
+        this.threads = threads;
+    }
+
+    @Override
+    public final int getBatchSize() {
+        return batchSize;
+    }
+
+    @Override
+    public final void setBatchSize(int batchSize) {
+        if (batchSize <= 0)
+            throw new IllegalArgumentException("batchSize: " + batchSize);
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public final String getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    @Override
+    public final void setCheckpointFile(String checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    @Override
+    public boolean isImportRunning() {
+        return running;
+    }
+
+    @Override
+    public String getImportStatus() {
+        if (!running)
+            return status;
+
+        long imported = this.imported.get();
+        long elapsed = Math.max(1L, System.currentTimeMillis() - startTime);
+        return status + " - imported: " + imported
+                + ", ignored: " + ignored.get()
+                + ", failed: " + failed.get()
+                + ", " + (imported * 1000L / elapsed) + " files/s";
+    }
+
+    @Override
+    public synchronized void startImport(String aet, String fsGroupID,
+            String dir) {
+        if (running)
+            throw new IllegalStateException("Import already running");
+
+        ApplicationEntity ae = device.getApplicationEntity(aet);
+        if (!(ae instanceof ArchiveApplicationEntity))
+            throw new IllegalArgumentException("No such Archive AE: " + aet);
+
+        final StoreParam storeParam = ((ArchiveApplicationEntity) ae).getStoreParam();
+        // commits are triggered by the import, to count committed objects
+        storeParam.setGroupCommitSize(Integer.MAX_VALUE);
+        storeParam.setDerivedAttributesMaxStaleness(0);
+        final String groupID = fsGroupID;
+        final File root = new File(dir).getAbsoluteFile();
+        running = true;
+        canceled = false;
+        imported.set(0);
+        uncommitted = 0;
+        uncommittedImported = 0;
+        ignored.set(0);
+        failed.set(0);
+        startTime = System.currentTimeMillis();
+        status = "Started";
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    runImport(root, groupID, storeParam);
+                } catch (Exception e) {
+                    status = "Failed: " + e;
+                    LOG.warn("Bulk import of " + root + " failed", e);
+                } finally {
+                    running = false;
+                }
+            }
+        });
+    }
+
+    @Override
+    public void cancelImport() {
+        canceled = true;
+    }
+
+    public void stop() {
+        cancelImport();
+    }
+
+    private void runImport(File root, String fsGroupID, StoreParam storeParam)
+            throws Exception {
+        InstanceStore store = openStore(fsGroupID, root);
+        ExecutorService parsers = null;
+        Writer checkpoint = null;
+        try {
+            HashSet<String> completed = readCheckpoint();
+            checkpoint = openCheckpoint();
+            parsers = Executors.newFixedThreadPool(threads);
+            store = importTree(root, fsGroupID, storeParam, store,
+                    new ExecutorCompletionService<Parsed>(parsers),
+                    completed, checkpoint);
+        } finally {
+            if (parsers != null)
+                parsers.shutdownNow();
+            store.close();
+            SafeClose.close(checkpoint);
+        }
+        long elapsed = Math.max(1L, System.currentTimeMillis() - startTime);
+        status = (canceled ? "Canceled" : "Completed")
+                + " - imported: " + imported.get()
+                + ", ignored: " + ignored.get()
+                + ", failed: " + failed.get()
+                + " in " + (elapsed / 1000L) + " s, "
+                + (imported.get() * 1000L / elapsed) + " files/s";
+        LOG.info("Bulk import of {}: {}", root, status);
+    }
+
+    private InstanceStore importTree(File dir, String fsGroupID,
+            StoreParam storeParam, InstanceStore store,
+            CompletionService<Parsed> parsers, HashSet<String> completed,
+            Writer checkpoint) throws Exception {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return store;
+
+        Arrays.sort(files);
+        if (!completed.contains(dir.getPath())) {
+            status = "Importing " + dir;
+            rolledBack = false;
+            store = importFiles(files, fsGroupID, storeParam, store, parsers);
+            if (canceled)
+                return store;
+
+            commit(store);
+            if (rolledBack)
+                LOG.warn("Objects of {} were rolled back - import directory again", dir);
+            else {
+                checkpoint.write(dir.getPath());
+                checkpoint.write('\n');
+                checkpoint.flush();
+            }
+        }
+        for (File file : files) {
+            if (canceled)
+                break;
+            if (file.isDirectory())
+                store = importTree(file, fsGroupID, storeParam, store,
+                        parsers, completed, checkpoint);
+        }
+        return store;
+    }
+
+    private InstanceStore importFiles(File[] files, String fsGroupID,
+            StoreParam storeParam, InstanceStore store,
+            CompletionService<Parsed> parsers) throws Exception {
+        int maxPending = threads * 4;
+        int pending = 0;
+        int next = 0;
+        while (!canceled) {
+            while (pending < maxPending && next < files.length) {
+                final File file = files[next++];
+                if (file.isFile()) {
+                    parsers.submit(new Callable<Parsed>() {
+
+                        @Override
+                        public Parsed call() throws Exception {
+                            return parse(file);
+                        }
+                    });
+                    pending++;
+                }
+            }
+            if (pending == 0)
+                break;
+
+            Parsed parsed;
+            try {
+                parsed = parsers.take().get();
+            } catch (ExecutionException e) {
+                LOG.info("Failed to parse file: {}", e.getCause().toString());
+                failed.incrementAndGet();
+                continue;
+            } finally {
+                pending--;
+            }
+            store = ingest(parsed, fsGroupID, storeParam, store);
+        }
+        return store;
+    }
+
+    private InstanceStore ingest(Parsed parsed, String fsGroupID,
+            StoreParam storeParam, InstanceStore store) throws Exception {
+        try {
+            if (store.addFileRef(null, parsed.ds, new Attributes(),
+                    parsed.file, null,
+                    parsed.fmi.getString(Tag.TransferSyntaxUID), storeParam))
+                uncommittedImported++;
+            else
+                ignored.incrementAndGet();
+        } catch (RuntimeException e) {
+            // the discarded store rolled back its pending group commit
+            LOG.warn("Failed to import " + parsed.file, e);
+            failed.incrementAndGet();
+            rolledBack = true;
+            uncommitted = 0;
+            uncommittedImported = 0;
+            return openStore(fsGroupID, parsed.file);
+        } catch (Exception e) {
+            LOG.info("Failed to import {}: {}", parsed.file, e.toString());
+            failed.incrementAndGet();
+        }
+        if (++uncommitted >= batchSize)
+            commit(store);
+        return store;
+    }
+
+    /**
+     * Commits the pending objects and counts them as imported only after
+     * the commit succeeded.
+     */
+    private void commit(InstanceStore store) throws Exception {
+        store.commit();
+        imported.addAndGet(uncommittedImported);
+        uncommitted = 0;
+        uncommittedImported = 0;
+    }
+
+    private static Parsed parse(File file) throws IOException {
+        DicomInputStream in = new DicomInputStream(file);
+        try {
+            in.setIncludeBulkData(false);
+            Attributes fmi = in.readFileMetaInformation();
+            Attributes ds = in.readDataset(-1, Tag.PixelData);
+            if (fmi == null || !fmi.containsValue(Tag.TransferSyntaxUID)
+                    || !ds.containsValue(Tag.SOPInstanceUID))
+                throw new IOException("Not a DICOM Part 10 file: " + file);
+            return new Parsed(file, fmi, ds);
+        } finally {
+            SafeClose.close(in);
+        }
+    }
+
+    private static InstanceStore openStore(String fsGroupID, File file)
+            throws Exception {
+        InstanceStore store =
+                (InstanceStore) JNDIUtils.lookup(InstanceStore.JNDI_NAME);
+        try {
+            store.selectFileSystem(fsGroupID, file);
+        } catch (Exception e) {
+            store.close();
+            throw e;
+        }
+        return store;
+    }
+
+    private HashSet<String> readCheckpoint() throws IOException {
+        HashSet<String> completed = new HashSet<String>();
+        if (checkpointFile == null)
+            return completed;
+
+        File file = new File(checkpointFile);
+        if (!file.exists())
+            return completed;
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null)
+                completed.add(line);
+        } finally {
+            SafeClose.close(reader);
+        }
+        return completed;
+    }
+
+    private Writer openCheckpoint() throws IOException {
+        if (checkpointFile == null)
+            return new NullWriter();
+
+        File file = new File(checkpointFile);
+        file.getParentFile().mkdirs();
+        return new OutputStreamWriter(
+                new FileOutputStream(file, true), "UTF-8");
+    }
+
+    private static class NullWriter extends Writer {
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {}
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void close() {}
+    }
+}
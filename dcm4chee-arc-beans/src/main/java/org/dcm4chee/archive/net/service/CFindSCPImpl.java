@@ -111,6 +111,8 @@ public class CFindSCPImpl extends BasicCFindSCP {
         level.validateQueryKeys(validator, rootLevel, relational);
         ArchiveApplicationEntity ae = (ArchiveApplicationEntity) as.getApplicationEntity();
         QueryParam queryParam = ae.getQueryParam(codeManager, queryOpts, roles());
+        queryParam.setMaxNumberOfMatches(
+                ae.getQueryMaxNumberOfMatches(level.name()));
         try {
             ApplicationEntity sourceAE = aeCache.get(as.getRemoteAET());
             if (sourceAE != null) {
@@ -142,7 +144,8 @@ public class CFindSCPImpl extends BasicCFindSCP {
                 query.findInstances(pids, keys, queryParam);
                 break;
             }
-            return new QueryTaskImpl(as, pc, rq, keys, query, queryParam, pids);
+            return new QueryTaskImpl(as, pc, rq, keys, query, queryParam, pids,
+                    ae.getQueryPrefetchSize());
         } catch (Exception e) {
             throw new DicomServiceException(Status.UnableToProcess, e);
         }
@@ -39,29 +39,33 @@
 package org.dcm4chee.archive.net.service;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
-
-import javax.xml.transform.Templates;
+import java.util.Collection;
 
 import org.dcm4che.conf.api.ApplicationEntityCache;
 import org.dcm4che.data.Attributes;
 import org.dcm4che.data.Tag;
 import org.dcm4che.data.VR;
-import org.dcm4che.io.SAXTransformer;
 import org.dcm4che.net.ApplicationEntity;
 import org.dcm4che.net.Association;
+import org.dcm4che.net.Commands;
 import org.dcm4che.net.Dimse;
+import org.dcm4che.net.PDVInputStream;
 import org.dcm4che.net.Status;
-import org.dcm4che.net.TransferCapability;
+import org.dcm4che.net.pdu.PresentationContext;
 import org.dcm4che.net.service.BasicCStoreSCP;
 import org.dcm4che.net.service.DicomServiceException;
 import org.dcm4che.util.AttributesFormat;
+import org.dcm4che.util.SafeClose;
 import org.dcm4che.util.TagUtils;
 import org.dcm4chee.archive.ejb.store.InstanceStore;
+import org.dcm4chee.archive.ejb.store.StoreParam;
 import org.dcm4chee.archive.net.ArchiveApplicationEntity;
+import org.dcm4chee.archive.net.Coercion;
 import org.dcm4chee.archive.persistence.FileSystem;
+import org.dcm4chee.archive.persistence.Series;
 
 /**
  * @author Gunter Zeilinger <gunterze@gmail.com>
@@ -70,6 +74,9 @@ public class CStoreSCPImpl extends BasicCStoreSCP {
 
     private IanSCU ianSCU;
     private ApplicationEntityCache aeCache;
+    private DerivedAttributesScheduler derivedAttributesScheduler;
+    private IngestJournalService ingestJournal;
+    private ContainerStorage containerStorage;
 
     public CStoreSCPImpl(String... sopClasses) {
         super(sopClasses);
@@ -91,33 +98,66 @@ public class CStoreSCPImpl extends BasicCStoreSCP {
         this.aeCache = aeCache;
     }
 
-    private static class LazyInitialization {
-        static final SecureRandom random = new SecureRandom();
+    public final DerivedAttributesScheduler getDerivedAttributesScheduler() {
+        return derivedAttributesScheduler;
+    }
+
+    public final void setDerivedAttributesScheduler(
+            DerivedAttributesScheduler derivedAttributesScheduler) {
+        this.derivedAttributesScheduler = derivedAttributesScheduler;
+    }
+
+    public final IngestJournalService getIngestJournal() {
+        return ingestJournal;
+    }
+
+    public final void setIngestJournal(IngestJournalService ingestJournal) {
+        this.ingestJournal = ingestJournal;
+    }
+
+    public final ContainerStorage getContainerStorage() {
+        return containerStorage;
+    }
 
-        static int nextInt() {
-            int n = random.nextInt();
-            return n < 0 ? -(n+1) : n;
+    public final void setContainerStorage(ContainerStorage containerStorage) {
+        this.containerStorage = containerStorage;
+    }
+
+    @Override
+    public void onDimseRQ(Association as, PresentationContext pc, Dimse dimse,
+            Attributes rq, PDVInputStream data) throws IOException {
+        IngestContext ctx = dimse == Dimse.C_STORE_RQ
+                ? initIngestContext(as)
+                : null;
+        GroupCommit groupCommit = ctx != null ? ctx.getGroupCommit() : null;
+        if (groupCommit == null) {
+            super.onDimseRQ(as, pc, dimse, rq, data);
+            return;
         }
+
+        // the C-STORE-RSP is returned after the commit of the object, by
+        // the ingest queue - if any - or by this thread
+        Attributes rsp = Commands.mkCStoreRSP(rq, Status.Success);
+        ctx.setPresentationContext(pc);
+        store(as, pc, rq, data, rsp);
+        if (ctx.getIngestQueue() == null)
+            synchronized (ctx.store) {
+                groupCommit.add(pc, rsp);
+            }
     }
 
     @Override
     protected File getSpoolFile(Association as, Attributes fmi)
             throws DicomServiceException {
-        InstanceStore store = initInstanceStore(as);
+        IngestContext ctx = initIngestContext(as);
         try {
-            FileSystem fs = store.getCurrentFileSystem();
-            ArchiveApplicationEntity ae =
-                    (ArchiveApplicationEntity) as.getApplicationEntity();
-            AttributesFormat filePathFormat = ae.getSpoolFilePathFormat();
-            File file;
-            synchronized (filePathFormat) {
-                file = new File(fs.getDirectory(), filePathFormat.format(fmi));
+            FileSystem fs;
+            synchronized (ctx.store) {
+                fs = ctx.store.getCurrentFileSystem();
             }
-            while (file.exists()) {
-                file = new File(file.getParentFile(),
-                        Integer.toString(LazyInitialization.nextInt()));
-            }
-            return file;
+            return FilePathGenerator.createNewFile(
+                    new File(fs.getDirectory(), FilePathGenerator.format(
+                            ctx.ae.getSpoolFilePathFormat(), fmi)));
         } catch (Exception e) {
             LOG.warn(as + ": Failed to create file:", e);
             throw new DicomServiceException(Status.OutOfResources, e);
@@ -126,72 +166,105 @@ public class CStoreSCPImpl extends BasicCStoreSCP {
 
     @Override
     protected MessageDigest getMessageDigest(Association as) {
+        IngestContext ctx = ingestContext(as);
+        if (ctx != null)
+            return ctx.getMessageDigest();
+
         ArchiveApplicationEntity ae =
                 (ArchiveApplicationEntity) as.getApplicationEntity();
-        String algorithm = ae.getDigestAlgorithm();
-        try {
-            return algorithm != null 
-                    ? MessageDigest.getInstance(algorithm)
-                    : null;
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
+        return IngestContext.createMessageDigest(ae.getDigestAlgorithm());
     }
 
     @Override
     protected File getFinalFile(Association as, Attributes fmi, Attributes ds,
             File spoolFile) {
-        ArchiveApplicationEntity ae =
-                (ArchiveApplicationEntity) as.getApplicationEntity();
-        AttributesFormat filePathFormat = ae.getStorageFilePathFormat();
+        IngestContext ctx = ingestContext(as);
+        AttributesFormat filePathFormat = ctx.ae.getStorageFilePathFormat();
         if (filePathFormat == null)
             return spoolFile;
 
-        InstanceStore store =
-                (InstanceStore) as.getProperty(InstanceStore.JNDI_NAME);
-        File storeDir = store.getCurrentFileSystem().getDirectory();
-        File dst;
-        synchronized (filePathFormat) {
-            dst = new File(storeDir, filePathFormat.format(ds));
+        File storeDir;
+        synchronized (ctx.store) {
+            storeDir = ctx.store.getCurrentFileSystem().getDirectory();
         }
-        while (dst.exists()) {
-            dst = new File(dst.getParentFile(),
-                    TagUtils.toHexString(LazyInitialization.nextInt()));
+        File dst = new File(storeDir,
+                FilePathGenerator.format(filePathFormat, ds));
+        // File.renameTo does not replace existing files on Windows, so the
+        // file cannot be claimed before the spool file is renamed to it
+        if (File.separatorChar == '\\')
+            return FilePathGenerator.nonExistingFile(dst);
+
+        try {
+            return FilePathGenerator.createNewFile(dst);
+        } catch (IOException e) {
+            LOG.warn(as + ": Failed to create file:", e);
+            return FilePathGenerator.nonExistingFile(dst);
         }
-        return dst;
     }
 
     @Override
      protected void process(Association as, Attributes fmi, Attributes ds,
             File file, MessageDigest digest, Attributes rsp)
             throws DicomServiceException {
+        IngestContext ctx = ingestContext(as);
+        IngestQueue queue = ctx.getIngestQueue();
+        if (queue == null) {
+            ingest(as, fmi, ds, file, digest(digest), rsp);
+            return;
+        }
+
+        if (ctx.getGroupCommit() != null) {
+            queue.put(new IngestQueue.Task(ctx.getPresentationContext(),
+                    fmi, ds, file, digest(digest), rsp));
+        } else {
+            // the C-STORE-RSP is returned before the object is ingested
+            sync(as, file);
+            queue.put(new IngestQueue.Task(null, fmi, ds, file,
+                    digest(digest), new Attributes()));
+        }
+    }
+
+    static void sync(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.getFD().sync();
+        } finally {
+            SafeClose.close(raf);
+        }
+    }
+
+    private void sync(Association as, File file)
+            throws DicomServiceException {
+        try {
+            sync(file);
+        } catch (IOException e) {
+            LOG.warn(as + ": Failed to sync " + file + " to disk:", e);
+            throw new DicomServiceException(Status.OutOfResources, e);
+        }
+    }
+
+    void ingest(Association as, Attributes fmi, Attributes ds, File file,
+            String digest, Attributes rsp) throws DicomServiceException {
         if (ds.bigEndian())
             ds = new Attributes(ds, false);
-        String sourceAET = as.getRemoteAET();
-        String cuid = fmi.getString(Tag.MediaStorageSOPClassUID);
-        ArchiveApplicationEntity ae =
-                (ArchiveApplicationEntity) as.getApplicationEntity();
+        IngestContext ctx = ingestContext(as);
+        ArchiveApplicationEntity ae = ctx.ae;
         try {
             Attributes modified = new Attributes();
-            Templates tpl = ae.getAttributeCoercionTemplates(cuid,
-                    Dimse.C_STORE_RQ, TransferCapability.Role.SCP, sourceAET);
-            if (tpl != null)
-                ds.update(SAXTransformer.transform(ds, tpl, false, false),
-                        modified);
-            ApplicationEntity sourceAE = aeCache.get(sourceAET);
-            if (sourceAE != null)
-                Supplements.supplementComposite(ds, sourceAE.getDevice());
-            InstanceStore store = 
-                    (InstanceStore) as.getProperty(InstanceStore.JNDI_NAME);
-            if (!store.addFileRef(sourceAET, ds, modified, file, 
-                    digest(digest), fmi.getString(Tag.TransferSyntaxUID),
-                    ae.getStoreParam())) {
-                delete(as, file);
-            } else if (ae.hasIANDestinations()) {
-                scheduleIAN(ae, store.createIANforPreviousMPPS());
-                for (Attributes ian : store.createIANsforRejectionNote())
-                    scheduleIAN(ae, ian);
-            }
+            Coercion coercion = ctx.getCoercion(
+                    fmi.getString(Tag.MediaStorageSOPClassUID));
+            if (coercion != null)
+                coercion.coerce(ds, modified);
+            if (ctx.sourceAE != null)
+                Supplements.supplementComposite(ds, ctx.sourceAE.getDevice());
+            IngestJournalService journal = ingestJournal;
+            if (journal != null && journal.isEnabled()
+                    && isJournalable(ctx, ds, digest)) {
+                sync(as, file);
+                journal.append(ae.getAETitle(), ctx.sourceAET, ds, modified,
+                        file, digest, fmi.getString(Tag.TransferSyntaxUID));
+            } else
+                addFileRef(as, ctx, fmi, ds, modified, file, digest);
             if (!modified.isEmpty()) {
                 if (LOG.isInfoEnabled()) {
                     LOG.info("{}:Coercion of Data Elements:\n{}\nto:\n{}",
@@ -214,44 +287,198 @@ public class CStoreSCPImpl extends BasicCStoreSCP {
         }
     }
 
+    /**
+     * Rejection Notes and duplicates are stored synchronously, so rejected
+     * references and previously rejected instances are reported in the
+     * C-STORE-RSP and not first detected when applying the journal.
+     */
+    private static boolean isJournalable(IngestContext ctx, Attributes ds,
+            String digest) throws DicomServiceException {
+        if (ctx.storeParam.getRejectionNote(
+                ds.getNestedDataset(Tag.ConceptNameCodeSequence)) != null)
+            return false;
+
+        InstanceStore store = ctx.store;
+        synchronized (store) {
+            return !store.isDuplicate(ds, digest, ctx.storeParam);
+        }
+    }
+
+    private void addFileRef(Association as, IngestContext ctx, Attributes fmi,
+            Attributes ds, Attributes modified, File file, String digest)
+            throws DicomServiceException {
+        ArchiveApplicationEntity ae = ctx.ae;
+        InstanceStore store = ctx.store;
+        StoreParam storeParam = ctx.storeParam;
+        String tsuid = fmi.getString(Tag.TransferSyntaxUID);
+        ContainerStorage.Entry entry = appendToContainer(as, ctx, file);
+        GroupCommit groupCommit = ctx.getGroupCommit();
+        synchronized (store) {
+            boolean added;
+            try {
+                added = entry != null
+                        ? store.addContainerEntry(ctx.sourceAET, ds, modified,
+                                entry.container, entry.offset, entry.length,
+                                digest, tsuid, storeParam)
+                        : store.addFileRef(ctx.sourceAET, ds, modified, file,
+                                digest, tsuid, storeParam);
+            } catch (RuntimeException e) {
+                // the store rolled back the objects of the open group commit
+                if (groupCommit != null)
+                    groupCommit.failed(e);
+                throw e;
+            }
+            if (!added || entry != null)
+                delete(as, file);
+            else if (groupCommit != null)
+                groupCommit.addFile(file);
+            if (added && ae.hasIANDestinations()) {
+                if (groupCommit != null) {
+                    groupCommit.addIAN(store.createIANforPreviousMPPS());
+                    for (Attributes ian : store.createIANsforRejectionNote())
+                        groupCommit.addIAN(ian);
+                } else {
+                    scheduleIAN(ae, store.createIANforPreviousMPPS());
+                    for (Attributes ian : store.createIANsforRejectionNote())
+                        scheduleIAN(ae, ian);
+                }
+            }
+            if (storeParam.getDerivedAttributesMaxStaleness() > 0
+                    && storeParam.getGroupCommitSize() <= 1)
+                derivedAttributesScheduler.schedule(
+                        store.removeDirtySeries(), storeParam);
+        }
+    }
+
+    private ContainerStorage.Entry appendToContainer(Association as,
+            IngestContext ctx, File file) {
+        ContainerStorage containers = containerStorage;
+        int maxObjectSize = ctx.ae.getContainerMaxObjectSize();
+        // the file is deleted after the reference to the container entry
+        // is committed, which requires one transaction per object
+        if (containers == null || maxObjectSize <= 0
+                || file.length() > maxObjectSize
+                || ctx.storeParam.getGroupCommitSize() > 1)
+            return null;
+
+        try {
+            FileSystem fs;
+            synchronized (ctx.store) {
+                fs = ctx.store.getCurrentFileSystem();
+            }
+            return containers.append(fs, file);
+        } catch (IOException e) {
+            LOG.warn(as + ": Failed to append " + file
+                    + " to container file - keep file", e);
+            return null;
+        }
+    }
+
+    void ingestFailed(Association as, File file, Exception e) {
+        ArchiveApplicationEntity ae =
+                (ArchiveApplicationEntity) as.getApplicationEntity();
+        if (ae.getIngestQueueSize() > 0 && ae.isIngestResponseOnFileWritten())
+            LOG.error(as + ": Failed to ingest already acknowledged object - preserve "
+                    + file, e);
+        else if (!ae.isPreserveSpoolFileOnFailure())
+            delete(as, file);
+    }
+
     private String digest(MessageDigest digest) {
         return digest != null ? TagUtils.toHexString(digest.digest()) : null;
     }
 
-    private InstanceStore initInstanceStore(Association as)
+    private static IngestContext ingestContext(Association as) {
+        return (IngestContext) as.getProperty(IngestContext.class.getName());
+    }
+
+    private IngestContext initIngestContext(Association as)
             throws DicomServiceException {
-        InstanceStore store =
-                    (InstanceStore) as.getProperty(InstanceStore.JNDI_NAME);
-        if (store == null) {
+        IngestContext ctx = ingestContext(as);
+        if (ctx == null) {
             ArchiveApplicationEntity ae = (ArchiveApplicationEntity) as.getApplicationEntity();
             String fsGroupID = ae.getFileSystemGroupID();
             if (fsGroupID == null)
                 throw new IllegalStateException(
                         "No File System Group ID configured for " + ae.getAETitle());
-            store = (InstanceStore) JNDIUtils.lookup(InstanceStore.JNDI_NAME);
+            ApplicationEntity sourceAE;
+            try {
+                sourceAE = aeCache.get(as.getRemoteAET());
+            } catch (Exception e) {
+                throw new DicomServiceException(Status.ProcessingFailure,
+                        DicomServiceException.initialCauseOf(e));
+            }
+            InstanceStore store =
+                    (InstanceStore) JNDIUtils.lookup(InstanceStore.JNDI_NAME);
             store.selectFileSystem(fsGroupID);
-            as.setProperty(InstanceStore.JNDI_NAME, store);
+            ctx = new IngestContext(as, sourceAE, store);
+            as.setProperty(IngestContext.class.getName(), ctx);
+            int groupCommitSize = GroupCommit.sizeFor(as, ae.getGroupCommitSize());
+            if (ae.getIngestQueueSize() > 0) {
+                GroupCommit groupCommit = null;
+                if (ae.isIngestResponseOnFileWritten()) {
+                    // commit each object separately, so a failure does not
+                    // roll back other already acknowledged objects
+                    ctx.storeParam.setGroupCommitSize(1);
+                } else {
+                    ctx.storeParam.setGroupCommitSize(Integer.MAX_VALUE);
+                    groupCommit = new GroupCommit(this, as, store,
+                            Math.max(1, groupCommitSize),
+                            ae.getGroupCommitInterval());
+                    ctx.setGroupCommit(groupCommit);
+                }
+                IngestQueue queue = new IngestQueue(this, as, store,
+                        groupCommit, ae.getIngestQueueSize());
+                ctx.setIngestQueue(queue);
+                queue.start();
+            } else if (groupCommitSize > 1) {
+                // commits are triggered by GroupCommit instead of the store
+                ctx.storeParam.setGroupCommitSize(Integer.MAX_VALUE);
+                ctx.setGroupCommit(new GroupCommit(this, as, store,
+                        groupCommitSize, ae.getGroupCommitInterval()));
+            } else {
+                // a synchronous SCU waits for each C-STORE-RSP
+                ctx.storeParam.setGroupCommitSize(1);
+            }
         }
-        return store;
+        return ctx;
     }
 
-    private void closeInstanceStore(Association as) {
-        InstanceStore store =
-                (InstanceStore) as.clearProperty(InstanceStore.JNDI_NAME);
-        if (store != null) {
-            ArchiveApplicationEntity ae =
-                    (ArchiveApplicationEntity) as.getApplicationEntity();
-            if (ae.hasIANDestinations())
-                try {
-                    scheduleIAN(ae, store.createIANforCurrentMPPS());
-                } catch (Exception e) {
-                    LOG.warn(as + ": Failed to create IAN for MPPS:", e);
-                }
+    private void closeIngestContext(Association as) {
+        IngestContext ctx = ingestContext(as);
+        if (ctx == null)
+            return;
+
+        // pending objects are ingested with the context still attached
+        IngestQueue queue = ctx.getIngestQueue();
+        if (queue != null)
+            queue.close();
+        as.clearProperty(IngestContext.class.getName());
+        InstanceStore store = ctx.store;
+        ArchiveApplicationEntity ae = ctx.ae;
+        GroupCommit groupCommit = ctx.getGroupCommit();
+        if (groupCommit != null)
+            synchronized (store) {
+                if (!groupCommit.isEmpty())
+                    groupCommit.commit();
+            }
+        if (ae.hasIANDestinations())
+            try {
+                scheduleIAN(ae, store.createIANforCurrentMPPS());
+            } catch (Exception e) {
+                LOG.warn(as + ": Failed to create IAN for MPPS:", e);
+            }
+        Collection<Series> dirtySeries = store.removeDirtySeries();
+        try {
             store.close();
+        } catch (DicomServiceException e) {
+            LOG.error(as + ": Failed to commit pending updates on close", e);
         }
+        if (!dirtySeries.isEmpty())
+            derivedAttributesScheduler.schedule(dirtySeries, ctx.storeParam);
     }
 
-    private void scheduleIAN(ArchiveApplicationEntity ae, Attributes ian) {
+    void scheduleIAN(ArchiveApplicationEntity ae, Attributes ian) {
         if (ian != null)
             for (String remoteAET : ae.getIANDestinations())
                 ianSCU.scheduleIAN(ae.getAETitle(), remoteAET, ian, 0, 0);
@@ -259,7 +486,7 @@ public class CStoreSCPImpl extends BasicCStoreSCP {
 
     @Override
     public void onClose(Association as) {
-        closeInstanceStore(as);
+        closeIngestContext(as);
     }
 
     @Override
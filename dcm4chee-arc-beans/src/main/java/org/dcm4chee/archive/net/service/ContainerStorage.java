@@ -0,0 +1,433 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.net.service;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ejb.EJB;
+
+import org.dcm4che.io.DicomInputStream;
+import org.dcm4che.util.SafeClose;
+import org.dcm4chee.archive.ejb.store.ContainerMgt;
+import org.dcm4chee.archive.ejb.store.FileSystemMgt;
+import org.dcm4chee.archive.persistence.FileSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Appends small objects to rolling, append-only container files per File
+ * System, instead of storing each object in its own file. Compaction
+ * copies the live entries of sparse container files into the current
+ * container file and reclaims the space of entries of deleted or
+ * rejected Instances. Compacted container files are deleted by the first
+ * compaction after the grace period, so retrieves which already resolved
+ * the previous location of a moved entry can still read it.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+public class ContainerStorage implements ContainerStorageMBean {
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(ContainerStorage.class);
+
+    static final String CONTAINER_DIR = "container";
+    static final String CONTAINER_SUFFIX = ".pack";
+
+    @EJB
+    private FileSystemMgt fileSystemMgt;
+
+    @EJB
+    private ContainerMgt containerMgt;
+
+    private long maxContainerSize = 0x40000000L;
+    private int compactionThreshold = 50;
+    private int gracePeriod = 3600;
+    private final HashMap<Long,Writer> writers = new HashMap<Long,Writer>();
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong reclaimed = new AtomicLong();
+
+    static class Entry {
+        final File container;
+        final long offset;
+        final long length;
+
+        Entry(File container, long offset, long length) {
+            this.container = container;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static class Writer {
+        final File dir;
+        File file;
+        RandomAccessFile raf;
+        long size;
+
+        Writer(File dir) {
+            this.dir = dir;
+        }
+
+        /**
+         * Appends length bytes from the current position of src.
+         */
+        synchronized Entry append(FileChannel src, long length,
+                long maxContainerSize) throws IOException {
+            if (raf == null || size >= maxContainerSize)
+                roll();
+            FileChannel channel = raf.getChannel();
+            long offset = size;
+            long n = 0;
+            while (n < length) {
+                long count = channel.transferFrom(src, offset + n, length - n);
+                if (count <= 0)
+                    throw new EOFException();
+                n += count;
+            }
+            channel.force(false);
+            size += length;
+            return new Entry(file, offset, length);
+        }
+
+        synchronized boolean isCurrent(File f) {
+            return f.equals(file);
+        }
+
+        private void roll() throws IOException {
+            close();
+            dir.mkdirs();
+            File f;
+            long name = System.currentTimeMillis();
+            while (!(f = new File(dir, String.format("%016x", name++)
+                    + CONTAINER_SUFFIX)).createNewFile())
+                ;
+            raf = new RandomAccessFile(f, "rw");
+            file = f;
+            size = 0L;
+        }
+
+        synchronized void close() {
+            if (raf != null) {
+                SafeClose.close(raf);
+                raf = null;
+            }
+        }
+    }
+
+    private static class EntryInputStream extends InputStream {
+        final RandomAccessFile raf;
+        final long end;
+        long position;
+
+        EntryInputStream(File file, long offset, long length)
+                throws IOException {
+            this.raf = new RandomAccessFile(file, "r");
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end)
+                return -1;
+            int n = raf.getChannel().read(ByteBuffer.wrap(b, off,
+                    (int) Math.min(len, end - position)), position);
+            if (n > 0)
+                position += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            n = Math.max(0L, Math.min(n, end - position));
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(end - position, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            raf.close();
+        }
+    }
+
+    public final long getMaxContainerSize() {
+        return maxContainerSize;
+    }
+
+    public final void setMaxContainerSize(long maxContainerSize) {
+        if (maxContainerSize <= 0)
+            throw new IllegalArgumentException("maxContainerSize: "
+                    + maxContainerSize);
+        this.maxContainerSize = maxContainerSize;
+    }
+
+    public final int getCompactionThreshold() {
+        return compactionThreshold;
+    }
+
+    public final void setCompactionThreshold(int compactionThreshold) {
+        if (compactionThreshold < 0 || compactionThreshold > 100)
+            throw new IllegalArgumentException("compactionThreshold: "
+                    + compactionThreshold);
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    public final int getGracePeriod() {
+        return gracePeriod;
+    }
+
+    public final void setGracePeriod(int gracePeriod) {
+        if (gracePeriod < 0)
+            throw new IllegalArgumentException("gracePeriod: " + gracePeriod);
+        this.gracePeriod = gracePeriod;
+    }
+
+    @Override
+    public long getAppended() {
+        return appended.get();
+    }
+
+    @Override
+    public long getReclaimed() {
+        return reclaimed.get();
+    }
+
+    public void stop() {
+        synchronized (writers) {
+            for (Writer writer : writers.values())
+                writer.close();
+            writers.clear();
+        }
+    }
+
+    private Writer writer(FileSystem fs) {
+        synchronized (writers) {
+            Writer writer = writers.get(fs.getPk());
+            if (writer == null)
+                writers.put(fs.getPk(), writer = 
+                        new Writer(new File(fs.getDirectory(), CONTAINER_DIR)));
+            return writer;
+        }
+    }
+
+    /**
+     * Appends the content of the file to the current container file of the
+     * File System. The file itself is not deleted.
+     */
+    Entry append(FileSystem fs, File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel src = in.getChannel();
+            Entry entry = writer(fs).append(src, src.size(),
+                    maxContainerSize);
+            appended.incrementAndGet();
+            return entry;
+        } finally {
+            SafeClose.close(in);
+        }
+    }
+
+    static boolean isContainerEntry(String uri) {
+        return uri.indexOf('#') > 0;
+    }
+
+    /**
+     * Opens the entry of a container file referenced by an URI of form
+     * {@code <container-uri>#<offset>,<length>}.
+     */
+    static DicomInputStream openEntry(String uri) throws IOException {
+        int fragment = uri.indexOf('#');
+        int comma = uri.indexOf(',', fragment);
+        File container;
+        try {
+            container = new File(new URI(uri.substring(0, fragment)));
+        } catch (Exception e) {
+            throw new IOException("Invalid container entry URI: " + uri, e);
+        }
+        InputStream in = new EntryInputStream(container,
+                Long.parseLong(uri.substring(fragment + 1, comma)),
+                Long.parseLong(uri.substring(comma + 1)));
+        try {
+            return new DicomInputStream(new BufferedInputStream(in));
+        } catch (IOException e) {
+            SafeClose.close(in);
+            throw e;
+        }
+    }
+
+    @Override
+    public String compact() throws Exception {
+        int compacted = 0;
+        int deleted = 0;
+        long before = reclaimed.get();
+        long minAge = System.currentTimeMillis() - gracePeriod * 1000L;
+        for (FileSystem fs : fileSystemMgt.findAll()) {
+            File[] files = new File(fs.getDirectory(), CONTAINER_DIR).listFiles();
+            if (files == null)
+                continue;
+
+            Writer writer = writer(fs);
+            for (File file : files) {
+                if (!file.getName().endsWith(CONTAINER_SUFFIX)
+                        || file.lastModified() > minAge
+                        || writer.isCurrent(file))
+                    continue;
+
+                switch (compact(fs, writer, file)) {
+                case 1:
+                    compacted++;
+                    break;
+                case 2:
+                    deleted++;
+                    break;
+                }
+            }
+        }
+        return "Compacted " + compacted + " and deleted " + deleted
+                + " container files, reclaimed "
+                + ((reclaimed.get() - before) >>> 20) + " MB";
+    }
+
+    private int compact(FileSystem fs, Writer writer, File file)
+            throws IOException {
+        String filePath = file.toURI().toString().substring(fs.getURI().length());
+        List<Object[]> entries = containerMgt.findEntries(fs.getPk(), filePath);
+        long size = file.length();
+        if (entries.isEmpty()) {
+            if (!file.delete()) {
+                LOG.warn("Failed to delete container file {}", file);
+                return 0;
+            }
+            reclaimed.addAndGet(size);
+            LOG.info("Deleted container file {} - reclaimed {} bytes",
+                    file, size);
+            return 2;
+        }
+        ArrayList<Long> rejected = new ArrayList<Long>();
+        long live = 0L;
+        for (Object[] entry : entries) {
+            if (entry[3] != null)
+                rejected.add((Long) entry[0]);
+            else
+                live += (Long) entry[2];
+        }
+        if (live * 100 > size * compactionThreshold)
+            return 0;
+
+        if (live > 0) {
+            long[] pks = new long[entries.size() - rejected.size()];
+            long[] offsets = new long[pks.length];
+            File dst = null;
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel src = raf.getChannel();
+                int i = 0;
+                for (Object[] entry : entries) {
+                    if (entry[3] != null)
+                        continue;
+
+                    long offset = (Long) entry[1];
+                    long length = (Long) entry[2];
+                    src.position(offset);
+                    Entry moved = writer.append(src, length,
+                            maxContainerSize);
+                    if (dst == null)
+                        dst = moved.container;
+                    else if (!dst.equals(moved.container)) {
+                        // container rolled over - relocate moved entries
+                        relocate(fs, dst, pks, offsets, i);
+                        dst = moved.container;
+                        i = 0;
+                    }
+                    pks[i] = (Long) entry[0];
+                    offsets[i++] = moved.offset;
+                }
+                relocate(fs, dst, pks, offsets, i);
+            } finally {
+                SafeClose.close(raf);
+            }
+        }
+        if (!rejected.isEmpty())
+            containerMgt.removeEntries(rejected);
+        // defer deletion of the no longer referenced file by the grace period
+        file.setLastModified(System.currentTimeMillis());
+        LOG.info("Compacted container file {} - delete after grace period",
+                file);
+        return 1;
+    }
+
+    private void relocate(FileSystem fs, File container, long[] pks,
+            long[] offsets, int count) {
+        if (count < pks.length) {
+            long[] pks1 = new long[count];
+            long[] offsets1 = new long[count];
+            System.arraycopy(pks, 0, pks1, 0, count);
+            System.arraycopy(offsets, 0, offsets1, 0, count);
+            pks = pks1;
+            offsets = offsets1;
+        }
+        containerMgt.relocateEntries(pks,
+                container.toURI().toString().substring(fs.getURI().length()),
+                offsets);
+    }
+}
@@ -0,0 +1,361 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.net.service;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ejb.EJB;
+
+import org.dcm4che.net.ApplicationEntity;
+import org.dcm4chee.archive.ejb.store.DerivedAttributesUpdate;
+import org.dcm4chee.archive.ejb.store.StoreParam;
+import org.dcm4chee.archive.net.ArchiveApplicationEntity;
+import org.dcm4chee.archive.net.ArchiveDevice;
+import org.dcm4chee.archive.persistence.Series;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Recalculates derived attributes of dirty Series and their Studies
+ * asynchronously. Updates of Series of the same Study scheduled within the
+ * configured maximal staleness are coalesced into one recalculation. Series
+ * of a Study whose recalculation is already running are recalculated after
+ * it has finished, so a Study is never recalculated concurrently. Failed
+ * recalculations are retried with increasing delay. Series left dirty by a
+ * previous run are scheduled on start.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+public class DerivedAttributesScheduler implements DerivedAttributesSchedulerMBean {
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(DerivedAttributesScheduler.class);
+
+    private static final int FETCH_SIZE = 100;
+
+    @EJB
+    private DerivedAttributesUpdate derivedAttributesUpdate;
+
+    private ArchiveDevice device;
+    private String sweepAETitle;
+    private int maxThreads = 1;
+    private int retryInterval = 10;
+    private int maxRetries = 5;
+    private ScheduledExecutorService executor;
+    private final ConcurrentHashMap<Long,PendingUpdate> pending =
+            new ConcurrentHashMap<Long,PendingUpdate>();
+    private final AtomicLong scheduled = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public final ArchiveDevice getDevice() {
+        return device;
+    }
+
+    public final void setDevice(ArchiveDevice device) {
+        this.device = device;
+    }
+
+    public final String getSweepAETitle() {
+        return sweepAETitle;
+    }
+
+    /**
+     * Sets the AE Title whose rejection notes are applied to the
+     * recalculation of Series left dirty by a previous run. If not set, the
+     * first Archive AE of the device is used.
+     */
+    public final void setSweepAETitle(String sweepAETitle) {
+        this.sweepAETitle = sweepAETitle;
+    }
+
+    public final int getMaxThreads() {
+        return maxThreads;
+    }
+
+    public final void setMaxThreads(int maxThreads) {
+        if (maxThreads <= 0)
+            throw new IllegalArgumentException("maxThreads: " + maxThreads);
+        this.maxThreads = maxThreads;
+    }
+
+    public final int getRetryInterval() {
+        return retryInterval;
+    }
+
+    public final void setRetryInterval(int retryInterval) {
+        if (retryInterval <= 0)
+            throw new IllegalArgumentException("retryInterval: " + retryInterval);
+        this.retryInterval = retryInterval;
+    }
+
+    public final int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public final void setMaxRetries(int maxRetries) {
+        if (maxRetries < 0)
+            throw new IllegalArgumentException("maxRetries: " + maxRetries);
+        this.maxRetries = maxRetries;
+    }
+
+    public void start() {
+        executor = Executors.newScheduledThreadPool(maxThreads);
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                sweep();
+            }
+        });
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+        executor = null;
+        if (!pending.isEmpty())
+            LOG.warn("Discard {} pending updates of derived attributes - "
+                    + "affected Series remain flagged as dirty",
+                    pending.size());
+        pending.clear();
+    }
+
+    private void sweep() {
+        StoreParam storeParam = sweepStoreParam();
+        if (storeParam == null) {
+            LOG.warn("No Archive AE configured - do not schedule "
+                    + "update of derived attributes of dirty Series");
+            return;
+        }
+        int count = 0;
+        long lastPk = 0;
+        try {
+            List<Object[]> rows;
+            while (!(rows = derivedAttributesUpdate.findDirtySeries(
+                    lastPk, FETCH_SIZE)).isEmpty()) {
+                for (Object[] row : rows) {
+                    lastPk = (Long) row[0];
+                    schedule((Long) row[1], lastPk, storeParam, 0);
+                    count++;
+                }
+            }
+        } catch (Exception e) {
+            LOG.warn("Failed to schedule update of derived attributes "
+                    + "of dirty Series", e);
+        }
+        if (count > 0)
+            LOG.info("Scheduled update of derived attributes of {} dirty Series",
+                    count);
+    }
+
+    private StoreParam sweepStoreParam() {
+        if (sweepAETitle != null) {
+            ApplicationEntity ae = device.getApplicationEntity(sweepAETitle);
+            if (ae instanceof ArchiveApplicationEntity)
+                return ((ArchiveApplicationEntity) ae).getStoreParam();
+            LOG.warn("No such Archive AE: {}", sweepAETitle);
+        }
+        for (ApplicationEntity ae : device.getApplicationEntities())
+            if (ae instanceof ArchiveApplicationEntity)
+                return ((ArchiveApplicationEntity) ae).getStoreParam();
+        return null;
+    }
+
+    public void schedule(Collection<Series> seriesList, StoreParam storeParam) {
+        int delay = storeParam.getDerivedAttributesMaxStaleness();
+        for (Series series : seriesList)
+            schedule(series.getStudy().getPk(), series.getPk(), storeParam, delay);
+    }
+
+    private void schedule(Long studyPk, Long seriesPk, StoreParam storeParam,
+            int delay) {
+        for (;;) {
+            PendingUpdate update = pending.get(studyPk);
+            if (update == null) {
+                PendingUpdate newUpdate =
+                        new PendingUpdate(studyPk, storeParam, delay);
+                update = pending.putIfAbsent(studyPk, newUpdate);
+                if (update == null) {
+                    newUpdate.add(seriesPk);
+                    executor.schedule(newUpdate, delay, TimeUnit.SECONDS);
+                    scheduled.incrementAndGet();
+                    return;
+                }
+            }
+            if (update.add(seriesPk)) {
+                coalesced.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public int getBacklog() {
+        return pending.size();
+    }
+
+    @Override
+    public long getOldestPendingAge() {
+        long oldest = 0L;
+        long now = System.currentTimeMillis();
+        for (PendingUpdate update : pending.values())
+            oldest = Math.max(oldest, now - update.created);
+        return oldest;
+    }
+
+    @Override
+    public long getScheduled() {
+        return scheduled.get();
+    }
+
+    @Override
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    @Override
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    @Override
+    public long getRetried() {
+        return retried.get();
+    }
+
+    @Override
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Update of the derived attributes of one Study, which stays in the map
+     * of pending updates until it has completed and no further Series were
+     * added while it was running.
+     */
+    private class PendingUpdate implements Runnable {
+
+        final Long studyPk;
+        final StoreParam storeParam;
+        final int delay;
+        final long created = System.currentTimeMillis();
+        HashSet<Long> seriesPks = new HashSet<Long>();
+        HashSet<Long> addedWhileRunning = new HashSet<Long>();
+        boolean running;
+        boolean removed;
+        int retries;
+
+        PendingUpdate(Long studyPk, StoreParam storeParam, int delay) {
+            this.studyPk = studyPk;
+            this.storeParam = storeParam;
+            this.delay = delay;
+        }
+
+        synchronized boolean add(Long seriesPk) {
+            if (removed)
+                return false;
+
+            (running ? addedWhileRunning : seriesPks).add(seriesPk);
+            return true;
+        }
+
+        @Override
+        public void run() {
+            HashSet<Long> pks;
+            synchronized (this) {
+                running = true;
+                pks = seriesPks;
+                seriesPks = new HashSet<Long>();
+            }
+            Exception failure = null;
+            try {
+                derivedAttributesUpdate.updateStudy(studyPk, pks, storeParam);
+                completed.incrementAndGet();
+            } catch (Exception e) {
+                failure = e;
+            }
+            synchronized (this) {
+                running = false;
+                seriesPks.addAll(addedWhileRunning);
+                addedWhileRunning.clear();
+                if (failure == null) {
+                    retries = 0;
+                    if (seriesPks.isEmpty()) {
+                        removed = true;
+                        pending.remove(studyPk, this);
+                        return;
+                    }
+                    reschedule(delay);
+                    return;
+                }
+                seriesPks.addAll(pks);
+                if (retries < maxRetries) {
+                    int retryDelay = retryInterval << Math.min(retries++, 10);
+                    retried.incrementAndGet();
+                    LOG.info("Failed to update derived attributes of Study[pk="
+                            + studyPk + "] - retry in " + retryDelay + "s",
+                            failure);
+                    reschedule(retryDelay);
+                    return;
+                }
+                removed = true;
+                pending.remove(studyPk, this);
+            }
+            failed.incrementAndGet();
+            LOG.warn("Failed to update derived attributes of Study[pk="
+                    + studyPk + "] - Series remain flagged as dirty", failure);
+        }
+
+        private void reschedule(int delay) {
+            ScheduledExecutorService executor =
+                    DerivedAttributesScheduler.this.executor;
+            if (executor != null)
+                executor.schedule(this, delay, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.net.service;
+
+import java.util.concurrent.Executor;
+
+import javax.ejb.EJB;
+
+import org.dcm4chee.archive.ejb.store.EncodedAttributesMigration;
+import org.dcm4chee.archive.net.ArchiveDevice;
+import org.dcm4chee.archive.persistence.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Controls the encoding of attributes stored in the database and
+ * re-encodes blobs written by previous versions or with a different
+ * compression setting in background.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+public class EncodedAttributesService implements EncodedAttributesServiceMBean {
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(EncodedAttributesService.class);
+
+    @EJB
+    private EncodedAttributesMigration migration;
+
+    private ArchiveDevice device;
+    private Executor executor;
+    private int batchSize = 100;
+    private volatile boolean running;
+    private volatile boolean canceled;
+    private volatile String status = "Not started";
+
+    public final ArchiveDevice getDevice() {
+        return device;
+    }
+
+    public final void setDevice(ArchiveDevice device) {
+        this.device = device;
+    }
+
+    public final Executor getExecutor() {
+        return executor;
+    }
+
+    public final void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public boolean isDeflate() {
+        return Utils.isDeflateEncodedAttributes();
+    }
+
+
+    @Override
+    public final int getBatchSize() {
+        return batchSize;
+    }
+
+    @Override
+    public final void setBatchSize(int batchSize) {
+        if (batchSize <= 0)
+            throw new IllegalArgumentException("batchSize: " + batchSize);
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public boolean isMigrationRunning() {
+        return running;
+    }
+
+    @Override
+    public String getMigrationStatus() {
+        return status;
+    }
+
+    @Override
+    public synchronized void startMigration() {
+        if (running)
+            return;
+
+        running = true;
+        canceled = false;
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    migrate();
+                } catch (Exception e) {
+                    status = "Failed: " + e;
+                    LOG.warn("Migration of encoded attributes failed", e);
+                } finally {
+                    running = false;
+                }
+            }
+        });
+    }
+
+    @Override
+    public void cancelMigration() {
+        canceled = true;
+    }
+
+    public void start() {
+        Utils.setDeflateEncodedAttributes(device.isDeflateEncodedAttributes());
+    }
+
+    public void stop() {
+        cancelMigration();
+    }
+
+    private void migrate() {
+        for (String entityName : EncodedAttributesMigration.ENTITY_NAMES) {
+            long pk = 0L;
+            while ((pk = migration.migrate(entityName, pk, batchSize)) >= 0) {
+                status = "Migrating " + entityName + "[pk=" + pk + "]";
+                if (canceled) {
+                    status = "Canceled at " + entityName + "[pk=" + pk + "]";
+                    return;
+                }
+            }
+        }
+        status = "Completed";
+        LOG.info("Migration of encoded attributes completed");
+    }
+}
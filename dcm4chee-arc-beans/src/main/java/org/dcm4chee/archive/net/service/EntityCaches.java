@@ -0,0 +1,141 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.net.service;
+
+import org.dcm4chee.archive.ejb.query.ParentAttributes;
+import org.dcm4chee.archive.ejb.store.CodeFactory;
+import org.dcm4chee.archive.ejb.store.IssuerFactory;
+import org.dcm4chee.archive.ejb.store.PatientFactory;
+
+/**
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+public class EntityCaches implements EntityCachesMBean {
+
+    @Override
+    public int getCodeCacheSize() {
+        return CodeFactory.getCache().size();
+    }
+
+    @Override
+    public long getCodeCacheHits() {
+        return CodeFactory.getCache().getHits();
+    }
+
+    @Override
+    public long getCodeCacheMisses() {
+        return CodeFactory.getCache().getMisses();
+    }
+
+    @Override
+    public void clearCodeCache() {
+        CodeFactory.getCache().clear();
+    }
+
+    @Override
+    public int getIssuerCacheSize() {
+        return IssuerFactory.getCacheSize();
+    }
+
+    @Override
+    public long getIssuerCacheHits() {
+        return IssuerFactory.getCacheHits();
+    }
+
+    @Override
+    public long getIssuerCacheMisses() {
+        return IssuerFactory.getCacheMisses();
+    }
+
+    @Override
+    public void clearIssuerCache() {
+        IssuerFactory.clearCache();
+    }
+
+    @Override
+    public int getPatientCacheSize() {
+        return PatientFactory.getCache().size();
+    }
+
+    @Override
+    public long getPatientCacheHits() {
+        return PatientFactory.getCache().getHits();
+    }
+
+    @Override
+    public long getPatientCacheMisses() {
+        return PatientFactory.getCache().getMisses();
+    }
+
+    @Override
+    public void clearPatientCache() {
+        PatientFactory.getCache().clear();
+    }
+
+    @Override
+    public int getAttributesCacheMaxSize() {
+        return ParentAttributes.getCache().getMaxSize();
+    }
+
+    @Override
+    public void setAttributesCacheMaxSize(int maxSize) {
+        ParentAttributes.getCache().setMaxSize(maxSize);
+    }
+
+    @Override
+    public int getAttributesCacheSize() {
+        return ParentAttributes.getCache().size();
+    }
+
+    @Override
+    public long getAttributesCacheHits() {
+        return ParentAttributes.getCache().getHits();
+    }
+
+    @Override
+    public long getAttributesCacheMisses() {
+        return ParentAttributes.getCache().getMisses();
+    }
+
+    @Override
+    public void clearAttributesCache() {
+        ParentAttributes.getCache().clear();
+    }
+
+}
@@ -0,0 +1,134 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.net.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.util.AttributesFormat;
+
+/**
+ * Lock-free creation of spool and storage file paths. Each thread formats
+ * paths with its own copy of the configured {@link AttributesFormat}.
+ * Files are claimed by atomically creating the file with the formatted
+ * name. Only on a collision, the formatted name is suffixed by a name
+ * unique for this node and process, instead of probing further names.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+class FilePathGenerator {
+
+    private static final String PREFIX = nodeID() + '-'
+            + Long.toHexString(System.currentTimeMillis()) + '-';
+
+    private static final AtomicLong counter = new AtomicLong();
+
+    private static final ThreadLocal<WeakHashMap<AttributesFormat,AttributesFormat>>
+            formats = new ThreadLocal<WeakHashMap<AttributesFormat,AttributesFormat>>() {
+
+                @Override
+                protected WeakHashMap<AttributesFormat, AttributesFormat> initialValue() {
+                    return new WeakHashMap<AttributesFormat,AttributesFormat>();
+                }
+    };
+
+    static String format(AttributesFormat format, Attributes attrs) {
+        WeakHashMap<AttributesFormat,AttributesFormat> map = formats.get();
+        AttributesFormat copy = map.get(format);
+        if (copy == null)
+            map.put(format, copy = new AttributesFormat(format.toString()));
+        return copy.format(attrs);
+    }
+
+    /**
+     * Returns the name of the JVM - typically {@code <pid>@<hostname>} - with
+     * all characters, which are not letters or digits, replaced by '_'.
+     */
+    static String nodeID() {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        StringBuilder sb = new StringBuilder(name.length());
+        for (int i = 0, n = name.length(); i < n; i++) {
+            char c = name.charAt(i);
+            sb.append(Character.isLetterOrDigit(c) ? c : '_');
+        }
+        return sb.toString();
+    }
+
+    static String uniqueName() {
+        return PREFIX + Long.toHexString(counter.incrementAndGet());
+    }
+
+    /**
+     * Returns the specified file with its name suffixed by a name unique for
+     * this node and process.
+     */
+    static File suffixed(File file) {
+        return new File(file.getParentFile(),
+                file.getName() + '-' + uniqueName());
+    }
+
+    /**
+     * Creates the specified file or - if it already exists - the file with
+     * its name suffixed by a unique name.
+     */
+    static File createNewFile(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        if (file.createNewFile())
+            return file;
+
+        File suffixed;
+        while (!(suffixed = suffixed(file)).createNewFile())
+            ;
+        return suffixed;
+    }
+
+    /**
+     * Returns the specified file or - if it already exists - the file with
+     * its name suffixed by a unique name, without creating it. Used, where
+     * an existing file cannot be replaced by the file to be stored.
+     */
+    static File nonExistingFile(File file) {
+        file.getParentFile().mkdirs();
+        return file.exists() ? suffixed(file) : file;
+    }
+}
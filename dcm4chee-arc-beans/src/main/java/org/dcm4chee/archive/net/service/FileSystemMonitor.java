@@ -0,0 +1,229 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.net.service;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ejb.EJB;
+
+import org.dcm4chee.archive.ejb.store.FileSystemMgt;
+import org.dcm4chee.archive.ejb.store.FileSystemPlacement;
+import org.dcm4chee.archive.persistence.FileSystem;
+import org.dcm4chee.archive.persistence.FileSystemStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Samples usable space of all File Systems in background. Switches a RW
+ * File System, which is filled above the configured high-water mark, to
+ * RO and its configured next File System to RW, and keeps the writeable
+ * File Systems of each group registered by {@link FileSystemPlacement}.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+public class FileSystemMonitor implements FileSystemMonitorMBean {
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(FileSystemMonitor.class);
+
+    @EJB
+    private FileSystemMgt fileSystemMgt;
+
+    private int interval = 60;
+    private int highWaterMark = 95;
+    private ScheduledExecutorService executor;
+    private final ConcurrentHashMap<Long,Sample> samples =
+            new ConcurrentHashMap<Long,Sample>();
+    private final AtomicLong rollovers = new AtomicLong();
+
+    private static class Sample {
+        final FileSystem fs;
+        final long time;
+        final long usable;
+        final long total;
+        final long fillRate;
+
+        Sample(FileSystem fs, Sample prev) {
+            File dir = fs.getDirectory();
+            this.fs = fs;
+            this.time = System.currentTimeMillis();
+            this.usable = dir.getUsableSpace();
+            this.total = dir.getTotalSpace();
+            this.fillRate = prev != null && time > prev.time
+                    ? (prev.usable - usable) * 1000L / (time - prev.time)
+                    : 0L;
+        }
+
+        /**
+         * Returns the fill level in percent or -1, if the size of the
+         * File System is unknown.
+         */
+        int fill() {
+            return total > 0 ? (int) ((total - usable) * 100L / total) : -1;
+        }
+
+        @Override
+        public String toString() {
+            return fs.getGroupID() + ' ' + fs.getURI()
+                    + " [" + fs.getStatus()
+                    + "] free=" + (usable >>> 20)
+                    + "MB, fill=" + (total > 0 ? fill() + "%" : "unknown")
+                    + ", fillRate=" + (fillRate >> 10) + "KB/s";
+        }
+    }
+
+    public final int getInterval() {
+        return interval;
+    }
+
+    public final void setInterval(int interval) {
+        if (interval <= 0)
+            throw new IllegalArgumentException("interval: " + interval);
+        this.interval = interval;
+    }
+
+    public final int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    public final void setHighWaterMark(int highWaterMark) {
+        if (highWaterMark <= 0 || highWaterMark > 100)
+            throw new IllegalArgumentException("highWaterMark: "
+                    + highWaterMark);
+        this.highWaterMark = highWaterMark;
+    }
+
+    public void start() {
+        executor = Executors.newSingleThreadScheduledExecutor();
+        executor.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    check();
+                } catch (Exception e) {
+                    LOG.warn("Failed to check File Systems", e);
+                }
+            }
+        }, 0, interval, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+        executor = null;
+    }
+
+    @Override
+    public synchronized void check() {
+        List<FileSystem> fileSystems = fileSystemMgt.findAll();
+        boolean rolledOver = false;
+        for (FileSystem fs : fileSystems) {
+            try {
+                Sample sample = new Sample(fs, samples.get(fs.getPk()));
+                samples.put(fs.getPk(), sample);
+                if (sample.total == 0) {
+                    LOG.debug("Size of {} unknown - skip check", fs);
+                    continue;
+                }
+                FileSystemPlacement.setUsableSpace(fs.getPk(), sample.usable);
+                if (fs.getStatus() == FileSystemStatus.RW
+                        && sample.fill() >= highWaterMark) {
+                    rollover(sample);
+                    rolledOver = true;
+                }
+            } catch (Exception e) {
+                LOG.warn("Failed to check " + fs, e);
+            }
+        }
+        if (rolledOver)
+            fileSystems = fileSystemMgt.findAll();
+
+        HashMap<String,List<FileSystem>> writeable =
+                new HashMap<String,List<FileSystem>>();
+        for (FileSystem fs : fileSystems) {
+            List<FileSystem> group = writeable.get(fs.getGroupID());
+            if (group == null)
+                writeable.put(fs.getGroupID(),
+                        group = new ArrayList<FileSystem>());
+            if (fs.getStatus() == FileSystemStatus.RW)
+                group.add(fs);
+        }
+        for (Map.Entry<String,List<FileSystem>> entry : writeable.entrySet())
+            FileSystemPlacement.register(entry.getKey(), entry.getValue());
+    }
+
+    private void rollover(Sample sample) {
+        FileSystem next = fileSystemMgt.rollover(sample.fs.getPk());
+        if (next != null && next.getPk() == sample.fs.getPk()) {
+            LOG.warn("{} filled {}% - remains RW without next writeable"
+                    + " File System", sample.fs, sample.fill());
+            return;
+        }
+        rollovers.incrementAndGet();
+        if (next != null)
+            LOG.info("{} filled {}% - switch to {}", new Object[] {
+                    sample.fs, sample.fill(), next });
+        else
+            LOG.info("{} filled {}% - switched to RO without next writeable"
+                    + " File System", sample.fs, sample.fill());
+    }
+
+    @Override
+    public String[] getFileSystemStatus() {
+        ArrayList<String> status = new ArrayList<String>(samples.size());
+        for (Sample sample : samples.values())
+            status.add(sample.toString());
+        return status.toArray(new String[status.size()]);
+    }
+
+    @Override
+    public long getRollovers() {
+        return rollovers.get();
+    }
+
+}
@@ -0,0 +1,215 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.net.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.VR;
+import org.dcm4che.net.Association;
+import org.dcm4che.net.AssociationStateException;
+import org.dcm4che.net.Status;
+import org.dcm4che.net.pdu.AAssociateAC;
+import org.dcm4che.net.pdu.PresentationContext;
+import org.dcm4che.net.service.DicomServiceException;
+import org.dcm4chee.archive.ejb.store.InstanceStore;
+import org.dcm4chee.archive.net.ArchiveApplicationEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Open group commit of the received objects of one Association. The
+ * C-STORE-RSPs and IANs of the objects are held back until the transaction
+ * covering them is committed - by reaching the configured number of
+ * objects or by a timer, started with the first object of the group. The
+ * number of objects is limited to the maximal number of operations the
+ * SCU may invoke asynchronously, because the SCU does not send further
+ * objects before it received a C-STORE-RSP. If
+ * the transaction is rolled back or its commit fails, the C-STORE-RSPs
+ * are returned with a failure status, the IANs are discarded and the
+ * files of the objects are deleted.
+ * 
+ * Unless noted otherwise, methods must be invoked with the lock on the
+ * {@link InstanceStore}.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+class GroupCommit implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GroupCommit.class);
+
+    static final int DEFAULT_INTERVAL = 1000;
+
+    private final CStoreSCPImpl scp;
+    private final Association as;
+    private final InstanceStore store;
+    private final int size;
+    private final int interval;
+    private final ArrayList<PresentationContext> pcs =
+            new ArrayList<PresentationContext>();
+    private final ArrayList<Attributes> rsps = new ArrayList<Attributes>();
+    private final ArrayList<Attributes> ians = new ArrayList<Attributes>();
+    private final ArrayList<File> files = new ArrayList<File>();
+    private ScheduledFuture<?> timer;
+
+    GroupCommit(CStoreSCPImpl scp, Association as, InstanceStore store,
+            int size, int interval) {
+        this.scp = scp;
+        this.as = as;
+        this.store = store;
+        this.size = size;
+        this.interval = interval > 0 ? interval : DEFAULT_INTERVAL;
+    }
+
+    /**
+     * Returns the number of objects committed in one group on Association
+     * {@code as}: the configured {@code size}, limited to the maximal number
+     * of outstanding operations negotiated by the Asynchronous Operations
+     * Window; 1, if no Asynchronous Operations Window was negotiated.
+     */
+    static int sizeFor(Association as, int size) {
+        AAssociateAC ac = as.getAAssociateAC();
+        int maxOpsInvoked = ac.isAsyncOps() ? ac.getMaxOpsInvoked() : 1;
+        return maxOpsInvoked > 0 ? Math.min(size, maxOpsInvoked) : size;
+    }
+
+    boolean isEmpty() {
+        return rsps.isEmpty();
+    }
+
+    void addIAN(Attributes ian) {
+        if (ian != null)
+            ians.add(ian);
+    }
+
+    void addFile(File file) {
+        files.add(file);
+    }
+
+    void add(PresentationContext pc, Attributes rsp) {
+        pcs.add(pc);
+        rsps.add(rsp);
+        if (rsps.size() >= size)
+            commit();
+        else if (timer == null)
+            timer = as.getDevice().schedule(this, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void run() {
+        synchronized (store) {
+            timer = null;
+            if (!rsps.isEmpty())
+                commit();
+        }
+    }
+
+    void commit() {
+        try {
+            store.commit();
+        } catch (DicomServiceException e) {
+            LOG.warn(as + ": Failed to commit group of " + rsps.size()
+                    + " received objects", e);
+            failed(e);
+            return;
+        }
+        ArchiveApplicationEntity ae =
+                (ArchiveApplicationEntity) as.getApplicationEntity();
+        for (Attributes ian : ians)
+            scp.scheduleIAN(ae, ian);
+        respond();
+    }
+
+    void failed(Exception e) {
+        for (Attributes rsp : rsps)
+            setFailure(rsp, Status.ProcessingFailure,
+                    "Failed to commit group of received objects");
+        for (File file : files)
+            scp.ingestFailed(as, file, e);
+        respond();
+    }
+
+    /**
+     * Returns the C-STORE-RSP for an object, which failed to be ingested,
+     * immediately. May be invoked without lock on the {@link InstanceStore}.
+     */
+    void reject(PresentationContext pc, Attributes rsp,
+            DicomServiceException e) {
+        String msg = e.getMessage();
+        setFailure(rsp, e.getStatus(), msg != null && msg.length() > 64
+                ? msg.substring(0, 64)
+                : msg);
+        write(pc, rsp);
+    }
+
+    private static void setFailure(Attributes rsp, int status, String comment) {
+        rsp.remove(Tag.OffendingElement);
+        rsp.setInt(Tag.Status, VR.US, status);
+        if (comment != null)
+            rsp.setString(Tag.ErrorComment, VR.LO, comment);
+    }
+
+    private void respond() {
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+        for (int i = 0, n = rsps.size(); i < n; i++)
+            write(pcs.get(i), rsps.get(i));
+        pcs.clear();
+        rsps.clear();
+        ians.clear();
+        files.clear();
+    }
+
+    private void write(PresentationContext pc, Attributes rsp) {
+        try {
+            as.writeDimseRSP(pc, rsp, null);
+        } catch (AssociationStateException e) {
+            LOG.warn("{} << C-STORE-RSP failed: {}", as, e.getMessage());
+        } catch (IOException e) {
+            LOG.warn(as + " << C-STORE-RSP failed:", e);
+        }
+    }
+}
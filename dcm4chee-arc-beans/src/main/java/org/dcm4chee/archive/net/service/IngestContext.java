@@ -0,0 +1,143 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.net.service;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+import javax.xml.transform.TransformerConfigurationException;
+
+import org.dcm4che.net.ApplicationEntity;
+import org.dcm4che.net.Association;
+import org.dcm4che.net.Dimse;
+import org.dcm4che.net.TransferCapability;
+import org.dcm4che.net.pdu.PresentationContext;
+import org.dcm4chee.archive.ejb.store.InstanceStore;
+import org.dcm4chee.archive.ejb.store.StoreParam;
+import org.dcm4chee.archive.net.ArchiveApplicationEntity;
+import org.dcm4chee.archive.net.Coercion;
+
+/**
+ * State of C-STORE processing which is constant for the whole Association,
+ * built once on receipt of the first object and reused for all further
+ * objects.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+class IngestContext {
+
+    final ArchiveApplicationEntity ae;
+    final String sourceAET;
+    final ApplicationEntity sourceAE;
+    final StoreParam storeParam;
+    final InstanceStore store;
+    private final MessageDigest digest;
+    private final HashMap<String,Coercion> coercions =
+            new HashMap<String,Coercion>();
+    private IngestQueue queue;
+    private GroupCommit groupCommit;
+    private PresentationContext pc;
+
+    IngestContext(Association as, ApplicationEntity sourceAE,
+            InstanceStore store) {
+        this.ae = (ArchiveApplicationEntity) as.getApplicationEntity();
+        this.sourceAET = as.getRemoteAET();
+        this.sourceAE = sourceAE;
+        this.storeParam = ae.getStoreParam();
+        this.store = store;
+        this.digest = createMessageDigest(ae.getDigestAlgorithm());
+    }
+
+    static MessageDigest createMessageDigest(String algorithm) {
+        try {
+            return algorithm != null 
+                    ? MessageDigest.getInstance(algorithm)
+                    : null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    MessageDigest getMessageDigest() {
+        if (digest != null)
+            digest.reset();
+        return digest;
+    }
+
+    Coercion getCoercion(String cuid)
+            throws TransformerConfigurationException, IOException {
+        Coercion coercion = coercions.get(cuid);
+        if (coercion == null && !coercions.containsKey(cuid)) {
+            coercion = ae.getCoercion(cuid, Dimse.C_STORE_RQ,
+                    TransferCapability.Role.SCP, sourceAET);
+            coercions.put(cuid, coercion);
+        }
+        return coercion;
+    }
+
+    IngestQueue getIngestQueue() {
+        return queue;
+    }
+
+    void setIngestQueue(IngestQueue queue) {
+        this.queue = queue;
+    }
+
+    GroupCommit getGroupCommit() {
+        return groupCommit;
+    }
+
+    void setGroupCommit(GroupCommit groupCommit) {
+        this.groupCommit = groupCommit;
+    }
+
+    /**
+     * Presentation Context of the object currently received. Only accessed
+     * by the thread reading the Association.
+     */
+    PresentationContext getPresentationContext() {
+        return pc;
+    }
+
+    void setPresentationContext(PresentationContext pc) {
+        this.pc = pc;
+    }
+}
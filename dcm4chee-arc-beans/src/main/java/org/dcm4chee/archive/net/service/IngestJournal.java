@@ -0,0 +1,316 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.net.service;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of memory-mapped segment files. Each entry consists
+ * of its length, its CRC-32 and its payload. Entries are forced to disk
+ * on append; the position of the last applied entry is kept in a separate
+ * file, so entries appended after that position are read again after a
+ * restart. Segments preceding the applied position are deleted.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+class IngestJournal {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IngestJournal.class);
+
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final String POSITION_FILE = "applied.pos";
+    private static final int HEADER_LENGTH = 8;
+
+    static class Entry {
+        final byte[] payload;
+        final long segment;
+        final int end;
+
+        Entry(byte[] payload, long segment, int end) {
+            this.payload = payload;
+            this.segment = segment;
+            this.end = end;
+        }
+    }
+
+    private final File dir;
+    private final int segmentSize;
+    private final TreeMap<Long,MappedByteBuffer> segments =
+            new TreeMap<Long,MappedByteBuffer>();
+    private long writeSegment;
+    private MappedByteBuffer writeBuffer;
+    private long readSegment;
+    private int readOffset;
+    private long appended;
+    private long applied;
+    private boolean closed;
+
+    IngestJournal(File dir, int segmentSize) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+    }
+
+    synchronized void open() throws IOException {
+        dir.mkdirs();
+        long[] pos = readPosition();
+        File[] files = dir.listFiles(new FileFilter() {
+
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null)
+            throw new IOException("Failed to list " + dir);
+        Arrays.sort(files);
+        for (File file : files) {
+            long seq = segmentSeq(file);
+            if (seq < pos[0])
+                file.delete();
+            else
+                segments.put(seq, map(file, file.length()));
+        }
+        if (segments.isEmpty() || segments.firstKey() > pos[0]) {
+            pos[0] = segments.isEmpty() ? pos[0] : segments.firstKey();
+            pos[1] = 0;
+        }
+        if (segments.isEmpty())
+            newSegment(pos[0], segmentSize);
+        readSegment = pos[0];
+        readOffset = (int) pos[1];
+        for (Long seq : segments.keySet()) {
+            MappedByteBuffer buf = segments.get(seq);
+            int end = scan(buf, seq == readSegment ? readOffset : 0);
+            buf.position(end);
+            writeSegment = seq;
+            writeBuffer = buf;
+        }
+        if (appended > 0)
+            LOG.info("{} entries of ingest journal {} not yet applied",
+                    appended, dir);
+    }
+
+    private int scan(MappedByteBuffer buf, int offset) {
+        CRC32 crc = new CRC32();
+        int capacity = buf.capacity();
+        while (offset + HEADER_LENGTH <= capacity) {
+            int len = buf.getInt(offset);
+            if (len <= 0 || offset + HEADER_LENGTH + len > capacity)
+                break;
+            crc.reset();
+            crc.update(read(buf, offset + HEADER_LENGTH, len));
+            if ((int) crc.getValue() != buf.getInt(offset + 4))
+                break;
+            offset += HEADER_LENGTH + len;
+            appended++;
+        }
+        if (offset + 4 <= capacity && buf.getInt(offset) != 0) {
+            LOG.warn("Discard incomplete entry in ingest journal {}", dir);
+            byte[] zeros = new byte[Math.min(8192, capacity - offset)];
+            ByteBuffer dup = buf.duplicate();
+            dup.position(offset);
+            while (dup.hasRemaining())
+                dup.put(zeros, 0, Math.min(zeros.length, dup.remaining()));
+            buf.force();
+        }
+        return offset;
+    }
+
+    private static byte[] read(MappedByteBuffer buf, int offset, int len) {
+        byte[] b = new byte[len];
+        ByteBuffer dup = buf.duplicate();
+        dup.position(offset);
+        dup.get(b);
+        return b;
+    }
+
+    synchronized void append(byte[] payload) throws IOException {
+        if (closed)
+            throw new IOException("Ingest journal closed");
+
+        int size = HEADER_LENGTH + payload.length;
+        if (writeBuffer.remaining() < size)
+            newSegment(writeSegment + 1, Math.max(segmentSize, size));
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        int offset = writeBuffer.position();
+        writeBuffer.putInt(offset + 4, (int) crc.getValue());
+        writeBuffer.position(offset + HEADER_LENGTH);
+        writeBuffer.put(payload);
+        writeBuffer.putInt(offset, payload.length);
+        writeBuffer.force();
+        appended++;
+        notifyAll();
+    }
+
+    /**
+     * Returns up to {@code max} entries following the previous read entry,
+     * waiting until at least one entry is available. Returns an empty list
+     * if the journal was closed.
+     */
+    synchronized List<Entry> read(int max) throws InterruptedException {
+        Entry entry;
+        while ((entry = next()) == null)
+            if (closed)
+                return new ArrayList<Entry>(0);
+            else
+                wait();
+
+        ArrayList<Entry> entries = new ArrayList<Entry>(max);
+        entries.add(entry);
+        while (entries.size() < max && (entry = next()) != null)
+            entries.add(entry);
+        return entries;
+    }
+
+    private Entry next() {
+        for (;;) {
+            MappedByteBuffer buf = segments.get(readSegment);
+            if (readOffset + HEADER_LENGTH <= buf.capacity()) {
+                int len = buf.getInt(readOffset);
+                if (len > 0) {
+                    byte[] payload = read(buf, readOffset + HEADER_LENGTH, len);
+                    readOffset += HEADER_LENGTH + len;
+                    return new Entry(payload, readSegment, readOffset);
+                }
+            }
+            if (readSegment == writeSegment)
+                return null;
+
+            readSegment = segments.higherKey(readSegment);
+            readOffset = 0;
+        }
+    }
+
+    /**
+     * Records the position after {@code last} as applied and deletes
+     * segments preceding it.
+     */
+    synchronized void markApplied(Entry last, int count) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(new File(dir, POSITION_FILE), "rw");
+        try {
+            raf.seek(0);
+            raf.writeLong(last.segment);
+            raf.writeInt(last.end);
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+        applied += count;
+        while (segments.firstKey() < last.segment) {
+            long seq = segments.firstKey();
+            segments.remove(seq);
+            segmentFile(seq).delete();
+        }
+    }
+
+    synchronized long getAppended() {
+        return appended;
+    }
+
+    synchronized long getApplied() {
+        return applied;
+    }
+
+    synchronized long getLag() {
+        return appended - applied;
+    }
+
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+        if (writeBuffer != null)
+            writeBuffer.force();
+    }
+
+    private long[] readPosition() throws IOException {
+        File file = new File(dir, POSITION_FILE);
+        if (!file.exists())
+            return new long[] { 0L, 0L };
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return new long[] { raf.readLong(), raf.readInt() };
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void newSegment(long seq, int size) throws IOException {
+        MappedByteBuffer buf = map(segmentFile(seq), size);
+        segments.put(seq, buf);
+        writeSegment = seq;
+        writeBuffer = buf;
+    }
+
+    private File segmentFile(long seq) {
+        return new File(dir, String.format("%016x", seq) + SEGMENT_SUFFIX);
+    }
+
+    private static long segmentSeq(File file) {
+        String name = file.getName();
+        return Long.parseLong(
+                name.substring(0, name.length() - SEGMENT_SUFFIX.length()), 16);
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < size)
+                raf.setLength(size);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,492 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.net.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.net.ApplicationEntity;
+import org.dcm4che.net.service.DicomServiceException;
+import org.dcm4chee.archive.ejb.store.InstanceStore;
+import org.dcm4chee.archive.ejb.store.StoreParam;
+import org.dcm4chee.archive.net.ArchiveApplicationEntity;
+import org.dcm4chee.archive.net.ArchiveDevice;
+import org.dcm4chee.archive.persistence.Series;
+import org.dcm4chee.archive.persistence.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Optional write-ahead journal of received objects. If enabled, C-STORE
+ * requests are acknowledged as soon as the object is recorded in the
+ * {@link IngestJournal}; a background thread applies the recorded objects
+ * to the database in batches. Objects not applied before shutdown or a
+ * crash are applied after the next start. Applying an object again is
+ * harmless, because files already referenced are not registered twice.
+ * Rejection Notes and duplicates are not journaled, but stored before
+ * acknowledging the C-STORE request. Entries which cannot be applied are
+ * moved to a dead letter journal in sub-directory {@code deadletter}.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+public class IngestJournalService implements IngestJournalServiceMBean, Runnable {
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(IngestJournalService.class);
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_INTERVAL = 10000L;
+    private static final String DEAD_LETTER_DIR = "deadletter";
+    private static final int DEAD_LETTER_SEGMENT_SIZE = 1024 * 1024;
+
+    private ArchiveDevice device;
+    private Executor executor;
+    private IanSCU ianSCU;
+    private DerivedAttributesScheduler derivedAttributesScheduler;
+    private String directory;
+    private int segmentSize = 64 * 1024 * 1024;
+    private int batchSize = 100;
+    private volatile IngestJournal journal;
+    private IngestJournal deadLetterJournal;
+    private final List<IngestJournal.Entry> deadLetters =
+            new ArrayList<IngestJournal.Entry>();
+    private volatile boolean stopped;
+    private CountDownLatch finished;
+    private final HashMap<String,AEStore> stores = new HashMap<String,AEStore>();
+    private final AtomicLong ignored = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private static class AEStore {
+        final ArchiveApplicationEntity ae;
+        final StoreParam storeParam;
+        final InstanceStore store;
+        final List<Attributes> ians = new ArrayList<Attributes>();
+
+        AEStore(ArchiveApplicationEntity ae) throws DicomServiceException {
+            this.ae = ae;
+            this.storeParam = ae.getStoreParam();
+            storeParam.setGroupCommitSize(Integer.MAX_VALUE);
+            this.store = (InstanceStore) JNDIUtils.lookup(InstanceStore.JNDI_NAME);
+            try {
+                store.selectFileSystem(ae.getFileSystemGroupID());
+            } catch (DicomServiceException e) {
+                store.close();
+                throw e;
+            }
+        }
+
+        boolean isOnCurrentFileSystem(File file) {
+            String dir = store.getCurrentFileSystem().getDirectory().getPath();
+            return file.getPath().startsWith(dir + File.separatorChar);
+        }
+    }
+
+    private static class Record {
+        String aet;
+        String sourceAET;
+        File file;
+        String digest;
+        String tsuid;
+        Attributes ds;
+        Attributes modified;
+
+        byte[] encode() throws IOException {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream(4096);
+            DataOutputStream out = new DataOutputStream(bout);
+            out.writeUTF(aet);
+            out.writeUTF(sourceAET != null ? sourceAET : "");
+            out.writeUTF(file.getPath());
+            out.writeUTF(digest != null ? digest : "");
+            out.writeUTF(tsuid);
+            write(out, Utils.encodeAttributes(ds));
+            write(out, Utils.encodeAttributes(modified));
+            out.flush();
+            return bout.toByteArray();
+        }
+
+        static Record decode(byte[] b) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(b));
+            Record r = new Record();
+            r.aet = in.readUTF();
+            r.sourceAET = emptyToNull(in.readUTF());
+            r.file = new File(in.readUTF());
+            r.digest = emptyToNull(in.readUTF());
+            r.tsuid = in.readUTF();
+            r.ds = Utils.decodeAttributes(read(in));
+            r.modified = Utils.decodeAttributes(read(in));
+            return r;
+        }
+
+        private static void write(DataOutputStream out, byte[] b)
+                throws IOException {
+            out.writeInt(b.length);
+            out.write(b);
+        }
+
+        private static byte[] read(DataInputStream in) throws IOException {
+            byte[] b = new byte[in.readInt()];
+            in.readFully(b);
+            return b;
+        }
+
+        private static String emptyToNull(String s) {
+            return s.isEmpty() ? null : s;
+        }
+    }
+
+    public final ArchiveDevice getDevice() {
+        return device;
+    }
+
+    public final void setDevice(ArchiveDevice device) {
+        this.device = device;
+    }
+
+    public final Executor getExecutor() {
+        return executor;
+    }
+
+    public final void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public final IanSCU getIanSCU() {
+        return ianSCU;
+    }
+
+    public final void setIanSCU(IanSCU ianSCU) {
+        this.ianSCU = ianSCU;
+    }
+
+    public final DerivedAttributesScheduler getDerivedAttributesScheduler() {
+        return derivedAttributesScheduler;
+    }
+
+    public final void setDerivedAttributesScheduler(
+            DerivedAttributesScheduler derivedAttributesScheduler) {
+        this.derivedAttributesScheduler = derivedAttributesScheduler;
+    }
+
+    @Override
+    public final String getDirectory() {
+        return directory;
+    }
+
+    public final void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public final int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public final void setSegmentSize(int segmentSize) {
+        if (segmentSize <= 0)
+            throw new IllegalArgumentException("segmentSize: " + segmentSize);
+        this.segmentSize = segmentSize;
+    }
+
+    @Override
+    public final int getBatchSize() {
+        return batchSize;
+    }
+
+    @Override
+    public final void setBatchSize(int batchSize) {
+        if (batchSize <= 0)
+            throw new IllegalArgumentException("batchSize: " + batchSize);
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return journal != null;
+    }
+
+    @Override
+    public long getAppendedEntries() {
+        IngestJournal journal = this.journal;
+        return journal != null ? journal.getAppended() : 0L;
+    }
+
+    @Override
+    public long getAppliedEntries() {
+        IngestJournal journal = this.journal;
+        return journal != null ? journal.getApplied() : 0L;
+    }
+
+    @Override
+    public long getIgnoredEntries() {
+        return ignored.get();
+    }
+
+    @Override
+    public long getFailedEntries() {
+        return failed.get();
+    }
+
+    @Override
+    public long getLag() {
+        IngestJournal journal = this.journal;
+        return journal != null ? journal.getLag() : 0L;
+    }
+
+    public void start() throws IOException {
+        if (directory == null || directory.isEmpty())
+            return;
+
+        IngestJournal journal = new IngestJournal(new File(directory), segmentSize);
+        journal.open();
+        IngestJournal deadLetterJournal = new IngestJournal(
+                new File(directory, DEAD_LETTER_DIR), DEAD_LETTER_SEGMENT_SIZE);
+        try {
+            deadLetterJournal.open();
+        } catch (IOException e) {
+            journal.close();
+            throw e;
+        }
+        this.deadLetterJournal = deadLetterJournal;
+        stopped = false;
+        finished = new CountDownLatch(1);
+        this.journal = journal;
+        executor.execute(this);
+    }
+
+    public void stop() {
+        IngestJournal journal = this.journal;
+        if (journal == null)
+            return;
+
+        stopped = true;
+        journal.close();
+        try {
+            finished.await();
+        } catch (InterruptedException e) {
+            LOG.warn("Interrupted while waiting for applier of ingest journal", e);
+        }
+        deadLetterJournal.close();
+        this.journal = null;
+    }
+
+    void append(String aet, String sourceAET, Attributes ds,
+            Attributes modified, File file, String digest, String tsuid)
+            throws IOException {
+        Record r = new Record();
+        r.aet = aet;
+        r.sourceAET = sourceAET;
+        r.ds = ds;
+        r.modified = modified;
+        r.file = file;
+        r.digest = digest;
+        r.tsuid = tsuid;
+        journal.append(r.encode());
+    }
+
+    @Override
+    public void run() {
+        List<IngestJournal.Entry> entries = null;
+        int attempts = 0;
+        try {
+            while (!stopped) {
+                if (entries == null) {
+                    entries = journal.read(batchSize);
+                    if (entries.isEmpty())
+                        break;
+                }
+                try {
+                    if (attempts < MAX_ATTEMPTS)
+                        applyBatch(entries);
+                    else
+                        applyOneByOne(entries);
+                    journal.markApplied(entries.get(entries.size() - 1),
+                            entries.size());
+                    entries = null;
+                    attempts = 0;
+                } catch (Exception e) {
+                    attempts++;
+                    LOG.warn("Failed to apply " + entries.size()
+                            + " journaled objects - retry", e);
+                    discardStores();
+                    Thread.sleep(RETRY_INTERVAL);
+                }
+            }
+        } catch (InterruptedException e) {
+            LOG.info("Interrupted applier of ingest journal");
+        } finally {
+            closeStores();
+            finished.countDown();
+        }
+    }
+
+    private void applyBatch(List<IngestJournal.Entry> entries)
+            throws Exception {
+        for (IngestJournal.Entry entry : entries)
+            apply(entry);
+        commitStores();
+        writeDeadLetters();
+    }
+
+    private void applyOneByOne(List<IngestJournal.Entry> entries) {
+        for (IngestJournal.Entry entry : entries)
+            try {
+                apply(entry);
+                commitStores();
+                writeDeadLetters();
+            } catch (Exception e) {
+                LOG.error("Failed to apply journaled object", e);
+                discardStores();
+                deadLetters.add(entry);
+                writeDeadLetters();
+            }
+    }
+
+    private void apply(IngestJournal.Entry entry) throws Exception {
+        Record r = Record.decode(entry.payload);
+        AEStore s = stores.get(r.aet);
+        if (s == null) {
+            ApplicationEntity ae = device.getApplicationEntity(r.aet);
+            if (!(ae instanceof ArchiveApplicationEntity)) {
+                deadLetters.add(entry);
+                LOG.error("No such Archive AE: {} - preserve {}", r.aet, r.file);
+                return;
+            }
+            stores.put(r.aet, s = new AEStore((ArchiveApplicationEntity) ae));
+        }
+        if (!s.isOnCurrentFileSystem(r.file)) {
+            try {
+                s.store.selectFileSystem(s.ae.getFileSystemGroupID(), r.file);
+            } catch (DicomServiceException e) {
+                deadLetters.add(entry);
+                LOG.error("{} - preserve {}", e.getMessage(), r.file);
+                return;
+            }
+        }
+        try {
+            if (!s.store.addFileRef(r.sourceAET, r.ds, r.modified, r.file,
+                    r.digest, r.tsuid, s.storeParam)) {
+                ignored.incrementAndGet();
+                if (!r.file.delete())
+                    LOG.warn("Failed to delete {}", r.file);
+            } else if (s.ae.hasIANDestinations()) {
+                addIAN(s, s.store.createIANforPreviousMPPS());
+                for (Attributes ian : s.store.createIANsforRejectionNote())
+                    addIAN(s, ian);
+            }
+        } catch (DicomServiceException e) {
+            deadLetters.add(entry);
+            LOG.error("Failed to apply journaled object - preserve " + r.file, e);
+        }
+    }
+
+    private void commitStores() throws DicomServiceException {
+        for (AEStore s : stores.values()) {
+            s.store.commit();
+            for (Attributes ian : s.ians)
+                scheduleIAN(s.ae, ian);
+            s.ians.clear();
+            if (s.storeParam.getDerivedAttributesMaxStaleness() > 0)
+                derivedAttributesScheduler.schedule(
+                        s.store.removeDirtySeries(), s.storeParam);
+        }
+    }
+
+    private void closeStores() {
+        for (AEStore s : stores.values()) {
+            try {
+                if (s.ae.hasIANDestinations())
+                    scheduleIAN(s.ae, s.store.createIANforCurrentMPPS());
+                Collection<Series> dirtySeries = s.store.removeDirtySeries();
+                s.store.close();
+                if (!dirtySeries.isEmpty())
+                    derivedAttributesScheduler.schedule(dirtySeries, s.storeParam);
+            } catch (Exception e) {
+                LOG.warn("Failed to close Instance Store of " 
+                        + s.ae.getAETitle(), e);
+            }
+        }
+        stores.clear();
+    }
+
+    private void discardStores() {
+        for (AEStore s : new ArrayList<AEStore>(stores.values()))
+            try {
+                s.store.close();
+            } catch (Exception e) {
+                // already discarded by the container
+            }
+        stores.clear();
+        deadLetters.clear();
+    }
+
+    private void writeDeadLetters() {
+        for (IngestJournal.Entry entry : deadLetters) {
+            failed.incrementAndGet();
+            try {
+                deadLetterJournal.append(entry.payload);
+            } catch (IOException e) {
+                LOG.error("Failed to write entry to dead letter journal", e);
+            }
+        }
+        deadLetters.clear();
+    }
+
+    private static void addIAN(AEStore s, Attributes ian) {
+        if (ian != null)
+            s.ians.add(ian);
+    }
+
+    private void scheduleIAN(ArchiveApplicationEntity ae, Attributes ian) {
+        if (ian != null)
+            for (String remoteAET : ae.getIANDestinations())
+                ianSCU.scheduleIAN(ae.getAETitle(), remoteAET, ian, 0, 0);
+    }
+}
@@ -0,0 +1,189 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.net.service;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.net.Association;
+import org.dcm4che.net.Status;
+import org.dcm4che.net.pdu.PresentationContext;
+import org.dcm4che.net.service.DicomServiceException;
+import org.dcm4chee.archive.ejb.store.InstanceStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded queue of received objects of one Association, drained in order
+ * and in batches by a separate thread, which ingests the objects into the
+ * database, while the thread reading the Association continues to receive
+ * further objects. The C-STORE-RSPs are returned by the {@link GroupCommit}
+ * of the Association, after the objects are committed, or - if the
+ * Association is configured to respond on file written - before the
+ * objects are queued.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+class IngestQueue implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IngestQueue.class);
+
+    private static final Task END = new Task(null, null, null, null, null, null);
+
+    private final CStoreSCPImpl scp;
+    private final Association as;
+    private final InstanceStore store;
+    private final GroupCommit groupCommit;
+    private final BlockingQueue<Task> queue;
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile boolean closed;
+
+    static class Task {
+
+        final PresentationContext pc;
+        final Attributes fmi;
+        final Attributes ds;
+        final File file;
+        final String digest;
+        final Attributes rsp;
+
+        Task(PresentationContext pc, Attributes fmi, Attributes ds, File file,
+                String digest, Attributes rsp) {
+            this.pc = pc;
+            this.fmi = fmi;
+            this.ds = ds;
+            this.file = file;
+            this.digest = digest;
+            this.rsp = rsp;
+        }
+    }
+
+    /**
+     * @param groupCommit returns the C-STORE-RSPs after the commit of the
+     *        objects; {@code null}, if the C-STORE-RSPs are returned on
+     *        file written
+     */
+    IngestQueue(CStoreSCPImpl scp, Association as, InstanceStore store,
+            GroupCommit groupCommit, int capacity) {
+        this.scp = scp;
+        this.as = as;
+        this.store = store;
+        this.groupCommit = groupCommit;
+        this.queue = new ArrayBlockingQueue<Task>(capacity + 1);
+    }
+
+    void start() {
+        as.getDevice().execute(this);
+    }
+
+    void put(Task task) throws DicomServiceException {
+        if (closed)
+            throw new IllegalStateException("Ingest queue closed");
+        if (!queue.offer(task)) {
+            LOG.debug("{}: Ingest queue full - wait", as);
+            try {
+                queue.put(task);
+            } catch (InterruptedException e) {
+                throw new DicomServiceException(Status.OutOfResources, e);
+            }
+        }
+    }
+
+    void close() {
+        closed = true;
+        try {
+            queue.put(END);
+            finished.await();
+        } catch (InterruptedException e) {
+            LOG.warn(as + ": Interrupted while waiting for ingest of "
+                    + queue.size() + " received objects", e);
+        }
+    }
+
+    @Override
+    public void run() {
+        ArrayList<Task> batch = new ArrayList<Task>();
+        try {
+            boolean end = false;
+            while (!end) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                end = batch.get(batch.size()-1) == END;
+                if (end)
+                    batch.remove(batch.size()-1);
+                ingest(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            LOG.warn(as + ": Interrupted ingest of received objects", e);
+        } finally {
+            finished.countDown();
+        }
+    }
+
+    private void ingest(ArrayList<Task> batch) {
+        if (batch.isEmpty())
+            return;
+
+        for (Task task : batch) {
+            try {
+                scp.ingest(as, task.fmi, task.ds, task.file, task.digest, task.rsp);
+                if (groupCommit != null)
+                    synchronized (store) {
+                        groupCommit.add(task.pc, task.rsp);
+                    }
+            } catch (DicomServiceException e) {
+                scp.ingestFailed(as, task.file, e);
+                if (groupCommit != null)
+                    groupCommit.reject(task.pc, task.rsp, e);
+            }
+        }
+        // commit objects of the batch, not already committed by reaching
+        // the configured group commit size
+        if (groupCommit != null)
+            synchronized (store) {
+                if (!groupCommit.isEmpty())
+                    groupCommit.commit();
+            }
+    }
+}
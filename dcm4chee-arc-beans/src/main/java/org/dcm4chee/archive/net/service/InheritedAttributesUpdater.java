@@ -0,0 +1,193 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.net.service;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ejb.EJB;
+
+import org.dcm4chee.archive.ejb.store.InheritedAttributesUpdate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Recalculates outdated inherited attributes of Series in background.
+ * Inherited attributes of a Series get outdated by updates of the Series,
+ * its Study or Patient, which only mark the updated entity by an indexed
+ * flag to keep the update cheap. Until recalculated, queries decode the
+ * attributes of Patient, Study and Series separately.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+public class InheritedAttributesUpdater
+        implements InheritedAttributesUpdaterMBean {
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(InheritedAttributesUpdater.class);
+
+    @EJB
+    private InheritedAttributesUpdate inheritedAttributesUpdate;
+
+    private int interval = 60;
+    private int batchSize = 100;
+    private ScheduledExecutorService executor;
+    private final AtomicLong updated = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    public final int getInterval() {
+        return interval;
+    }
+
+    public final void setInterval(int interval) {
+        if (interval <= 0)
+            throw new IllegalArgumentException("interval: " + interval);
+        this.interval = interval;
+    }
+
+    public final int getBatchSize() {
+        return batchSize;
+    }
+
+    public final void setBatchSize(int batchSize) {
+        if (batchSize <= 0)
+            throw new IllegalArgumentException("batchSize: " + batchSize);
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public long getUpdated() {
+        return updated.get();
+    }
+
+    @Override
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    public void start() {
+        executor = Executors.newSingleThreadScheduledExecutor();
+        executor.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    update();
+                } catch (Exception e) {
+                    LOG.warn("Failed to update inherited attributes of Series",
+                            e);
+                }
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+        executor = null;
+    }
+
+    @Override
+    public synchronized void update() {
+        int count = updatePatients() + updateStudies() + updateSeries();
+        if (count > 0)
+            LOG.info("Updated inherited attributes of {} Series", count);
+    }
+
+    private int updatePatients() {
+        long afterPk = 0L;
+        int count = 0;
+        List<Object[]> patients;
+        do {
+            patients = inheritedAttributesUpdate.findPatients(afterPk, batchSize);
+            for (Object[] patient : patients) {
+                if (Thread.currentThread().isInterrupted())
+                    return count;
+                afterPk = (Long) patient[0];
+                count += inheritedAttributesUpdate
+                        .updateInheritedAttributesOfPatient(afterPk,
+                                (Integer) patient[1]);
+            }
+        } while (patients.size() == batchSize);
+        updated.addAndGet(count);
+        return count;
+    }
+
+    private int updateStudies() {
+        long afterPk = 0L;
+        int count = 0;
+        List<Object[]> studies;
+        do {
+            studies = inheritedAttributesUpdate.findStudies(afterPk, batchSize);
+            for (Object[] study : studies) {
+                if (Thread.currentThread().isInterrupted())
+                    return count;
+                afterPk = (Long) study[0];
+                count += inheritedAttributesUpdate
+                        .updateInheritedAttributesOfStudy(afterPk,
+                                (Integer) study[1]);
+            }
+        } while (studies.size() == batchSize);
+        updated.addAndGet(count);
+        return count;
+    }
+
+    private int updateSeries() {
+        long afterPk = 0L;
+        int count = 0;
+        List<Long> pks;
+        do {
+            pks = inheritedAttributesUpdate.findSeriesPks(afterPk, batchSize);
+            for (Long pk : pks) {
+                if (Thread.currentThread().isInterrupted())
+                    return count;
+                if (inheritedAttributesUpdate.updateInheritedAttributes(pk)) {
+                    updated.incrementAndGet();
+                    count++;
+                } else
+                    skipped.incrementAndGet();
+                afterPk = pk;
+            }
+        } while (pks.size() == batchSize);
+        return count;
+    }
+
+}
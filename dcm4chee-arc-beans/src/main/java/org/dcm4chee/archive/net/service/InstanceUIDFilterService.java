@@ -0,0 +1,142 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.net.service;
+
+import java.util.concurrent.Executor;
+
+import javax.ejb.EJB;
+
+import org.dcm4chee.archive.ejb.store.BloomFilter;
+import org.dcm4chee.archive.ejb.store.InstanceUIDFilter;
+import org.dcm4chee.archive.ejb.store.InstanceUIDFilterLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads the SOP Instance UIDs of all stored instances into the
+ * {@link InstanceUIDFilter} in background. Disabled, if
+ * {@code expectedInsertions} is 0.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+public class InstanceUIDFilterService implements InstanceUIDFilterServiceMBean {
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(InstanceUIDFilterService.class);
+
+    @EJB
+    private InstanceUIDFilterLoader loader;
+
+    private Executor executor;
+    private int expectedInsertions;
+    private double falsePositiveProbability = 0.01;
+
+    public final Executor getExecutor() {
+        return executor;
+    }
+
+    public final void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public final int getExpectedInsertions() {
+        return expectedInsertions;
+    }
+
+    public final void setExpectedInsertions(int expectedInsertions) {
+        this.expectedInsertions = expectedInsertions;
+    }
+
+    @Override
+    public final double getFalsePositiveProbability() {
+        return falsePositiveProbability;
+    }
+
+    public final void setFalsePositiveProbability(double falsePositiveProbability) {
+        this.falsePositiveProbability = falsePositiveProbability;
+    }
+
+    @Override
+    public boolean isReady() {
+        return InstanceUIDFilter.isReady();
+    }
+
+    @Override
+    public long getNumBits() {
+        BloomFilter filter = InstanceUIDFilter.getFilter();
+        return filter != null ? filter.getNumBits() : 0L;
+    }
+
+    public void start() {
+        if (expectedInsertions > 0)
+            reload();
+    }
+
+    public void stop() {
+        InstanceUIDFilter.disable();
+    }
+
+    @Override
+    public void reload() {
+        final BloomFilter filter =
+                new BloomFilter(expectedInsertions, falsePositiveProbability);
+        InstanceUIDFilter.reset(filter);
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    long start = System.currentTimeMillis();
+                    int count = loader.load(filter);
+                    InstanceUIDFilter.setReady(filter);
+                    LOG.info("Loaded {} SOP Instance UIDs into filter in {} ms",
+                            count, System.currentTimeMillis() - start);
+                } catch (Exception e) {
+                    LOG.warn("Failed to load SOP Instance UIDs into filter", e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void disable() {
+        InstanceUIDFilter.disable();
+    }
+}
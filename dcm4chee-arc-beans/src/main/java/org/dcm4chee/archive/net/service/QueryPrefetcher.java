@@ -0,0 +1,164 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.net.service;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.net.Association;
+import org.dcm4chee.archive.ejb.query.CompositeQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded queue of matches of one C-FIND, filled by a separate thread,
+ * which fetches, decodes and adjusts the matches ahead of sending the
+ * C-FIND-RSPs.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+class QueryPrefetcher implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QueryPrefetcher.class);
+
+    private static final Attributes END = new Attributes(0);
+
+    private final QueryTaskImpl task;
+    private final Association as;
+    private final CompositeQuery query;
+    private final BlockingQueue<Attributes> queue;
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile boolean canceled;
+    private volatile Exception failure;
+    private volatile boolean maxNumberOfMatchesExceeded;
+    private Attributes next;
+
+    QueryPrefetcher(QueryTaskImpl task, Association as, CompositeQuery query,
+            int capacity) {
+        this.task = task;
+        this.as = as;
+        this.query = query;
+        this.queue = new ArrayBlockingQueue<Attributes>(capacity + 1);
+    }
+
+    void start() {
+        as.getDevice().execute(this);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!canceled && query.hasMoreMatches()) {
+                Attributes match = task.adjustMatch(query.nextMatch());
+                if (match != null)
+                    queue.put(match);
+            }
+            maxNumberOfMatchesExceeded = query.isMaxNumberOfMatchesExceeded();
+        } catch (Exception e) {
+            failure = e;
+        } finally {
+            if (!canceled)
+                try {
+                    queue.put(END);
+                } catch (InterruptedException e) {
+                    LOG.warn(as + ": Interrupted prefetch of C-FIND matches", e);
+                    if (failure == null)
+                        failure = e;
+                    // discard fetched matches, so the waiting DIMSE thread
+                    // takes END and fails, instead of blocking forever
+                    queue.clear();
+                    queue.offer(END);
+                    Thread.currentThread().interrupt();
+                }
+            finished.countDown();
+        }
+    }
+
+    boolean hasMoreMatches() throws Exception {
+        if (next == null)
+            next = queue.take();
+        if (next != END)
+            return true;
+        if (failure != null)
+            throw failure;
+        return false;
+    }
+
+    Attributes nextMatch() throws Exception {
+        if (!hasMoreMatches())
+            throw new NoSuchElementException();
+        Attributes match = next;
+        next = null;
+        return match;
+    }
+
+    /**
+     * Only valid after {@link #hasMoreMatches()} returned {@code false}.
+     */
+    boolean isMaxNumberOfMatchesExceeded() {
+        return maxNumberOfMatchesExceeded;
+    }
+
+    /**
+     * Stops fetching further matches without waiting for the completion of
+     * the current fetch, discarding already fetched matches.
+     */
+    void cancel() {
+        canceled = true;
+        queue.clear();
+        queue.offer(END);
+    }
+
+    /**
+     * Stops fetching further matches and waits until the prefetching thread
+     * does no longer access the query.
+     */
+    void close() {
+        cancel();
+        try {
+            finished.await();
+        } catch (InterruptedException e) {
+            LOG.warn(as + ": Interrupted while waiting for prefetch of"
+                    + " C-FIND matches", e);
+        }
+    }
+}
@@ -62,10 +62,14 @@ class QueryTaskImpl extends BasicQueryTask {
     private final Issuer issuerOfPatientID;
     private final Issuer issuerOfAccessionNumber;
     private final boolean returnOtherPatientIDs;
+    private final int maxNumberOfMatches;
+    private final boolean optionalKeyNotSupported;
+    private final int prefetchSize;
+    private volatile QueryPrefetcher prefetcher;
 
     public QueryTaskImpl(Association as, PresentationContext pc, Attributes rq,
             Attributes keys, CompositeQuery query, QueryParam queryParam,
-            IDWithIssuer[] pids) throws DicomServiceException {
+            IDWithIssuer[] pids, int prefetchSize) throws DicomServiceException {
         super(as, pc, rq, keys);
         this.query = query;
         this.pids = pids;
@@ -79,10 +83,18 @@ class QueryTaskImpl extends BasicQueryTask {
                 ? Issuer.valueOf(keys.getNestedDataset(Tag.IssuerOfAccessionNumberSequence))
                 : queryParam.getDefaultIssuerOfAccessionNumber();
         this.returnOtherPatientIDs = queryParam.isReturnOtherPatientIDs();
+        this.maxNumberOfMatches = queryParam.getMaxNumberOfMatches();
+        this.optionalKeyNotSupported = query.optionalKeyNotSupported();
+        this.prefetchSize = prefetchSize;
     }
 
     @Override
     protected Attributes adjust(Attributes match) {
+        // prefetched matches are already adjusted
+        return prefetcher != null ? match : adjustMatch(match);
+    }
+
+    Attributes adjustMatch(Attributes match) {
         adjustPatientID(match);
         adjustAccessionNumber(match);
         Attributes filtered = new Attributes(match.size());
@@ -138,24 +150,51 @@ class QueryTaskImpl extends BasicQueryTask {
         }
     }
 
+    @Override
+    public void onCancelRQ(Association as) {
+        super.onCancelRQ(as);
+        QueryPrefetcher prefetcher = this.prefetcher;
+        if (prefetcher != null)
+            prefetcher.cancel();
+    }
+
     @Override
     protected void close() {
-         query.close();
+        if (prefetcher != null)
+            prefetcher.close();
+        query.close();
     }
 
     @Override
     protected boolean hasMoreMatches() throws DicomServiceException {
+        if (prefetchSize > 0 && prefetcher == null) {
+            QueryPrefetcher prefetcher =
+                    new QueryPrefetcher(this, as, query, prefetchSize);
+            prefetcher.start();
+            this.prefetcher = prefetcher;
+        }
+        boolean hasMoreMatches;
         try {
-            return query.hasMoreMatches();
+            hasMoreMatches = prefetcher != null
+                    ? prefetcher.hasMoreMatches()
+                    : query.hasMoreMatches();
         }  catch (Exception e) {
             throw wrapException(Status.UnableToProcess, e);
         }
+        if (!hasMoreMatches && (prefetcher != null
+                ? prefetcher.isMaxNumberOfMatchesExceeded()
+                : query.isMaxNumberOfMatchesExceeded()))
+            throw new DicomServiceException(Status.OneOrMoreFailures,
+                    "Number of matches exceeds limit of " + maxNumberOfMatches);
+        return hasMoreMatches;
     }
 
     @Override
     protected Attributes nextMatch() throws DicomServiceException {
         try {
-            return query.nextMatch();
+            return prefetcher != null
+                    ? prefetcher.nextMatch()
+                    : query.nextMatch();
         }  catch (Exception e) {
             throw wrapException(Status.UnableToProcess, e);
         }
@@ -163,6 +202,6 @@ class QueryTaskImpl extends BasicQueryTask {
 
     @Override
     protected boolean optionalKeyNotSupported(Attributes match) {
-        return query.optionalKeyNotSupported();
+        return optionalKeyNotSupported;
     }
 }
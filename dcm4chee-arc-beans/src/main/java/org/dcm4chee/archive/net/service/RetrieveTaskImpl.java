@@ -41,14 +41,11 @@ package org.dcm4chee.archive.net.service;
 import java.io.IOException;
 import java.util.List;
 
-import javax.xml.transform.Templates;
-
 import org.dcm4che.data.Attributes;
 import org.dcm4che.data.Sequence;
 import org.dcm4che.data.Tag;
 import org.dcm4che.data.VR;
 import org.dcm4che.io.DicomInputStream;
-import org.dcm4che.io.SAXTransformer;
 import org.dcm4che.net.Association;
 import org.dcm4che.net.DataWriter;
 import org.dcm4che.net.DataWriterAdapter;
@@ -63,6 +60,7 @@ import org.dcm4che.util.SafeClose;
 import org.dcm4chee.archive.ejb.query.IDWithIssuer;
 import org.dcm4chee.archive.ejb.query.PatientNameQuery;
 import org.dcm4chee.archive.net.ArchiveApplicationEntity;
+import org.dcm4chee.archive.net.Coercion;
 
 /**
  * @author Gunter Zeilinger <gunterze@gmail.com>
@@ -109,13 +107,17 @@ class RetrieveTaskImpl extends BasicRetrieveTask {
     protected DataWriter createDataWriter(InstanceLocator inst, String tsuid)
             throws IOException {
         Attributes attrs;
-        DicomInputStream in = new DicomInputStream(inst.getFile());
+        boolean containerEntry = ContainerStorage.isContainerEntry(inst.uri);
+        DicomInputStream in = containerEntry
+                ? ContainerStorage.openEntry(inst.uri)
+                : new DicomInputStream(inst.getFile());
         try {
             if (withoutBulkData) {
                 in.setIncludeBulkData(false);
                 attrs = in.readDataset(-1, Tag.PixelData);
             } else {
-                in.setIncludeBulkDataLocator(true);
+                // bulk data of container entries is read into memory
+                in.setIncludeBulkDataLocator(!containerEntry);
                 attrs = in.readDataset(-1, -1);
             }
         } finally {
@@ -126,10 +128,10 @@ class RetrieveTaskImpl extends BasicRetrieveTask {
         adjustAccessionNumber(attrs);
         ArchiveApplicationEntity ae = (ArchiveApplicationEntity) as.getApplicationEntity();
         try {
-            Templates tpl = ae.getAttributeCoercionTemplates(
+            Coercion coercion = ae.getCoercion(
                     inst.cuid, Dimse.C_STORE_RQ, Role.SCU, as.getRemoteAET());
-            if (tpl != null)
-                attrs.update(SAXTransformer.transform(attrs, tpl, false, false), null);
+            if (coercion != null)
+                coercion.coerce(attrs, null);
         } catch (Exception e) {
             throw new IOException(e);
         }
@@ -0,0 +1,101 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.VR;
+import org.junit.Test;
+
+/**
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+public class CoercionRulesTest {
+
+    @Test
+    public void testCoerce() {
+        CoercionRules rules = new CoercionRules(Arrays.asList(
+                "# test rules",
+                "set InstitutionName Hospital",
+                "delete 00100030",
+                "copy PatientID OtherPatientIDs",
+                "map Modality CT=CT1 MR=MR1"));
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.InstitutionName, VR.LO, "Other");
+        attrs.setString(Tag.PatientBirthDate, VR.DA, "19700101");
+        attrs.setString(Tag.PatientID, VR.LO, "PID");
+        attrs.setString(Tag.Modality, VR.CS, "MR");
+        Attributes modified = new Attributes();
+        rules.coerce(attrs, modified);
+        assertEquals("Hospital", attrs.getString(Tag.InstitutionName));
+        assertFalse(attrs.contains(Tag.PatientBirthDate));
+        assertEquals("PID", attrs.getString(Tag.OtherPatientIDs));
+        assertEquals("MR1", attrs.getString(Tag.Modality));
+        assertEquals("Other", modified.getString(Tag.InstitutionName));
+        assertEquals("19700101", modified.getString(Tag.PatientBirthDate));
+        assertEquals("MR", modified.getString(Tag.Modality));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRule() {
+        new CoercionRules(Arrays.asList("replace PatientID X"));
+    }
+
+    @Test
+    public void testQuotedValues() {
+        CoercionRules rules = new CoercionRules(Arrays.asList(
+                "set InstitutionName \"General  Hospital\"",
+                "map StationName \"CT 1\"=CT1 \"MR 1\"=\"MR ONE\""));
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.StationName, VR.SH, "MR 1");
+        rules.coerce(attrs, null);
+        assertEquals("General  Hospital", attrs.getString(Tag.InstitutionName));
+        assertEquals("MR ONE", attrs.getString(Tag.StationName));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingClosingQuote() {
+        new CoercionRules(Arrays.asList("set InstitutionName \"Hospital"));
+    }
+}
@@ -0,0 +1,308 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.net.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.UID;
+import org.dcm4che.data.VR;
+import org.dcm4che.io.DicomInputStream;
+import org.dcm4che.io.DicomOutputStream;
+import org.dcm4che.util.SafeClose;
+import org.dcm4chee.archive.ejb.store.ContainerMgt;
+import org.dcm4chee.archive.ejb.store.FileSystemMgt;
+import org.dcm4chee.archive.persistence.Availability;
+import org.dcm4chee.archive.persistence.FileSystem;
+import org.dcm4chee.archive.persistence.FileSystemStatus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+public class ContainerStorageTest {
+
+    private File dir;
+    private FileSystem fs;
+    private ContainerStorage storage;
+    private EntryRegistry registry;
+
+    /**
+     * Keeps entries of container files in memory instead of the database.
+     */
+    private static class EntryRegistry implements ContainerMgt {
+
+        final HashMap<String,List<Object[]>> entries =
+                new HashMap<String,List<Object[]>>();
+
+        void add(long pk, String filePath, long offset, long length) {
+            List<Object[]> list = entries.get(filePath);
+            if (list == null)
+                entries.put(filePath, list = new ArrayList<Object[]>());
+            list.add(new Object[] { pk, offset, length, null });
+        }
+
+        @Override
+        public List<Object[]> findEntries(long fsPk, String filePath) {
+            List<Object[]> list = entries.get(filePath);
+            return list != null
+                    ? new ArrayList<Object[]>(list)
+                    : Collections.<Object[]>emptyList();
+        }
+
+        @Override
+        public void relocateEntries(long[] pks, String filePath,
+                long[] offsets) {
+            for (int i = 0; i < pks.length; i++)
+                add(pks[i], filePath, offsets[i], remove(pks[i]));
+        }
+
+        @Override
+        public int removeEntries(Collection<Long> pks) {
+            for (Long pk : pks)
+                remove(pk);
+            return pks.size();
+        }
+
+        private long remove(long pk) {
+            for (List<Object[]> list : entries.values())
+                for (Iterator<Object[]> it = list.iterator(); it.hasNext();) {
+                    Object[] entry = it.next();
+                    if ((Long) entry[0] == pk) {
+                        it.remove();
+                        return (Long) entry[2];
+                    }
+                }
+            throw new IllegalArgumentException("pk: " + pk);
+        }
+    }
+
+    private class SingleFileSystem implements FileSystemMgt {
+
+        @Override
+        public List<FileSystem> findAll() {
+            return Collections.singletonList(fs);
+        }
+
+        @Override
+        public FileSystem rollover(long pk) {
+            return null;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("cs", null);
+        dir.delete();
+        dir.mkdir();
+        fs = new FileSystem();
+        fs.setGroupID("TEST");
+        fs.setURI(dir.toURI().toString());
+        fs.setAvailability(Availability.ONLINE);
+        fs.setStatus(FileSystemStatus.RW);
+        registry = new EntryRegistry();
+        storage = new ContainerStorage();
+        storage.setGracePeriod(0);
+        inject(storage, "containerMgt", registry);
+        inject(storage, "fileSystemMgt", new SingleFileSystem());
+    }
+
+    @After
+    public void tearDown() {
+        storage.stop();
+        delete(dir);
+    }
+
+    private static void inject(Object target, String name, Object value)
+            throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null)
+            for (File f : files)
+                delete(f);
+        file.delete();
+    }
+
+    @Test
+    public void testAppend() throws Exception {
+        File file1 = writeObject("1.2.3.1");
+        File file2 = writeObject("1.2.3.2");
+        ContainerStorage.Entry entry1 = storage.append(fs, file1);
+        ContainerStorage.Entry entry2 = storage.append(fs, file2);
+        assertEquals(entry1.container, entry2.container);
+        assertEquals(0L, entry1.offset);
+        assertEquals(file1.length(), entry1.length);
+        assertEquals(entry1.length, entry2.offset);
+        assertEquals(file2.length(), entry2.length);
+        assertEquals(entry2.offset + entry2.length, entry2.container.length());
+        assertTrue(file1.exists());
+        assertEquals(2L, storage.getAppended());
+    }
+
+    @Test
+    public void testRollover() throws Exception {
+        storage.setMaxContainerSize(1L);
+        ContainerStorage.Entry entry1 = storage.append(fs, writeObject("1.2.3.1"));
+        ContainerStorage.Entry entry2 = storage.append(fs, writeObject("1.2.3.2"));
+        assertFalse(entry1.container.equals(entry2.container));
+        assertEquals(0L, entry2.offset);
+    }
+
+    @Test
+    public void testPositionedRead() throws Exception {
+        ContainerStorage.Entry entry1 = storage.append(fs, writeObject("1.2.3.1"));
+        ContainerStorage.Entry entry2 = storage.append(fs, writeObject("1.2.3.2"));
+        assertEquals("1.2.3.1", readSOPInstanceUID(entry1));
+        assertEquals("1.2.3.2", readSOPInstanceUID(entry2));
+    }
+
+    @Test
+    public void testCompactRelocatesLiveEntries() throws Exception {
+        ContainerStorage.Entry entry1 = storage.append(fs, writeObject("1.2.3.1"));
+        ContainerStorage.Entry entry2 = storage.append(fs, writeObject("1.2.3.2"));
+        ContainerStorage.Entry entry3 = storage.append(fs, writeObject("1.2.3.3"));
+        File container = entry1.container;
+        // entry2 is rejected, entry3 live, entry1 never registered
+        registry.add(2L, filePath(container), entry2.offset, entry2.length);
+        registry.entries.get(filePath(container)).get(0)[3] = 1L;
+        registry.add(3L, filePath(container), entry3.offset, entry3.length);
+        storage.stop(); // close current container file
+        storage.compact();
+        assertTrue("deletion deferred by grace period", container.exists());
+        assertTrue(registry.findEntries(0L, filePath(container)).isEmpty());
+        Object[] moved = movedEntry(container);
+        assertEquals(3L, moved[0]);
+        assertEquals(entry3.length, moved[2]);
+        ContainerStorage.Entry relocated = new ContainerStorage.Entry(
+                new File(dir, (String) moved[4]), (Long) moved[1], entry3.length);
+        assertEquals("1.2.3.3", readSOPInstanceUID(relocated));
+        // still readable at the previous location
+        assertEquals("1.2.3.3", readSOPInstanceUID(entry3));
+        Thread.sleep(10);
+        storage.compact();
+        assertFalse(container.exists());
+        assertTrue(storage.getReclaimed() > 0);
+    }
+
+    @Test
+    public void testCompactReclaimsDuplicates() throws Exception {
+        // the bytes of an object ignored as duplicate remain in the
+        // container file without a registered entry
+        ContainerStorage.Entry entry1 = storage.append(fs, writeObject("1.2.3.1"));
+        ContainerStorage.Entry dup = storage.append(fs, writeObject("1.2.3.1"));
+        File container = entry1.container;
+        registry.add(1L, filePath(container), entry1.offset, entry1.length);
+        storage.stop();
+        storage.compact();
+        Object[] moved = movedEntry(container);
+        assertEquals(1L, moved[0]);
+        assertEquals(0L, moved[1]);
+        File dst = new File(dir, (String) moved[4]);
+        assertEquals(entry1.length, dst.length());
+        assertEquals(entry1.length + dup.length, container.length());
+        Thread.sleep(10);
+        storage.compact();
+        assertFalse(container.exists());
+        assertEquals(entry1.length + dup.length, storage.getReclaimed());
+    }
+
+    private Object[] movedEntry(File container) {
+        for (Map.Entry<String,List<Object[]>> e : registry.entries.entrySet())
+            if (!e.getKey().equals(filePath(container))
+                    && !e.getValue().isEmpty()) {
+                Object[] entry = e.getValue().get(0);
+                return new Object[] { entry[0], entry[1], entry[2], null,
+                        e.getKey() };
+            }
+        throw new AssertionError("no relocated entry");
+    }
+
+    private String filePath(File file) {
+        return file.toURI().toString().substring(fs.getURI().length());
+    }
+
+    private File writeObject(String iuid) throws IOException {
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.SOPClassUID, VR.UI, UID.SecondaryCaptureImageStorage);
+        attrs.setString(Tag.SOPInstanceUID, VR.UI, iuid);
+        attrs.setString(Tag.PatientName, VR.PN, "Test^Container");
+        File file = new File(dir, iuid);
+        DicomOutputStream out = new DicomOutputStream(
+                new FileOutputStream(file), UID.ExplicitVRLittleEndian);
+        try {
+            out.writeDataset(null, attrs);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static String readSOPInstanceUID(ContainerStorage.Entry entry)
+            throws IOException {
+        DicomInputStream in = ContainerStorage.openEntry(
+                entry.container.toURI() + "#" + entry.offset + ',' + entry.length);
+        try {
+            return in.readDataset(-1, -1).getString(Tag.SOPInstanceUID);
+        } finally {
+            SafeClose.close(in);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.net.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.VR;
+import org.dcm4che.util.AttributesFormat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+public class FilePathGeneratorTest {
+
+    private static final int THREADS = 64;
+    private static final int FILES_PER_THREAD = 20;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("fpg", null);
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null)
+            for (File f : files)
+                delete(f);
+        file.delete();
+    }
+
+    @Test
+    public void testFormat() {
+        AttributesFormat format =
+                new AttributesFormat("{00100020}/{0020000E}/{00080018}");
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.PatientID, VR.LO, "PID");
+        attrs.setString(Tag.SeriesInstanceUID, VR.UI, "1.2.3");
+        attrs.setString(Tag.SOPInstanceUID, VR.UI, "1.2.3.4");
+        assertEquals(format.format(attrs),
+                FilePathGenerator.format(format, attrs));
+        assertEquals(format.format(attrs),
+                FilePathGenerator.format(format, attrs));
+    }
+
+    @Test
+    public void testUniqueName() {
+        String name1 = FilePathGenerator.uniqueName();
+        String name2 = FilePathGenerator.uniqueName();
+        assertFalse(name1.equals(name2));
+        assertTrue(name1.startsWith(FilePathGenerator.nodeID() + '-'));
+    }
+
+    @Test
+    public void testNonExistingFile() throws IOException {
+        File file = new File(new File(dir, "a/b"), "c");
+        assertEquals(file, FilePathGenerator.nonExistingFile(file));
+        assertTrue(file.getParentFile().isDirectory());
+        assertTrue(file.createNewFile());
+        File suffixed = FilePathGenerator.nonExistingFile(file);
+        assertEquals(file.getParentFile(), suffixed.getParentFile());
+        assertTrue(suffixed.getName().startsWith("c-"));
+        assertFalse(suffixed.exists());
+    }
+
+    @Test
+    public void testCreateNewFile() throws IOException {
+        File file = new File(new File(dir, "a/b"), "c");
+        File first = FilePathGenerator.createNewFile(file);
+        File second = FilePathGenerator.createNewFile(file);
+        assertEquals(file, first);
+        assertEquals(file.getParentFile(), second.getParentFile());
+        assertFalse(first.equals(second));
+        assertTrue(second.getName().startsWith("c-"));
+        assertTrue(first.isFile());
+        assertTrue(second.isFile());
+    }
+
+    @Test
+    public void testConcurrentCreateNewFile() throws Exception {
+        final File file = new File(dir, "same");
+        final Set<File> created = Collections.synchronizedSet(new HashSet<File>());
+        final IOException[] failure = new IOException[1];
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < FILES_PER_THREAD; j++)
+                            created.add(FilePathGenerator.createNewFile(file));
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        if (failure[0] != null)
+            throw failure[0];
+        assertEquals(THREADS * FILES_PER_THREAD, created.size());
+        assertEquals(THREADS * FILES_PER_THREAD, dir.list().length);
+    }
+}
@@ -0,0 +1,171 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.ejb.query;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dcm4che.data.Attributes;
+
+/**
+ * Size-bounded LRU cache of decoded attributes of entities, keyed by entity
+ * class and pk. An entry only matches the version - e.g. the updated times
+ * and attributes versions of the entity and its parents - it was cached
+ * with, so it never matches a later version of the entity. Cached attributes are shared and must not be
+ * modified by callers.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+public class AttributesCache {
+
+    private static final class Key {
+        final Class<?> entity;
+        final long pk;
+
+        Key(Class<?> entity, long pk) {
+            this.entity = entity;
+            this.pk = pk;
+        }
+
+        @Override
+        public int hashCode() {
+            return entity.hashCode() * 31 + (int) (pk ^ (pk >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return entity == other.entity && pk == other.pk;
+        }
+    }
+
+    private static final class Value {
+        final Object version;
+        final Attributes attrs;
+
+        Value(Object version, Attributes attrs) {
+            this.version = version;
+            this.attrs = attrs;
+        }
+    }
+
+    private volatile int maxSize;
+    private final LinkedHashMap<Key,Value> map =
+            new LinkedHashMap<Key,Value>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key,Value> eldest) {
+            return size() > maxSize;
+        }
+    };
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public AttributesCache(int maxSize) {
+        setMaxSize(maxSize);
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Sets the maximal number of cached entries; 0 disables the cache.
+     */
+    public void setMaxSize(int maxSize) {
+        if (maxSize < 0)
+            throw new IllegalArgumentException("maxSize: " + maxSize);
+        this.maxSize = maxSize;
+        if (maxSize == 0)
+            clear();
+    }
+
+    public Attributes get(Class<?> entity, long pk, Object version) {
+        Value value;
+        synchronized (map) {
+            value = map.get(new Key(entity, pk));
+        }
+        if (value != null && value.version.equals(version)) {
+            hits.incrementAndGet();
+            return value.attrs;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(Class<?> entity, long pk, Object version, Attributes attrs) {
+        if (maxSize == 0)
+            return;
+
+        synchronized (map) {
+            map.put(new Key(entity, pk), new Value(version, attrs));
+        }
+    }
+
+    public void remove(Class<?> entity, long pk) {
+        synchronized (map) {
+            map.remove(new Key(entity, pk));
+        }
+    }
+
+    public void clear() {
+        synchronized (map) {
+            map.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (map) {
+            return map.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+}
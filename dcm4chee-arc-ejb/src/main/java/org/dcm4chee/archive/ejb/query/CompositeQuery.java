@@ -59,6 +59,13 @@ public interface CompositeQuery {
 
     boolean hasMoreMatches();
 
+    /**
+     * Indicates if there are more matches than the maximal number of
+     * matches, specified by {@link QueryParam#getMaxNumberOfMatches()}.
+     * Only valid after {@link #hasMoreMatches()} returned {@code false}.
+     */
+    boolean isMaxNumberOfMatchesExceeded();
+
     Attributes nextMatch();
 
     void close();
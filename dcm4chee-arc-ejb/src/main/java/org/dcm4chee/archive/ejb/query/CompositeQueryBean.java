@@ -69,6 +69,8 @@ public class CompositeQueryBean implements CompositeQuery {
     @PersistenceUnit(unitName = "dcm4chee-arc")
     private EntityManagerFactory emf;
 
+    private SessionFactory sessionFactory;
+
     private Connection connection;
 
     private StatelessSession session;
@@ -77,34 +79,63 @@ public class CompositeQueryBean implements CompositeQuery {
 
     @PostConstruct
     protected void init() {
-        SessionFactory sessionFactory = ((HibernateEntityManagerFactory) emf).getSessionFactory();
+        sessionFactory = ((HibernateEntityManagerFactory) emf).getSessionFactory();
+    }
+
+    private StatelessSession openSession() {
+        if (session == null) {
+            try {
+                connection = dataSource.getConnection();
+            } catch (SQLException e) {
+                throw new EJBException(e);
+            }
+            session = sessionFactory.openStatelessSession(connection);
+        }
+        return session;
+    }
+
+    private void closeSession() {
+        StatelessSession s = session;
+        Connection c = connection;
+        connection = null;
+        session = null;
+        if (s == null)
+            return;
+
+        s.close();
         try {
-            connection = dataSource.getConnection();
+            c.close();
         } catch (SQLException e) {
             throw new EJBException(e);
         }
-        session = sessionFactory.openStatelessSession(connection);
     }
 
-
     @Override
     public void findPatients(IDWithIssuer[] pids, Attributes keys, QueryParam queryParam) {
-        query = new PatientQueryImpl(session, pids, keys, queryParam);
+        execute(new PatientQueryImpl(pids, keys, queryParam));
     }
 
     @Override
     public void findStudies(IDWithIssuer[] pids, Attributes keys, QueryParam queryParam) {
-        query = new StudyQueryImpl(session, pids, keys, queryParam);
+        execute(new StudyQueryImpl(pids, keys, queryParam));
     }
 
     @Override
     public void findSeries(IDWithIssuer[] pids, Attributes keys, QueryParam queryParam) {
-        query = new SeriesQueryImpl(session, pids, keys, queryParam);
+        execute(new SeriesQueryImpl(pids, keys, queryParam));
     }
 
     @Override
     public void findInstances(IDWithIssuer[] pids, Attributes keys, QueryParam queryParam) {
-        query = new InstanceQueryImpl(session, pids, keys, queryParam);
+        execute(new InstanceQueryImpl(pids, keys, queryParam));
+    }
+
+    private void execute(CompositeQueryImpl query) {
+        if (query.isPaged())
+            closeSession();
+        else
+            query.execute(openSession());
+        this.query = query;
     }
 
     @Override
@@ -116,15 +147,32 @@ public class CompositeQueryBean implements CompositeQuery {
     @Override
     public boolean hasMoreMatches() {
         checkResults();
+        fetchPageIfNeeded();
         return query.hasMoreMatches();
     }
 
+    @Override
+    public boolean isMaxNumberOfMatchesExceeded() {
+        checkResults();
+        return query.isMaxNumberOfMatchesExceeded();
+    }
+
     @Override
     public Attributes nextMatch() {
         checkResults();
+        fetchPageIfNeeded();
         return query.nextMatch();
     }
 
+    private void fetchPageIfNeeded() {
+        if (query.needsNextPage())
+            try {
+                query.fetchPage(openSession());
+            } finally {
+                closeSession();
+            }
+    }
+
     private void checkResults() {
         if (query == null)
             throw new IllegalStateException("results not initalized");
@@ -133,16 +181,7 @@ public class CompositeQueryBean implements CompositeQuery {
     @Override
     @Remove
     public void close() {
-        StatelessSession s = session;
-        Connection c = connection;
-        connection = null;
-        session = null;
         query = null;
-        s.close();
-        try {
-            c.close();
-        } catch (SQLException e) {
-            throw new EJBException(e);
-        }
+        closeSession();
     }
 }
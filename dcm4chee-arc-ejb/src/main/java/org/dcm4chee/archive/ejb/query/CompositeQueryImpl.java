@@ -38,43 +38,180 @@
 
 package org.dcm4chee.archive.ejb.query;
 
+import java.util.ArrayList;
 import java.util.NoSuchElementException;
 
 import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.VR;
+import org.hibernate.ScrollMode;
 import org.hibernate.ScrollableResults;
+import org.hibernate.StatelessSession;
+
+import com.mysema.query.jpa.hibernate.HibernateQuery;
+import com.mysema.query.types.Expression;
+import com.mysema.query.types.path.NumberPath;
 
 /**
+ * Provides the matches of a query either by one database cursor over all
+ * matches, or - if {@link QueryParam#getPageSize()} is not 0 - by pages of
+ * matches ordered by the pk of the queried entity, where each page is
+ * fetched by a separate session by {@link #fetchPage}, so the database
+ * connection can be released between pages. The number of provided
+ * matches is limited by {@link QueryParam#getMaxNumberOfMatches()}.
+ * 
  * @author Gunter Zeilinger <gunterze@gmail.com>
  */
 abstract class CompositeQueryImpl {
 
-    private final ScrollableResults results;
+    /**
+     * Attributes decoded from the encoded attributes of each match.
+     */
+    protected final Attributes selection;
 
     private final boolean optionalKeyNotSupported;
 
+    private final int pageSize;
+
+    private final int maxNumberOfMatches;
+
+    private ScrollableResults results;
+
     private boolean hasNext;
 
-    protected CompositeQueryImpl(ScrollableResults results, boolean optionalKeyNotSupported) {
-        this.results = results;
+    private final ArrayList<Attributes> page = new ArrayList<Attributes>();
+
+    private int pageIndex;
+
+    private boolean lastPage;
+
+    private long lastPk;
+
+    private int numberOfMatches;
+
+    private boolean maxNumberOfMatchesExceeded;
+
+    protected CompositeQueryImpl(Attributes keys, QueryParam queryParam,
+            boolean optionalKeyNotSupported) {
+        this.selection = selection(keys);
         this.optionalKeyNotSupported = optionalKeyNotSupported;
-        hasNext = results.next();
+        this.pageSize = queryParam.getPageSize();
+        this.maxNumberOfMatches = queryParam.getMaxNumberOfMatches();
+    }
+
+    /**
+     * Returns the return keys of the query and the attributes used to adjust
+     * Patient ID and Accession Number of the matches.
+     */
+    private static Attributes selection(Attributes keys) {
+        Attributes selection = new Attributes(keys.size() + 6);
+        selection.addAll(keys);
+        selection.setNull(Tag.PatientID, VR.LO);
+        selection.setNull(Tag.IssuerOfPatientID, VR.LO);
+        selection.setNull(Tag.IssuerOfPatientIDQualifiersSequence, VR.SQ);
+        selection.setNull(Tag.AccessionNumber, VR.SH);
+        selection.setNull(Tag.IssuerOfAccessionNumberSequence, VR.SQ);
+        selection.setNull(Tag.RequestAttributesSequence, VR.SQ);
+        return selection;
     }
 
     public final boolean optionalKeyNotSupported() {
         return optionalKeyNotSupported;
     }
 
+    public final boolean isPaged() {
+        return pageSize > 0;
+    }
+
+    public final boolean isMaxNumberOfMatchesExceeded() {
+        return maxNumberOfMatchesExceeded;
+    }
+
+    /**
+     * Opens the database cursor over all matches, if the query is not paged.
+     */
+    public void execute(StatelessSession session) {
+        if (isPaged())
+            throw new IllegalStateException("paged query");
+        init(session);
+        results = createQuery(session)
+                .scroll(ScrollMode.FORWARD_ONLY, select());
+        hasNext = results.next();
+    }
+
+    public boolean needsNextPage() {
+        return isPaged() && pageIndex == page.size() && !lastPage;
+    }
+
+    /**
+     * Fetches the next page of matches, ordered by the pk of the queried
+     * entity, and closes the database cursor before returning.
+     */
+    public void fetchPage(StatelessSession session) {
+        if (!needsNextPage())
+            throw new IllegalStateException("no next page");
+        page.clear();
+        pageIndex = 0;
+        // fetch one match more than the maximal number of matches
+        // to detect if it is exceeded
+        int limit = maxNumberOfMatches > 0
+                ? Math.min(pageSize, maxNumberOfMatches - numberOfMatches + 1)
+                : pageSize;
+        Expression<?>[] select = select();
+        Expression<?>[] selectWithPk = new Expression<?>[select.length + 1];
+        System.arraycopy(select, 0, selectWithPk, 0, select.length);
+        selectWithPk[select.length] = pk();
+        init(session);
+        ScrollableResults results = createQuery(session)
+                .where(pk().gt(lastPk))
+                .orderBy(pk().asc())
+                .limit(limit)
+                .scroll(ScrollMode.FORWARD_ONLY, selectWithPk);
+        try {
+            while (results.next()) {
+                page.add(toAttributes(results));
+                lastPk = results.getLong(select.length);
+            }
+        } finally {
+            results.close();
+        }
+        lastPage = page.size() < limit;
+    }
+
     public boolean hasMoreMatches() {
-        return hasNext;
+        boolean more = isPaged() ? pageIndex < page.size() : hasNext;
+        if (more && maxNumberOfMatches > 0
+                && numberOfMatches >= maxNumberOfMatches) {
+            maxNumberOfMatchesExceeded = true;
+            return false;
+        }
+        return more;
     }
 
     public Attributes nextMatch() {
-        if (!hasNext)
+        if (!hasMoreMatches())
             throw new NoSuchElementException();
+        numberOfMatches++;
+        if (isPaged())
+            return page.set(pageIndex++, null);
+
         Attributes attrs = toAttributes(results);
         hasNext = results.next();
         return attrs;
     }
 
+    /**
+     * Prepares additional queries used by {@link #toAttributes} with the
+     * session used to fetch the matches.
+     */
+    protected void init(StatelessSession session) {
+    }
+
+    protected abstract HibernateQuery createQuery(StatelessSession session);
+
+    protected abstract Expression<?>[] select();
+
+    protected abstract NumberPath<Long> pk();
+
     protected abstract  Attributes toAttributes(ScrollableResults results);
 }
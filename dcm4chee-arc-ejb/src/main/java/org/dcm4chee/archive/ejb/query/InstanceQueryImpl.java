@@ -46,12 +46,13 @@ import org.dcm4chee.archive.persistence.QSeries;
 import org.dcm4chee.archive.persistence.QStudy;
 import org.dcm4chee.archive.persistence.Utils;
 import org.hibernate.Query;
-import org.hibernate.ScrollMode;
 import org.hibernate.ScrollableResults;
 import org.hibernate.StatelessSession;
 
 import com.mysema.query.BooleanBuilder;
 import com.mysema.query.jpa.hibernate.HibernateQuery;
+import com.mysema.query.types.Expression;
+import com.mysema.query.types.path.NumberPath;
 
 /**
  * @author Gunter Zeilinger <gunterze@gmail.com>
@@ -64,40 +65,60 @@ class InstanceQueryImpl extends CompositeQueryImpl {
             + "s.numberOfSeriesRelatedInstances, "
             + "s.study.modalitiesInStudy, "
             + "s.study.sopClassesInStudy, "
-            + "s.encodedAttributes, "
-            + "s.study.encodedAttributes, "
-            + "s.study.patient.encodedAttributes "
+            + ParentAttributes.SELECT_VERSIONS
             + "from Series s "
             + "where s.pk = ?";
+    private static final Expression<?>[] SELECT = {
+        QSeries.series.pk,
+        QInstance.instance.retrieveAETs,
+        QInstance.instance.externalRetrieveAET,
+        QInstance.instance.availability,
+        QInstance.instance.encodedAttributes
+    };
+
+    private final BooleanBuilder builder = new BooleanBuilder();
     private long seriesPk = -1L;
     private Attributes seriesAttrs;
     private Query seriesQuery;
+    private Query inheritedAttrsQuery;
+    private Query encodedAttrsQuery;
 
-    public InstanceQueryImpl(StatelessSession session, IDWithIssuer[] pids, Attributes keys,
+    public InstanceQueryImpl(IDWithIssuer[] pids, Attributes keys,
             QueryParam queryParam) {
-        super(query(session, pids, keys, queryParam), false);
-        seriesQuery = session.createQuery(QUERY_SERIES_ATTRS);
-    }
-
-    private static ScrollableResults query(StatelessSession session, IDWithIssuer[] pids,
-            Attributes keys, QueryParam queryParam) {
-        BooleanBuilder builder = new BooleanBuilder();
+        super(keys, queryParam, false);
         Builder.addPatientLevelPredicates(builder, pids, keys, queryParam);
         Builder.addStudyLevelPredicates(builder, keys, queryParam);
         Builder.addSeriesLevelPredicates(builder, keys, queryParam);
         Builder.addInstanceLevelPredicates(builder, keys, queryParam);
+    }
+
+    @Override
+    protected void init(StatelessSession session) {
+        seriesQuery = session.createQuery(QUERY_SERIES_ATTRS);
+        inheritedAttrsQuery = session.createQuery(
+                ParentAttributes.QUERY_INHERITED_ATTRS);
+        encodedAttrsQuery = session.createQuery(
+                ParentAttributes.QUERY_ENCODED_ATTRS);
+    }
+
+    @Override
+    protected HibernateQuery createQuery(StatelessSession session) {
         return new HibernateQuery(session)
             .from(QInstance.instance)
             .innerJoin(QInstance.instance.series, QSeries.series)
             .innerJoin(QSeries.series.study, QStudy.study)
             .innerJoin(QStudy.study.patient, QPatient.patient)
-            .where(builder)
-            .scroll(ScrollMode.FORWARD_ONLY,
-                QSeries.series.pk,
-                QInstance.instance.retrieveAETs,
-                QInstance.instance.externalRetrieveAET,
-                QInstance.instance.availability,
-                QInstance.instance.encodedAttributes);
+            .where(builder);
+    }
+
+    @Override
+    protected Expression<?>[] select() {
+        return SELECT;
+    }
+
+    @Override
+    protected NumberPath<Long> pk() {
+        return QInstance.instance.pk;
     }
 
     @Override
@@ -112,7 +133,7 @@ class InstanceQueryImpl extends CompositeQueryImpl {
             this.seriesPk = seriesPk;
         }
         Attributes attrs = new Attributes(seriesAttrs);
-        Utils.decodeAttributes(attrs, instAttributes);
+        Utils.decodeAttributes(attrs, instAttributes, selection);
         Utils.setRetrieveAET(attrs, retrieveAETs, externalRetrieveAET);
         Utils.setAvailability(attrs, availability);
         return attrs;
@@ -125,13 +146,8 @@ class InstanceQueryImpl extends CompositeQueryImpl {
         int numberOfSeriesRelatedInstances = (Integer) tuple[2];
         String modalitiesInStudy = (String) tuple[3];
         String sopClassesInStudy = (String) tuple[4];
-        byte[] seriesAttributes = (byte[]) tuple[5];
-        byte[] studyAttributes = (byte[]) tuple[6];
-        byte[] patientAttributes = (byte[]) tuple[7];
-        Attributes attrs = new Attributes();
-        Utils.decodeAttributes(attrs, patientAttributes);
-        Utils.decodeAttributes(attrs, studyAttributes);
-        Utils.decodeAttributes(attrs, seriesAttributes);
+        Attributes attrs = ParentAttributes.get(inheritedAttrsQuery,
+                encodedAttrsQuery, seriesPk, tuple, 5);
         Utils.setStudyQueryAttributes(attrs,
                 numberOfStudyRelatedSeries,
                 numberOfStudyRelatedInstances,
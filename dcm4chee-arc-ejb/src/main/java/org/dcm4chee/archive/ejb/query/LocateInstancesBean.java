@@ -76,9 +76,7 @@ import com.mysema.query.jpa.hibernate.HibernateQuery;
 public class LocateInstancesBean implements LocateInstances {
 
     private static final String QUERY_SERIES_ATTRS = "select " +
-            "s.encodedAttributes, " +
-            "s.study.encodedAttributes, " +
-            "s.study.patient.encodedAttributes " +
+            ParentAttributes.SELECT_VERSIONS +
             "from Series s " +
             "where s.pk = ?";
 
@@ -87,12 +85,18 @@ public class LocateInstancesBean implements LocateInstances {
 
     private StatelessSession session;
     private Query seriesQuery;
+    private Query inheritedAttrsQuery;
+    private Query encodedAttrsQuery;
 
     @PostConstruct
     public void init() {
         SessionFactory sessionFactory = ((HibernateEntityManagerFactory) emf).getSessionFactory();
         session = sessionFactory.openStatelessSession();
         seriesQuery = session.createQuery(QUERY_SERIES_ATTRS);
+        inheritedAttrsQuery = session.createQuery(
+                ParentAttributes.QUERY_INHERITED_ATTRS);
+        encodedAttrsQuery = session.createQuery(
+                ParentAttributes.QUERY_ENCODED_ATTRS);
     }
 
     @PreDestroy
@@ -134,7 +138,9 @@ public class LocateInstancesBean implements LocateInstances {
                 QInstance.instance.sopInstanceUID,
                 QInstance.instance.retrieveAETs,
                 QInstance.instance.externalRetrieveAET,
-                QInstance.instance.encodedAttributes));
+                QInstance.instance.encodedAttributes,
+                QFileRef.fileRef.containerOffset,
+                QFileRef.fileRef.fileSize));
     }
 
     private List<InstanceLocator> locate(List<Object[]> tuples) {
@@ -161,6 +167,9 @@ public class LocateInstancesBean implements LocateInstances {
                 Attributes attrs;
                 if (fsuri != null) {
                     uri = fsuri + filePath;
+                    Long offset = (Long) tuple[10];
+                    if (offset != null && offset >= 0)
+                        uri += "#" + offset + ',' + tuple[11];
                     byte[] instAttrs = (byte[]) tuple[9];
                     attrs = new Attributes(seriesAttrs);
                     Utils.decodeAttributes(attrs, instAttrs);
@@ -187,13 +196,7 @@ public class LocateInstancesBean implements LocateInstances {
 
     private Attributes fetchSeriesAttrs(long seriesPk) {
         Object[] tuple = (Object[]) seriesQuery.setParameter(0, seriesPk).uniqueResult();
-        byte[] seriesAttributes = (byte[]) tuple[0];
-        byte[] studyAttributes = (byte[]) tuple[1];
-        byte[] patientAttributes = (byte[]) tuple[2];
-        Attributes attrs = new Attributes();
-        Utils.decodeAttributes(attrs, patientAttributes);
-        Utils.decodeAttributes(attrs, studyAttributes);
-        Utils.decodeAttributes(attrs, seriesAttributes);
-        return attrs;
+        return ParentAttributes.get(inheritedAttrsQuery,
+                encodedAttrsQuery, seriesPk, tuple, 0);
     }
 }
@@ -0,0 +1,181 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.ejb.query;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4chee.archive.persistence.Series;
+import org.dcm4chee.archive.persistence.Utils;
+import org.hibernate.Query;
+
+/**
+ * Provides the merged Patient, Study and Series attributes of a Series from
+ * the shared {@link AttributesCache}. On a cache miss, they are decoded from
+ * the pre-merged inherited attributes of the Series, or - if not yet
+ * calculated or outdated - from the encoded attributes of the Series, its
+ * Study and its Patient.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+public abstract class ParentAttributes {
+
+    /**
+     * Selected values, expected by {@link #get}. The attributes versions
+     * distinguish updates within the precision of the updated times.
+     */
+    static final String SELECT_VERSIONS = "s.updatedTime, "
+            + "s.attributesVersion, "
+            + "s.study.pk, "
+            + "s.study.updatedTime, "
+            + "s.study.attributesVersion, "
+            + "s.study.patient.pk, "
+            + "s.study.patient.updatedTime, "
+            + "s.study.patient.attributesVersion ";
+
+    static final String QUERY_INHERITED_ATTRS = "select "
+            + "s.inheritedAttributes, "
+            + "s.inheritedStudyVersion, "
+            + "s.inheritedPatientVersion "
+            + "from Series s "
+            + "where s.pk = ?";
+
+    static final String QUERY_ENCODED_ATTRS = "select "
+            + "s.encodedAttributes, "
+            + "s.study.encodedAttributes, "
+            + "s.study.patient.encodedAttributes "
+            + "from Series s "
+            + "where s.pk = ?";
+
+    private static final AttributesCache cache = new AttributesCache(10000);
+
+    public static AttributesCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Returns a new Attributes object with the attributes of the Series and
+     * its Study and Patient.
+     * 
+     * @param inheritedAttrsQuery
+     *            query created from {@link #QUERY_INHERITED_ATTRS}, only
+     *            executed on cache misses
+     * @param encodedAttrsQuery
+     *            query created from {@link #QUERY_ENCODED_ATTRS}, only
+     *            executed if the inherited attributes are not available
+     * @param tuple
+     *            values selected by {@link #SELECT_VERSIONS} starting at
+     *            {@code index}
+     */
+    static Attributes get(Query inheritedAttrsQuery, Query encodedAttrsQuery,
+            long seriesPk, Object[] tuple, int index) {
+        List<Long> version = version(tuple, index);
+        Attributes attrs = cache.get(Series.class, seriesPk, version);
+        if (attrs == null) {
+            attrs = new Attributes();
+            Object[] inherited = (Object[]) inheritedAttrsQuery
+                    .setParameter(0, seriesPk).uniqueResult();
+            if (isValid((byte[]) inherited[0],
+                    (Integer) inherited[1], version.get(4).intValue(),
+                    (Integer) inherited[2], version.get(7).intValue())) {
+                Utils.decodeAttributes(attrs, (byte[]) inherited[0]);
+            } else {
+                decodeEncodedAttributes(attrs, encodedAttrsQuery, seriesPk,
+                        null);
+            }
+            cache.put(Series.class, seriesPk, version, attrs);
+        }
+        return new Attributes(attrs);
+    }
+
+    /**
+     * Returns {@code true}, if the inherited attributes of a Series were
+     * merged from the current versions of its Study and Patient.
+     */
+    static boolean isValid(byte[] inherited,
+            int inheritedStudyVersion, int studyVersion,
+            int inheritedPatientVersion, int patientVersion) {
+        return inherited != null
+                && inheritedStudyVersion == studyVersion
+                && inheritedPatientVersion == patientVersion;
+    }
+
+    static List<Long> version(Object[] tuple, int index) {
+        return Arrays.asList(
+                ((Date) tuple[index]).getTime(),
+                ((Number) tuple[index + 1]).longValue(),
+                (Long) tuple[index + 2],
+                ((Date) tuple[index + 3]).getTime(),
+                ((Number) tuple[index + 4]).longValue(),
+                (Long) tuple[index + 5],
+                ((Date) tuple[index + 6]).getTime(),
+                ((Number) tuple[index + 7]).longValue());
+    }
+
+    /**
+     * Decodes the encoded attributes of the Patient, Study and Series into
+     * {@code attrs}, using a query created from {@link #QUERY_ENCODED_ATTRS}.
+     * Only decodes attributes contained in {@code selection}, if not
+     * {@code null}.
+     */
+    static void decodeEncodedAttributes(Attributes attrs,
+            Query encodedAttrsQuery, long seriesPk, Attributes selection) {
+        Object[] encoded = (Object[]) encodedAttrsQuery
+                .setParameter(0, seriesPk).uniqueResult();
+        Utils.decodeAttributes(attrs, (byte[]) encoded[2], selection);
+        Utils.decodeAttributes(attrs, (byte[]) encoded[1], selection);
+        Utils.decodeAttributes(attrs, (byte[]) encoded[0], selection);
+    }
+
+    /**
+     * Merges the encoded attributes of a Patient, Study and Series, as
+     * stored as inherited attributes of the Series.
+     */
+    public static byte[] merge(byte[] patientAttrs, byte[] studyAttrs,
+            byte[] seriesAttrs) {
+        Attributes attrs = new Attributes();
+        Utils.decodeAttributes(attrs, patientAttrs);
+        Utils.decodeAttributes(attrs, studyAttrs);
+        Utils.decodeAttributes(attrs, seriesAttrs);
+        return Utils.encodeAttributes(attrs);
+    }
+
+}
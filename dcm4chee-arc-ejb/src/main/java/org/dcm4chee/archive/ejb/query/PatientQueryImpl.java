@@ -41,39 +41,53 @@ package org.dcm4chee.archive.ejb.query;
 import org.dcm4che.data.Attributes;
 import org.dcm4chee.archive.persistence.QPatient;
 import org.dcm4chee.archive.persistence.Utils;
-import org.hibernate.ScrollMode;
 import org.hibernate.ScrollableResults;
 import org.hibernate.StatelessSession;
 
 import com.mysema.query.BooleanBuilder;
 import com.mysema.query.jpa.hibernate.HibernateQuery;
+import com.mysema.query.types.Expression;
+import com.mysema.query.types.path.NumberPath;
 
 /**
  * @author Gunter Zeilinger <gunterze@gmail.com>
  */
 class PatientQueryImpl extends CompositeQueryImpl {
 
-    public PatientQueryImpl(StatelessSession session, IDWithIssuer[] pids, Attributes keys,
+    private static final Expression<?>[] SELECT = {
+        QPatient.patient.pk,
+        QPatient.patient.encodedAttributes
+    };
+
+    private final BooleanBuilder builder = new BooleanBuilder();
+
+    public PatientQueryImpl(IDWithIssuer[] pids, Attributes keys,
             QueryParam queryParam) {
-        super(query(session, pids, keys, queryParam), false);
+        super(keys, queryParam, false);
+        Builder.addPatientLevelPredicates(builder, pids, keys, queryParam);
     }
 
-    private static ScrollableResults query(StatelessSession session, IDWithIssuer[] pids,
-            Attributes keys, QueryParam queryParam) {
-        BooleanBuilder builder = new BooleanBuilder();
-        Builder.addPatientLevelPredicates(builder, pids, keys, queryParam);
+    @Override
+    protected HibernateQuery createQuery(StatelessSession session) {
         return new HibernateQuery(session)
             .from(QPatient.patient)
-            .where(builder)
-            .scroll(ScrollMode.FORWARD_ONLY,
-                QPatient.patient.pk,
-                QPatient.patient.encodedAttributes);
+            .where(builder);
+    }
+
+    @Override
+    protected Expression<?>[] select() {
+        return SELECT;
+    }
+
+    @Override
+    protected NumberPath<Long> pk() {
+        return QPatient.patient.pk;
     }
 
     @Override
     protected Attributes toAttributes(ScrollableResults results) {
         Attributes attrs = new Attributes();
-        Utils.decodeAttributes(attrs, results.getBinary(1));
+        Utils.decodeAttributes(attrs, results.getBinary(1), selection);
         return attrs;
     }
 
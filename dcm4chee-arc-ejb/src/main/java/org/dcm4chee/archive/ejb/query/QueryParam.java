@@ -64,6 +64,8 @@ public class QueryParam {
     private boolean returnOtherPatientIDs;
     private Issuer defaultIssuerOfPatientID;
     private Issuer defaultIssuerOfAccessionNumber;
+    private int maxNumberOfMatches;
+    private int pageSize;
 
     public final boolean isCombinedDatetimeMatching() {
         return combinedDatetimeMatching;
@@ -169,4 +171,20 @@ public class QueryParam {
         this.defaultIssuerOfAccessionNumber = issuer;
     }
 
+    public int getMaxNumberOfMatches() {
+        return maxNumberOfMatches;
+    }
+
+    public void setMaxNumberOfMatches(int maxNumberOfMatches) {
+        this.maxNumberOfMatches = maxNumberOfMatches;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
 }
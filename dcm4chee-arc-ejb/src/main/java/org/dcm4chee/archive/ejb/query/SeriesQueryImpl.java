@@ -44,46 +44,71 @@ import org.dcm4chee.archive.persistence.QPatient;
 import org.dcm4chee.archive.persistence.QSeries;
 import org.dcm4chee.archive.persistence.QStudy;
 import org.dcm4chee.archive.persistence.Utils;
-import org.hibernate.ScrollMode;
+import org.hibernate.Query;
 import org.hibernate.ScrollableResults;
 import org.hibernate.StatelessSession;
 
 import com.mysema.query.BooleanBuilder;
 import com.mysema.query.jpa.hibernate.HibernateQuery;
+import com.mysema.query.types.Expression;
+import com.mysema.query.types.path.NumberPath;
 
 /**
  * @author Gunter Zeilinger <gunterze@gmail.com>
  */
 public class SeriesQueryImpl extends CompositeQueryImpl {
 
-    public SeriesQueryImpl(StatelessSession session, IDWithIssuer[] pids, Attributes keys,
-            QueryParam queryParam) {
-        super(query(session, pids, keys, queryParam), false);
-    }
+    private static final Expression<?>[] SELECT = {
+        QStudy.study.numberOfStudyRelatedSeries,
+        QStudy.study.numberOfStudyRelatedInstances,
+        QSeries.series.numberOfSeriesRelatedInstances,
+        QStudy.study.modalitiesInStudy,
+        QStudy.study.sopClassesInStudy,
+        QSeries.series.retrieveAETs,
+        QSeries.series.externalRetrieveAET,
+        QSeries.series.availability,
+        QSeries.series.pk,
+        QSeries.series.inheritedAttributes,
+        QSeries.series.inheritedStudyVersion,
+        QStudy.study.attributesVersion,
+        QSeries.series.inheritedPatientVersion,
+        QPatient.patient.attributesVersion
+    };
 
-    private static ScrollableResults query(StatelessSession session, IDWithIssuer[] pids,
-            Attributes keys, QueryParam queryParam) {
-        BooleanBuilder builder = new BooleanBuilder();
+    private final BooleanBuilder builder = new BooleanBuilder();
+    private Query encodedAttrsQuery;
+
+    public SeriesQueryImpl(IDWithIssuer[] pids, Attributes keys,
+            QueryParam queryParam) {
+        super(keys, queryParam, false);
         Builder.addPatientLevelPredicates(builder, pids, keys, queryParam);
         Builder.addStudyLevelPredicates(builder, keys, queryParam);
         Builder.addSeriesLevelPredicates(builder, keys, queryParam);
+    }
+
+    @Override
+    protected void init(StatelessSession session) {
+        encodedAttrsQuery = session.createQuery(
+                ParentAttributes.QUERY_ENCODED_ATTRS);
+    }
+
+    @Override
+    protected HibernateQuery createQuery(StatelessSession session) {
         return new HibernateQuery(session)
             .from(QSeries.series)
             .innerJoin(QSeries.series.study, QStudy.study)
             .innerJoin(QStudy.study.patient, QPatient.patient)
-            .where(builder)
-            .scroll(ScrollMode.FORWARD_ONLY,
-                QStudy.study.numberOfStudyRelatedSeries,
-                QStudy.study.numberOfStudyRelatedInstances,
-                QSeries.series.numberOfSeriesRelatedInstances,
-                QStudy.study.modalitiesInStudy,
-                QStudy.study.sopClassesInStudy,
-                QSeries.series.retrieveAETs,
-                QSeries.series.externalRetrieveAET,
-                QSeries.series.availability,
-                QSeries.series.encodedAttributes,
-                QStudy.study.encodedAttributes,
-                QPatient.patient.encodedAttributes);
+            .where(builder);
+    }
+
+    @Override
+    protected Expression<?>[] select() {
+        return SELECT;
+    }
+
+    @Override
+    protected NumberPath<Long> pk() {
+        return QSeries.series.pk;
     }
 
     @Override
@@ -96,13 +121,17 @@ public class SeriesQueryImpl extends CompositeQueryImpl {
         String retrieveAETs = results.getString(5);
         String externalRetrieveAET = results.getString(6);
         Availability availability = (Availability) results.get(7);
-        byte[] seriesAttributes = results.getBinary(8);
-        byte[] studyAttributes = results.getBinary(9);
-        byte[] patientAttributes = results.getBinary(10);
+        long seriesPk = results.getLong(8);
+        byte[] inheritedAttributes = results.getBinary(9);
         Attributes attrs = new Attributes();
-        Utils.decodeAttributes(attrs, patientAttributes);
-        Utils.decodeAttributes(attrs, studyAttributes);
-        Utils.decodeAttributes(attrs, seriesAttributes);
+        if (ParentAttributes.isValid(inheritedAttributes,
+                results.getInteger(10), results.getInteger(11),
+                results.getInteger(12), results.getInteger(13))) {
+            Utils.decodeAttributes(attrs, inheritedAttributes, selection);
+        } else {
+            ParentAttributes.decodeEncodedAttributes(attrs, encodedAttrsQuery,
+                    seriesPk, selection);
+        }
         Utils.setStudyQueryAttributes(attrs,
                 numberOfStudyRelatedSeries,
                 numberOfStudyRelatedInstances,
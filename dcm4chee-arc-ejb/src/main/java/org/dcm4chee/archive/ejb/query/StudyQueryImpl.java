@@ -43,42 +43,56 @@ import org.dcm4chee.archive.persistence.Availability;
 import org.dcm4chee.archive.persistence.QPatient;
 import org.dcm4chee.archive.persistence.QStudy;
 import org.dcm4chee.archive.persistence.Utils;
-import org.hibernate.ScrollMode;
 import org.hibernate.ScrollableResults;
 import org.hibernate.StatelessSession;
 
 import com.mysema.query.BooleanBuilder;
 import com.mysema.query.jpa.hibernate.HibernateQuery;
+import com.mysema.query.types.Expression;
+import com.mysema.query.types.path.NumberPath;
 
 /**
  * @author Gunter Zeilinger <gunterze@gmail.com>
  */
 public class StudyQueryImpl extends CompositeQueryImpl {
 
-    public StudyQueryImpl(StatelessSession session, IDWithIssuer[] pids, Attributes keys,
-            QueryParam queryParam) {
-        super(query(session, pids, keys, queryParam), false);
-    }
+    private static final Expression<?>[] SELECT = {
+        QStudy.study.numberOfStudyRelatedSeries,
+        QStudy.study.numberOfStudyRelatedInstances,
+        QStudy.study.modalitiesInStudy,
+        QStudy.study.sopClassesInStudy,
+        QStudy.study.retrieveAETs,
+        QStudy.study.externalRetrieveAET,
+        QStudy.study.availability,
+        QStudy.study.encodedAttributes,
+        QPatient.patient.encodedAttributes
+    };
 
-    private static ScrollableResults query(StatelessSession session, IDWithIssuer[] pids,
-            Attributes keys, QueryParam queryParam) {
-        BooleanBuilder builder = new BooleanBuilder();
+    private final BooleanBuilder builder = new BooleanBuilder();
+
+    public StudyQueryImpl(IDWithIssuer[] pids, Attributes keys,
+            QueryParam queryParam) {
+        super(keys, queryParam, false);
         Builder.addPatientLevelPredicates(builder, pids, keys, queryParam);
         Builder.addStudyLevelPredicates(builder, keys, queryParam);
+    }
+
+    @Override
+    protected HibernateQuery createQuery(StatelessSession session) {
         return new HibernateQuery(session)
             .from(QStudy.study)
             .innerJoin(QStudy.study.patient, QPatient.patient)
-            .where(builder)
-            .scroll(ScrollMode.FORWARD_ONLY,
-                QStudy.study.numberOfStudyRelatedSeries,
-                QStudy.study.numberOfStudyRelatedInstances,
-                QStudy.study.modalitiesInStudy,
-                QStudy.study.sopClassesInStudy,
-                QStudy.study.retrieveAETs,
-                QStudy.study.externalRetrieveAET,
-                QStudy.study.availability,
-                QStudy.study.encodedAttributes,
-                QPatient.patient.encodedAttributes);
+            .where(builder);
+    }
+
+    @Override
+    protected Expression<?>[] select() {
+        return SELECT;
+    }
+
+    @Override
+    protected NumberPath<Long> pk() {
+        return QStudy.study.pk;
     }
 
     @Override
@@ -93,8 +107,8 @@ public class StudyQueryImpl extends CompositeQueryImpl {
         byte[] studyAttributes = results.getBinary(7);
         byte[] patientAttributes = results.getBinary(8);
         Attributes attrs = new Attributes();
-        Utils.decodeAttributes(attrs, patientAttributes);
-        Utils.decodeAttributes(attrs, studyAttributes);
+        Utils.decodeAttributes(attrs, patientAttributes, selection);
+        Utils.decodeAttributes(attrs, studyAttributes, selection);
         Utils.setStudyQueryAttributes(attrs,
                 numberOfStudyRelatedSeries,
                 numberOfStudyRelatedInstances,
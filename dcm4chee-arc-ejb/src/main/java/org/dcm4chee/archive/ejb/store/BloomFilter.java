@@ -0,0 +1,130 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.ejb.store;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe Bloom filter of strings. {@link #mightContain} never returns
+ * {@code false} for a string previously {@link #put}.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+public class BloomFilter {
+
+    private final AtomicLongArray bits;
+    private final long numBits;
+    private final int numHashFunctions;
+
+    public BloomFilter(int expectedInsertions, double falsePositiveProbability) {
+        if (expectedInsertions <= 0)
+            throw new IllegalArgumentException(
+                    "expectedInsertions: " + expectedInsertions);
+        if (falsePositiveProbability <= 0 || falsePositiveProbability >= 1)
+            throw new IllegalArgumentException(
+                    "falsePositiveProbability: " + falsePositiveProbability);
+        long m = (long) Math.ceil(-expectedInsertions
+                * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2)));
+        this.bits = new AtomicLongArray((int) ((m + 63) >>> 6));
+        this.numBits = bits.length() * 64L;
+        this.numHashFunctions = Math.max(1,
+                (int) Math.round((double) numBits / expectedInsertions * Math.log(2)));
+    }
+
+    public long getNumBits() {
+        return numBits;
+    }
+
+    public int getNumHashFunctions() {
+        return numHashFunctions;
+    }
+
+    public void put(String s) {
+        long h1 = hash1(s);
+        long h2 = hash2(s);
+        for (int i = 0; i < numHashFunctions; i++)
+            set(index(h1 + i * h2));
+    }
+
+    public boolean mightContain(String s) {
+        long h1 = hash1(s);
+        long h2 = hash2(s);
+        for (int i = 0; i < numHashFunctions; i++)
+            if (!get(index(h1 + i * h2)))
+                return false;
+        return true;
+    }
+
+    private long index(long combinedHash) {
+        return (combinedHash & Long.MAX_VALUE) % numBits;
+    }
+
+    private boolean get(long index) {
+        return (bits.get((int) (index >>> 6)) & (1L << index)) != 0;
+    }
+
+    private void set(long index) {
+        int i = (int) (index >>> 6);
+        long mask = 1L << index;
+        long value;
+        while (((value = bits.get(i)) & mask) == 0)
+            if (bits.compareAndSet(i, value, value | mask))
+                return;
+    }
+
+    private static long hash1(String s) {
+        return mix(s.hashCode());
+    }
+
+    private static long hash2(String s) {
+        long h = 1125899906842597L;
+        for (int i = s.length(); --i >= 0;)
+            h = 31 * h + s.charAt(i);
+        return mix(h) | 1;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
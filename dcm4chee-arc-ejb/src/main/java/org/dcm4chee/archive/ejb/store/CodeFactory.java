@@ -39,11 +39,14 @@
 package org.dcm4chee.archive.ejb.store;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
+import javax.ejb.EJBException;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
 import javax.persistence.EntityManager;
-import javax.persistence.NoResultException;
 import javax.persistence.TypedQuery;
 
 import org.dcm4che.data.Attributes;
@@ -56,25 +59,77 @@ import org.dcm4chee.archive.persistence.Code;
  */
 public abstract class CodeFactory {
 
+    private static final EntityPkCache<List<String>> cache =
+            new EntityPkCache<List<String>>();
+
+    public static EntityPkCache<List<String>> getCache() {
+        return cache;
+    }
+
     public static Code getCode(EntityManager em, String codeValue,
             String codingSchemeDesignator, String codingSchemeVersion,
             String codeMeaning) {
+        List<String> key = Arrays.asList(
+                codeValue, codingSchemeDesignator, codingSchemeVersion);
+        Long pk = cache.get(key);
+        if (pk == null)
+            pk = findOrCreateCode(em, key, codeMeaning);
+        return em.getReference(Code.class, pk);
+    }
+
+    private static long findOrCreateCode(EntityManager em,
+            List<String> key, String codeMeaning) {
+        Object lock = cache.lock(key);
         try {
-            TypedQuery<Code> query = em.createNamedQuery(
-                        codingSchemeVersion == null
-                            ? Code.FIND_BY_CODE_VALUE_WITHOUT_SCHEME_VERSION
-                            : Code.FIND_BY_CODE_VALUE_WITH_SCHEME_VERSION,
-                        Code.class)
-                    .setParameter(1, codeValue)
-                    .setParameter(2, codingSchemeDesignator);
-            if (codingSchemeVersion != null)
-                query.setParameter(3, codingSchemeVersion);
-            return query.getSingleResult();
-        } catch (NoResultException e) {
-            Code code = new Code(codeValue, codingSchemeDesignator,
+            synchronized (lock) {
+                return findOrCreateCode0(em, key, codeMeaning);
+            }
+        } finally {
+            cache.unlock(key, lock);
+        }
+    }
+
+    private static long findOrCreateCode0(EntityManager em,
+            List<String> key, String codeMeaning) {
+        Long pk = cache.peek(key);
+        if (pk != null)
+            return pk;
+
+        String codeValue = key.get(0);
+        String codingSchemeDesignator = key.get(1);
+        String codingSchemeVersion = key.get(2);
+        TypedQuery<Code> query = em.createNamedQuery(
+                    codingSchemeVersion == null
+                        ? Code.FIND_BY_CODE_VALUE_WITHOUT_SCHEME_VERSION
+                        : Code.FIND_BY_CODE_VALUE_WITH_SCHEME_VERSION,
+                    Code.class)
+                .setParameter(1, codeValue)
+                .setParameter(2, codingSchemeDesignator);
+        if (codingSchemeVersion != null)
+            query.setParameter(3, codingSchemeVersion);
+        // tolerate duplicates inserted by other nodes
+        List<Code> result = query.setMaxResults(1).getResultList();
+        if (result.isEmpty()) {
+            CodeCreator creator = (CodeCreator) lookup(CodeCreator.JNDI_NAME);
+            pk = creator.createCode(codeValue, codingSchemeDesignator,
                     codingSchemeVersion, codeMeaning);
-            em.persist(code);
-            return code;
+        } else {
+            pk = result.get(0).getPk();
+        }
+        cache.put(key, pk);
+        return pk;
+    }
+
+    private static Object lookup(String name) {
+        try {
+            InitialContext ctx = new InitialContext();
+            try {
+                return ctx.lookup(name);
+            } finally {
+                ctx.close();
+            }
+        } catch (NamingException e) {
+            throw new EJBException(e);
         }
     }
 
@@ -0,0 +1,116 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.ejb.store;
+
+import java.util.List;
+
+import javax.annotation.Resource;
+import javax.ejb.SessionContext;
+import javax.ejb.Stateless;
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.PersistenceContext;
+
+import org.dcm4chee.archive.persistence.Code;
+import org.dcm4chee.archive.persistence.Series;
+import org.dcm4chee.archive.persistence.Study;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Detects deviations of the incrementally maintained derived attributes of
+ * Series and Studies from the values recalculated from the database.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+@Stateless
+public class DerivedAttributesVerifierBean implements DerivedAttributesVerifier {
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(DerivedAttributesVerifierBean.class);
+
+    @PersistenceContext(unitName = "dcm4chee-arc")
+    private EntityManager em;
+
+    @Resource
+    private SessionContext ctx;
+
+    @Override
+    public List<Long> findStudyPks(long afterPk, int maxResults) {
+        return em.createNamedQuery(Study.FIND_PKS_AFTER, Long.class)
+                .setParameter(1, afterPk)
+                .setMaxResults(maxResults)
+                .getResultList();
+    }
+
+    @Override
+    public boolean verifyStudy(long studyPk, StoreParam storeParam, boolean repair) {
+        Study study = em.find(Study.class, studyPk,
+                LockModeType.PESSIMISTIC_WRITE);
+        if (study == null)
+            return false;
+
+        List<Code> hideConceptNameCodes = CodeFactory.createCodes(em,
+                RejectionNote.selectByAction(storeParam.getRejectionNotes(),
+                        RejectionNote.Action.HIDE_REJECTION_NOTE));
+        List<Code> hideRejectionCodes = CodeFactory.createCodes(em,
+                RejectionNote.selectByAction(storeParam.getRejectionNotes(),
+                        RejectionNote.Action.HIDE_REJECTED_INSTANCES));
+        boolean drift = false;
+        for (Series series : study.getSeries()) {
+            String before = series.toString();
+            if (SeriesUpdate.updateSeriesAttributes(em, series,
+                    hideConceptNameCodes, hideRejectionCodes)) {
+                LOG.warn("Derived attributes differ: {} - recalculated: {}",
+                        before, series);
+                drift = true;
+            }
+        }
+        String before = study.toString();
+        if (SeriesUpdate.updateStudy(em, study)) {
+            LOG.warn("Derived attributes differ: {} - recalculated: {}",
+                    before, study);
+            drift = true;
+        }
+        if (drift && !repair)
+            ctx.setRollbackOnly();
+        return drift;
+    }
+
+}
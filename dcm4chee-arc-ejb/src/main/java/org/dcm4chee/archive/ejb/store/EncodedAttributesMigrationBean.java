@@ -0,0 +1,110 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.ejb.store;
+
+import java.util.List;
+
+import javax.ejb.Stateless;
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.PersistenceContext;
+import javax.persistence.metamodel.EntityType;
+
+import org.dcm4chee.archive.persistence.Utils;
+
+/**
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+@Stateless
+public class EncodedAttributesMigrationBean implements EncodedAttributesMigration {
+
+    @PersistenceContext(unitName = "dcm4chee-arc")
+    private EntityManager em;
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public long migrate(String entityName, long afterPk, int limit) {
+        List<Object[]> list = em.createQuery(
+                "SELECT e.pk, e.encodedAttributes FROM " + entityName
+                + " e WHERE e.pk > ?1 ORDER BY e.pk")
+            .setParameter(1, afterPk)
+            .setMaxResults(limit)
+            .getResultList();
+        if (list.isEmpty())
+            return -1L;
+
+        Class<?> entityClass = null;
+        for (Object[] row : list) {
+            if (Utils.isReencodingRequired((byte[]) row[1])) {
+                if (entityClass == null)
+                    entityClass = entityClass(entityName);
+                reencode(entityName, entityClass, (Long) row[0]);
+            }
+        }
+        return (Long) list.get(list.size()-1)[0];
+    }
+
+    private void reencode(String entityName, Class<?> entityClass, Long pk) {
+        // lock the row and read the blob again, so an update by a concurrent
+        // transaction after the first read is not overwritten
+        em.lock(em.getReference(entityClass, pk), LockModeType.PESSIMISTIC_WRITE);
+        List<?> result = em.createQuery("SELECT e.encodedAttributes FROM "
+                + entityName + " e WHERE e.pk = ?1")
+            .setParameter(1, pk)
+            .getResultList();
+        if (result.isEmpty())
+            return;
+
+        byte[] b = (byte[]) result.get(0);
+        if (Utils.isReencodingRequired(b))
+            em.createQuery("UPDATE " + entityName
+                    + " e SET e.encodedAttributes = ?1 WHERE e.pk = ?2")
+                .setParameter(1, Utils.encodeAttributes(
+                        Utils.decodeAttributes(b)))
+                .setParameter(2, pk)
+                .executeUpdate();
+    }
+
+    private Class<?> entityClass(String entityName) {
+        for (EntityType<?> type : em.getMetamodel().getEntities())
+            if (type.getName().equals(entityName))
+                return type.getJavaType();
+        throw new IllegalArgumentException("entityName: " + entityName);
+    }
+}
@@ -0,0 +1,187 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.ejb.store;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maps natural keys of effectively immutable entities to their primary keys.
+ * Entries are only added after the transaction, which selected or inserted
+ * the entity, was committed, so the cache never refers to rolled back rows.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+public class EntityPkCache<K> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EntityPkCache.class);
+
+    private static final String TSR_JNDI_NAME =
+            "java:comp/TransactionSynchronizationRegistry";
+
+    private static volatile TransactionSynchronizationRegistry tsr;
+
+    private final Map<K,Long> pks;
+    private final ConcurrentHashMap<K,Object> locks =
+            new ConcurrentHashMap<K,Object>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public EntityPkCache() {
+        pks = new ConcurrentHashMap<K,Long>();
+    }
+
+    /**
+     * Creates a cache, which evicts the least recently used entry if it
+     * exceeds {@code maxSize} entries.
+     */
+    public EntityPkCache(final int maxSize) {
+        pks = Collections.synchronizedMap(new LinkedHashMap<K,Long>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K,Long> eldest) {
+                return size() > maxSize;
+            }
+        });
+    }
+
+    public Long get(K key) {
+        Long pk = pks.get(key);
+        (pk != null ? hits : misses).incrementAndGet();
+        return pk;
+    }
+
+    public Long peek(K key) {
+        return pks.get(key);
+    }
+
+    public void put(K key, long pk) {
+        pks.put(key, pk);
+    }
+
+    public void putAfterCommit(final K key, final long pk) {
+        TransactionSynchronizationRegistry tsr = tsr();
+        if (tsr == null || tsr.getTransactionKey() == null)
+            return;
+
+        tsr.registerInterposedSynchronization(new Synchronization() {
+
+            @Override
+            public void beforeCompletion() {}
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED)
+                    pks.put(key, pk);
+            }
+        });
+    }
+
+    /**
+     * Returns the lock object for {@code key}, to serialize the lookup or
+     * creation of one entity without blocking the lookup or creation of
+     * entities with other keys. Must be followed by {@link #unlock}.
+     */
+    public Object lock(K key) {
+        Object lock = new Object();
+        Object prev = locks.putIfAbsent(key, lock);
+        return prev != null ? prev : lock;
+    }
+
+    /**
+     * Releases the lock object returned by {@link #lock}. Threads still
+     * waiting for it find the entry put by the thread holding it.
+     */
+    public void unlock(K key, Object lock) {
+        locks.remove(key, lock);
+    }
+
+    public void remove(K key) {
+        pks.remove(key);
+    }
+
+    public void clear() {
+        pks.clear();
+    }
+
+    public int size() {
+        return pks.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static TransactionSynchronizationRegistry tsr() {
+        TransactionSynchronizationRegistry result = tsr;
+        if (result == null) {
+            try {
+                InitialContext ctx = new InitialContext();
+                try {
+                    tsr = result = (TransactionSynchronizationRegistry)
+                            ctx.lookup(TSR_JNDI_NAME);
+                } finally {
+                    ctx.close();
+                }
+            } catch (NamingException e) {
+                LOG.warn("Failed to lookup " + TSR_JNDI_NAME
+                        + " - entity cache disabled", e);
+            }
+        }
+        return result;
+    }
+}
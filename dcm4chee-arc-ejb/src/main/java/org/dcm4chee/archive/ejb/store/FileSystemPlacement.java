@@ -0,0 +1,242 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.ejb.store;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dcm4chee.archive.persistence.FileSystem;
+
+/**
+ * In-memory registry of the writeable File Systems of each File System
+ * Group, which distributes new Associations across them according to the
+ * configured {@link Policy}, without querying the database.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+public abstract class FileSystemPlacement {
+
+    public enum Policy {
+        ROUND_ROBIN,
+        LEAST_RECENTLY_WRITTEN,
+        MOST_FREE_SPACE
+    }
+
+    private static volatile Policy policy = Policy.ROUND_ROBIN;
+
+    private static final ConcurrentHashMap<String,Group> groups =
+            new ConcurrentHashMap<String,Group>();
+
+    private static final ConcurrentHashMap<Long,Long> sampledUsableSpace =
+            new ConcurrentHashMap<Long,Long>();
+
+    private static final AtomicLong writeSeq = new AtomicLong();
+
+    private static class Candidate {
+        volatile FileSystem fs;
+        final File dir;
+        volatile long lastWritten;
+
+        Candidate(FileSystem fs) {
+            this.fs = fs;
+            this.dir = fs.getDirectory();
+        }
+    }
+
+    private static class Group {
+        final Candidate[] candidates;
+        final AtomicInteger next = new AtomicInteger();
+
+        Group(Collection<FileSystem> fileSystems) {
+            candidates = new Candidate[fileSystems.size()];
+            int i = 0;
+            for (FileSystem fs : fileSystems)
+                candidates[i++] = new Candidate(fs);
+        }
+
+        FileSystem select(Policy policy) {
+            if (candidates.length == 1)
+                return candidates[0].fs;
+
+            switch (policy) {
+            case LEAST_RECENTLY_WRITTEN:
+                return leastRecentlyWritten();
+            case MOST_FREE_SPACE:
+                return mostFreeSpace();
+            default:
+                return candidates[
+                        (next.getAndIncrement() & Integer.MAX_VALUE)
+                        % candidates.length].fs;
+            }
+        }
+
+        private FileSystem leastRecentlyWritten() {
+            int n = candidates.length;
+            int start = (next.getAndIncrement() & Integer.MAX_VALUE) % n;
+            Candidate selected = candidates[start];
+            for (int i = 1; i < n; i++) {
+                Candidate c = candidates[(start + i) % n];
+                if (c.lastWritten < selected.lastWritten)
+                    selected = c;
+            }
+            return selected.fs;
+        }
+
+        void written(long pk) {
+            for (Candidate c : candidates)
+                if (c.fs.getPk() == pk)
+                    c.lastWritten = writeSeq.incrementAndGet();
+        }
+
+        /**
+         * Replaces the File System entities, if the group consists of the
+         * same File Systems, keeping the state of the policies.
+         */
+        boolean update(Collection<FileSystem> fileSystems) {
+            if (fileSystems.size() != candidates.length)
+                return false;
+
+            int i = 0;
+            for (FileSystem fs : fileSystems) {
+                FileSystem prev = candidates[i++].fs;
+                if (prev.getPk() != fs.getPk()
+                        || !prev.getURI().equals(fs.getURI()))
+                    return false;
+            }
+            i = 0;
+            for (FileSystem fs : fileSystems)
+                candidates[i++].fs = fs;
+            return true;
+        }
+
+        private FileSystem mostFreeSpace() {
+            Candidate selected = null;
+            long max = -1L;
+            for (Candidate c : candidates) {
+                long usable = FileSystemPlacement.usableSpace(c.fs, c.dir);
+                if (usable > max) {
+                    max = usable;
+                    selected = c;
+                }
+            }
+            return selected.fs;
+        }
+    }
+
+    public static Policy getPolicy() {
+        return policy;
+    }
+
+    public static void setPolicy(Policy policy) {
+        if (policy == null)
+            throw new NullPointerException();
+        FileSystemPlacement.policy = policy;
+    }
+
+    /**
+     * Returns the File System selected for a new Association or
+     * {@code null}, if the writeable File Systems of the group are not
+     * registered. Registered File Systems are detached entities.
+     */
+    public static FileSystem select(String groupID) {
+        Group group = groups.get(groupID);
+        return group != null ? group.select(policy) : null;
+    }
+
+    /**
+     * Registers the writeable File Systems of a group. A group already
+     * registered with the same File Systems is kept, so repeated
+     * registration does not reset the state of the {@link Policy}.
+     */
+    public static void register(String groupID,
+            Collection<FileSystem> writeableFileSystems) {
+        if (writeableFileSystems.isEmpty()) {
+            groups.remove(groupID);
+            return;
+        }
+        Group group = groups.get(groupID);
+        if (group == null || !group.update(writeableFileSystems))
+            groups.put(groupID, new Group(writeableFileSystems));
+    }
+
+    /**
+     * Records a write to a registered File System, which is considered
+     * by {@link Policy#LEAST_RECENTLY_WRITTEN}.
+     */
+    public static void written(FileSystem fs) {
+        Group group = groups.get(fs.getGroupID());
+        if (group != null)
+            group.written(fs.getPk());
+    }
+
+    public static void invalidate(String groupID) {
+        groups.remove(groupID);
+    }
+
+    public static void invalidateAll() {
+        groups.clear();
+    }
+
+    public static Set<String> getGroupIDs() {
+        return groups.keySet();
+    }
+
+    public static int getNumberOfWriteableFileSystems(String groupID) {
+        Group group = groups.get(groupID);
+        return group != null ? group.candidates.length : 0;
+    }
+
+    /**
+     * Sets usable space of a File System sampled by a monitor, which is
+     * used by {@link Policy#MOST_FREE_SPACE} instead of querying the
+     * File System on each selection.
+     */
+    public static void setUsableSpace(long pk, long usableSpace) {
+        sampledUsableSpace.put(pk, usableSpace);
+    }
+
+    static long usableSpace(FileSystem fs, File dir) {
+        Long sampled = sampledUsableSpace.get(fs.getPk());
+        return sampled != null ? sampled.longValue() : dir.getUsableSpace();
+    }
+}
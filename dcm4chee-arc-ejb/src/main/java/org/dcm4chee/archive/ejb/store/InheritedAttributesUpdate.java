@@ -0,0 +1,96 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.ejb.store;
+
+import java.util.List;
+
+import javax.ejb.Local;
+
+/**
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+@Local
+public interface InheritedAttributesUpdate {
+
+    /**
+     * Returns pks of Series following {@code afterPk}, which inherited
+     * attributes were marked as outdated by an update of the Series.
+     */
+    List<Long> findSeriesPks(long afterPk, int limit);
+
+    /**
+     * Returns pk and attributes version of Studies following
+     * {@code afterPk}, which update marked the inherited attributes of their
+     * Series as outdated.
+     */
+    List<Object[]> findStudies(long afterPk, int limit);
+
+    /**
+     * Returns pk and attributes version of Patients following
+     * {@code afterPk}, which update marked the inherited attributes of their
+     * Series as outdated.
+     */
+    List<Object[]> findPatients(long afterPk, int limit);
+
+    /**
+     * Recalculates the inherited attributes of the Series with the
+     * specified pk.
+     * 
+     * @return {@code false}, if the Series was updated concurrently, so the
+     *         inherited attributes remain outdated.
+     */
+    boolean updateInheritedAttributes(long seriesPk);
+
+    /**
+     * Recalculates the inherited attributes of all Series of the Study and
+     * unmarks the Study, if it was not updated since {@code version}.
+     * 
+     * @return number of updated Series
+     */
+    int updateInheritedAttributesOfStudy(long studyPk, int version);
+
+    /**
+     * Recalculates the inherited attributes of all Series of the Patient
+     * and unmarks the Patient, if it was not updated since {@code version}.
+     * 
+     * @return number of updated Series
+     */
+    int updateInheritedAttributesOfPatient(long patientPk, int version);
+
+}
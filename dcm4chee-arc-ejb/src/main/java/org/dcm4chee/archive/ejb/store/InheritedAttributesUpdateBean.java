@@ -0,0 +1,140 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.ejb.store;
+
+import java.util.List;
+
+import javax.ejb.Stateless;
+import javax.persistence.EntityManager;
+import javax.persistence.NoResultException;
+import javax.persistence.PersistenceContext;
+
+import org.dcm4chee.archive.ejb.query.ParentAttributes;
+import org.dcm4chee.archive.persistence.Patient;
+import org.dcm4chee.archive.persistence.Series;
+import org.dcm4chee.archive.persistence.Study;
+
+/**
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+@Stateless
+public class InheritedAttributesUpdateBean implements InheritedAttributesUpdate {
+
+    @PersistenceContext(unitName = "dcm4chee-arc")
+    private EntityManager em;
+
+    @Override
+    public List<Long> findSeriesPks(long afterPk, int limit) {
+        return em.createNamedQuery(
+                    Series.FIND_PKS_WITH_DIRTY_INHERITED_ATTRIBUTES, Long.class)
+                .setParameter(1, afterPk)
+                .setMaxResults(limit)
+                .getResultList();
+    }
+
+    @Override
+    public List<Object[]> findStudies(long afterPk, int limit) {
+        return find(Study.FIND_WITH_DIRTY_INHERITED_ATTRIBUTES, afterPk, limit);
+    }
+
+    @Override
+    public List<Object[]> findPatients(long afterPk, int limit) {
+        return find(Patient.FIND_WITH_DIRTY_INHERITED_ATTRIBUTES, afterPk, limit);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Object[]> find(String queryName, long afterPk, int limit) {
+        return em.createNamedQuery(queryName)
+                .setParameter(1, afterPk)
+                .setMaxResults(limit)
+                .getResultList();
+    }
+
+    @Override
+    public boolean updateInheritedAttributes(long seriesPk) {
+        Object[] result;
+        try {
+            result = (Object[]) em.createNamedQuery(Series.ATTRIBUTES_TO_INHERIT)
+                    .setParameter(1, seriesPk)
+                    .getSingleResult();
+        } catch (NoResultException e) {
+            return false;
+        }
+        byte[] inherited = ParentAttributes.merge(
+                (byte[]) result[2], (byte[]) result[1], (byte[]) result[0]);
+        return em.createNamedQuery(Series.SET_INHERITED_ATTRIBUTES)
+                .setParameter(1, inherited)
+                .setParameter(2, result[4])
+                .setParameter(3, result[5])
+                .setParameter(4, seriesPk)
+                .setParameter(5, result[3])
+                .executeUpdate() > 0;
+    }
+
+    @Override
+    public int updateInheritedAttributesOfStudy(long studyPk, int version) {
+        int count = updateInheritedAttributes(Series.FIND_PKS_OF_STUDY, studyPk);
+        em.createNamedQuery(Study.CLEAR_INHERITED_DIRTY)
+                .setParameter(1, studyPk)
+                .setParameter(2, version)
+                .executeUpdate();
+        return count;
+    }
+
+    @Override
+    public int updateInheritedAttributesOfPatient(long patientPk, int version) {
+        int count = updateInheritedAttributes(Series.FIND_PKS_OF_PATIENT, patientPk);
+        em.createNamedQuery(Patient.CLEAR_INHERITED_DIRTY)
+                .setParameter(1, patientPk)
+                .setParameter(2, version)
+                .executeUpdate();
+        return count;
+    }
+
+    private int updateInheritedAttributes(String queryName, long pk) {
+        int count = 0;
+        for (Long seriesPk : em.createNamedQuery(queryName, Long.class)
+                .setParameter(1, pk)
+                .getResultList())
+            if (updateInheritedAttributes(seriesPk))
+                count++;
+        return count;
+    }
+
+}
@@ -48,6 +48,7 @@ import org.dcm4che.net.service.DicomServiceException;
 import org.dcm4chee.archive.persistence.Availability;
 import org.dcm4chee.archive.persistence.FileSystem;
 import org.dcm4chee.archive.persistence.Instance;
+import org.dcm4chee.archive.persistence.Series;
 
 /**
  * @author Gunter Zeilinger <gunterze@gmail.com>
@@ -65,10 +66,33 @@ public interface InstanceStore {
             File file, String digest, String tsuid, StoreParam storeParam)
                     throws DicomServiceException;
 
-    void close();
+    /**
+     * Adds a reference to an object stored at the specified offset of a
+     * container file, shared with other objects.
+     */
+    boolean addContainerEntry(String sourceAET, Attributes data,
+            Attributes modified, File container, long offset, long length,
+            String digest, String tsuid, StoreParam storeParam)
+                    throws DicomServiceException;
+
+    /**
+     * Returns {@code true} if {@link #addFileRef} would ignore the object as
+     * duplicate of an already stored instance, and throws the exception
+     * {@link #addFileRef} would throw for an instance rejected by a previous
+     * Rejection Note, without modifying the database.
+     */
+    boolean isDuplicate(Attributes data, String digest, StoreParam storeParam)
+            throws DicomServiceException;
+
+    void commit() throws DicomServiceException;
+
+    void close() throws DicomServiceException;
 
     FileSystem selectFileSystem(String groupID) throws DicomServiceException;
 
+    FileSystem selectFileSystem(String groupID, File file)
+            throws DicomServiceException;
+
     FileSystem getCurrentFileSystem();
 
     Attributes createIANforPreviousMPPS() throws DicomServiceException;
@@ -77,4 +101,6 @@ public interface InstanceStore {
 
     Collection<Attributes> createIANsforRejectionNote()
             throws DicomServiceException;
+
+    Collection<Series> removeDirtySeries();
 }
@@ -47,20 +47,24 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
 import javax.ejb.EJB;
 import javax.ejb.Remove;
 import javax.ejb.Stateful;
-import javax.ejb.TransactionAttribute;
-import javax.ejb.TransactionAttributeType;
+import javax.ejb.TransactionManagement;
+import javax.ejb.TransactionManagementType;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
-import javax.persistence.NoResultException;
 import javax.persistence.PersistenceUnit;
+import javax.persistence.TypedQuery;
+import javax.transaction.UserTransaction;
 
 import org.dcm4che.data.Attributes;
 import org.dcm4che.data.Sequence;
@@ -71,6 +75,7 @@ import org.dcm4che.net.Status;
 import org.dcm4che.net.service.DicomServiceException;
 import org.dcm4che.soundex.FuzzyStr;
 import org.dcm4chee.archive.ejb.query.IANQuery;
+import org.dcm4chee.archive.ejb.query.ParentAttributes;
 import org.dcm4chee.archive.persistence.AttributeFilter;
 import org.dcm4chee.archive.persistence.Availability;
 import org.dcm4chee.archive.persistence.Code;
@@ -85,13 +90,23 @@ import org.dcm4chee.archive.persistence.ScheduledProcedureStep;
 import org.dcm4chee.archive.persistence.Series;
 import org.dcm4chee.archive.persistence.Study;
 import org.dcm4chee.archive.persistence.VerifyingObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * @author Gunter Zeilinger <gunterze@gmail.com>
  */
 @Stateful
+@TransactionManagement(TransactionManagementType.BEAN)
 public class InstanceStoreBean implements InstanceStore {
 
+    private static final Logger LOG = LoggerFactory.getLogger(InstanceStoreBean.class);
+
+    private static final int MAX_IN_PARAMETERS = 500;
+
+    @Resource
+    private UserTransaction utx;
+
     @PersistenceUnit(unitName = "dcm4chee-arc")
     private EntityManagerFactory emf;
     private EntityManager em;
@@ -103,11 +118,15 @@ public class InstanceStoreBean implements InstanceStore {
     private Series cachedSeries;
     private PerformedProcedureStep prevMpps;
     private PerformedProcedureStep curMpps;
+    private MppsRefIndex curMppsRefs;
     private Code curRejectionCode;
     private List<Code> hideRejectionCodes;
     private List<Code> hideConceptNameCodes;
     private HashMap<String,HashSet<String>> rejectedInstances =
             new HashMap<String,HashSet<String>>();
+    private int uncommitted;
+    private boolean deferSeriesUpdate;
+    private final LinkedHashSet<Series> dirtySeries = new LinkedHashSet<Series>();
 
     @PostConstruct
     public void init() {
@@ -115,13 +134,11 @@ public class InstanceStoreBean implements InstanceStore {
     }
 
     @Override
-    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
     public FileSystem getCurrentFileSystem() {
         return curFileSystem;
     }
 
     @Override
-    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
     public Attributes createIANforPreviousMPPS() throws DicomServiceException {
         try {
             return createIANforMPPS(prevMpps, Collections.<String> emptySet());
@@ -131,7 +148,6 @@ public class InstanceStoreBean implements InstanceStore {
     }
 
     @Override
-    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
     public Attributes createIANforCurrentMPPS() throws DicomServiceException {
         try {
             return createIANforMPPS(curMpps, Collections.<String> emptySet());
@@ -151,63 +167,154 @@ public class InstanceStoreBean implements InstanceStore {
     public boolean addFileRef(String sourceAET, Attributes data, Attributes modified,
             File file, String digest, String tsuid, StoreParam storeParam)
                     throws DicomServiceException {
-        em.joinTransaction();
+        return addFileRef(sourceAET, data, modified, file, -1L, file.length(),
+                digest, tsuid, storeParam);
+    }
+
+    @Override
+    public boolean addContainerEntry(String sourceAET, Attributes data,
+            Attributes modified, File container, long offset, long length,
+            String digest, String tsuid, StoreParam storeParam)
+                    throws DicomServiceException {
+        return addFileRef(sourceAET, data, modified, container, offset, length,
+                digest, tsuid, storeParam);
+    }
+
+    private boolean addFileRef(String sourceAET, Attributes data,
+            Attributes modified, File file, long offset, long length,
+            String digest, String tsuid, StoreParam storeParam)
+                    throws DicomServiceException {
+        beginTransaction();
+        boolean added;
+        try {
+            added = addFileRef0(sourceAET, data, modified, file, offset, length,
+                    digest, tsuid, storeParam);
+        } catch (DicomServiceException e) {
+            commitIfDue(storeParam);
+            throw e;
+        } catch (RuntimeException e) {
+            rollback();
+            throw e;
+        }
+        commitIfDue(storeParam);
+        return added;
+    }
+
+    private boolean addFileRef0(String sourceAET, Attributes data, Attributes modified,
+            File file, long offset, long length, String digest, String tsuid,
+            StoreParam storeParam) throws DicomServiceException {
         initHideRejectionCodes(storeParam);
         initHideConceptNameCodes(storeParam);
+        deferSeriesUpdate = storeParam.getDerivedAttributesMaxStaleness() > 0;
         FileSystem fs = curFileSystem;
-        Instance inst;
-        try {
-            inst = findInstance(data.getString(Tag.SOPInstanceUID, null));
+        String filePath = file.toURI().toString().substring(fs.getURI().length());
+        String iuid = data.getString(Tag.SOPInstanceUID, null);
+        Instance inst = InstanceUIDFilter.mightExist(iuid)
+                ? findInstance(iuid)
+                : null;
+        Instance replaced = null;
+        if (inst == null) {
+            inst = newInstance0(sourceAET, data, modified, fs.getAvailability(), storeParam);
+        } else {
+            Object[] counts = countFileRefs(inst, digest, fs, filePath, offset);
+            if (count(counts[3]) > 0) {
+                LOG.info("{} already referenced by {}", file, inst);
+                return true;
+            }
             Code rejectionCode = inst.getRejectionCode();
             RejectionNote rn = storeParam.getRejectionNote(rejectionCode);
             if (rn != null && rn.getActions().contains(NOT_ACCEPT_SUBSEQUENT_OCCURRENCE))
                     throw new DicomServiceException(Status.CannotUnderstand,
                             rejectionCode.getCodeMeaning());
-            switch (storeDuplicate(inst, digest, fs.getGroupID(), storeParam)) {
+            switch (storeDuplicate(counts, digest, storeParam)) {
             case IGNORE:
                 coerceInstanceAttributes(inst, data, modified);
                 if (rn != null && rn.getActions().contains(NOT_REJECT_SUBSEQUENT_OCCURRENCE))
-                    inst.setRejectionCode(null);
+                    unrejectInstance(inst);
+                em.flush();
+                em.detach(inst);
                 return false;
             case STORE:
                 updateInstanceAttributes(inst, data, modified, storeParam);
                 if (rn != null && rn.getActions().contains(NOT_REJECT_SUBSEQUENT_OCCURRENCE))
-                    inst.setRejectionCode(null);
+                    unrejectInstance(inst);
                 break;
             case REPLACE:
-                inst.setReplaced(true);
-                inst = newInstance(sourceAET, data, modified, fs.getAvailability(), storeParam);
+                replaced = inst;
+                replaced.setReplaced(true);
+                inst = newInstance0(sourceAET, data, modified, fs.getAvailability(), storeParam);
                 if (rn != null && !rn.getActions().contains(NOT_REJECT_SUBSEQUENT_OCCURRENCE))
                     inst.setRejectionCode(rejectionCode);
+                markDirty(inst.getSeries());
                 break;
             }
-        } catch (NoResultException e) {
-            inst = newInstance(sourceAET, data, modified, fs.getAvailability(), storeParam);
         }
-        String filePath = file.toURI().toString().substring(fs.getURI().length());
-        FileRef fileRef = new FileRef(fs, filePath, tsuid, file.length(), digest);
+        FileRef fileRef = new FileRef(fs, filePath, offset, tsuid, length, digest);
         fileRef.setInstance(inst);
         em.persist(fileRef);
         em.flush();
         em.detach(fileRef);
+        FileSystemPlacement.written(fs);
+        // keep no Instances managed, which may become stale by bulk updates
+        em.detach(inst);
+        if (replaced != null)
+            em.detach(replaced);
         return true;
     }
 
-    private StoreDuplicate.Action storeDuplicate(Instance inst, String digest,
-            String fsGroupID, StoreParam storeParam) {
-        Collection<FileRef> files = inst.getFileRefs();
-        boolean noFiles = files.isEmpty();
-        boolean equalsChecksum = false;
-        boolean equalsFileSystemGroupID = false;
-        for (FileRef fileRef : files) {
-            if (!equalsFileSystemGroupID && fsGroupID.equals(fileRef.getFileSystem().getGroupID()))
-                equalsFileSystemGroupID = true;
-            if (!equalsChecksum && digest != null && digest.equals(fileRef.getDigest()))
-                equalsChecksum = true;
+    @Override
+    public boolean isDuplicate(Attributes data, String digest,
+            StoreParam storeParam) throws DicomServiceException {
+        String iuid = data.getString(Tag.SOPInstanceUID, null);
+        Instance inst = InstanceUIDFilter.mightExist(iuid)
+                ? findInstance(iuid)
+                : null;
+        if (inst == null)
+            return false;
+
+        try {
+            Code rejectionCode = inst.getRejectionCode();
+            RejectionNote rn = storeParam.getRejectionNote(rejectionCode);
+            if (rn != null && rn.getActions().contains(NOT_ACCEPT_SUBSEQUENT_OCCURRENCE))
+                    throw new DicomServiceException(Status.CannotUnderstand,
+                            rejectionCode.getCodeMeaning());
+            Object[] counts = countFileRefs(inst, digest, curFileSystem, "", -1L);
+            return storeDuplicate(counts, digest, storeParam)
+                    == StoreDuplicate.Action.IGNORE;
+        } finally {
+            em.detach(inst);
         }
+    }
+
+    private void unrejectInstance(Instance inst) {
+        inst.setRejectionCode(null);
+        updateOrDeferSeries(inst.getSeries());
+    }
+
+    private Object[] countFileRefs(Instance inst, String digest,
+            FileSystem fs, String filePath, long offset) {
+        return (Object[]) em.createNamedQuery(FileRef.CLASSIFY_DUPLICATE)
+                .setParameter(1, inst)
+                .setParameter(2, digest != null ? digest : "")
+                .setParameter(3, fs.getGroupID())
+                .setParameter(4, fs)
+                .setParameter(5, filePath)
+                .setParameter(6, offset)
+                .getSingleResult();
+    }
+
+    private StoreDuplicate.Action storeDuplicate(Object[] counts, String digest,
+            StoreParam storeParam) {
+        boolean noFiles = count(counts[0]) == 0;
+        boolean equalsChecksum = digest != null && count(counts[1]) > 0;
+        boolean equalsFileSystemGroupID = count(counts[2]) > 0;
         return storeParam.getStoreDuplicate(noFiles, equalsChecksum, equalsFileSystemGroupID);
     }
 
+    private static long count(Object o) {
+        return o != null ? ((Number) o).longValue() : 0L;
+    }
+
     private void updateInstanceAttributes(Instance inst, Attributes data,
             Attributes modified, StoreParam storeParam) {
         Attributes instAttrs = inst.getAttributes();
@@ -238,9 +345,27 @@ public class InstanceStoreBean implements InstanceStore {
     public Instance newInstance(String sourceAET, Attributes data,
             Attributes modified, Availability availability, StoreParam storeParam)
                     throws DicomServiceException {
-        em.joinTransaction();
+        beginTransaction();
+        Instance inst;
+        try {
+            inst = newInstance0(sourceAET, data, modified, availability, storeParam);
+        } catch (DicomServiceException e) {
+            commitIfDue(storeParam);
+            throw e;
+        } catch (RuntimeException e) {
+            rollback();
+            throw e;
+        }
+        commitIfDue(storeParam);
+        return inst;
+    }
+
+    private Instance newInstance0(String sourceAET, Attributes data,
+            Attributes modified, Availability availability, StoreParam storeParam)
+                    throws DicomServiceException {
         initHideRejectionCodes(storeParam);
         initHideConceptNameCodes(storeParam);
+        deferSeriesUpdate = storeParam.getDerivedAttributesMaxStaleness() > 0;
         rejectedInstances.clear();
         Attributes conceptNameCode = data.getNestedDataset(Tag.ConceptNameCodeSequence);
         RejectionNote rn = storeParam.getRejectionNote(conceptNameCode);
@@ -271,13 +396,57 @@ public class InstanceStoreBean implements InstanceStore {
         inst.setAttributes(data, 
                 storeParam.getAttributeFilter(Entity.Instance),
                 storeParam.getFuzzyStr());
-        series.setDirty(true);
         em.persist(inst);
+        InstanceUIDFilter.add(inst.getSopInstanceUID());
+        SeriesUpdate.addInstance(em, series, inst, hideConceptNameCodes, hideRejectionCodes);
         em.flush();
         em.detach(inst);
         return inst;
     }
 
+    private void beginTransaction() throws DicomServiceException {
+        try {
+            if (utx.getStatus() == javax.transaction.Status.STATUS_NO_TRANSACTION)
+                utx.begin();
+        } catch (Exception e) {
+            throw new DicomServiceException(Status.ProcessingFailure, e);
+        }
+        em.joinTransaction();
+    }
+
+    private void commitIfDue(StoreParam storeParam) throws DicomServiceException {
+        if (++uncommitted >= storeParam.getGroupCommitSize())
+            commit();
+    }
+
+    @Override
+    public void commit() throws DicomServiceException {
+        int count = uncommitted;
+        uncommitted = 0;
+        try {
+            if (utx.getStatus() != javax.transaction.Status.STATUS_NO_TRANSACTION)
+                utx.commit();
+        } catch (Exception e) {
+            if (count > 1)
+                LOG.error("Failed to commit group of " + count + " objects", e);
+            throw new DicomServiceException(Status.ProcessingFailure, e);
+        }
+    }
+
+    private void rollback() {
+        int count = uncommitted;
+        uncommitted = 0;
+        try {
+            if (utx.getStatus() != javax.transaction.Status.STATUS_NO_TRANSACTION)
+                utx.rollback();
+        } catch (Exception e) {
+            LOG.warn("Failed to rollback transaction", e);
+        }
+        if (count > 0)
+            LOG.error("Rollback discarded " + count
+                    + " previously received objects of open group commit");
+    }
+
     private void initHideConceptNameCodes(StoreParam storeParam) {
         if (hideConceptNameCodes == null)
             hideConceptNameCodes = CodeFactory.createCodes(em,
@@ -297,6 +466,9 @@ public class InstanceStoreBean implements InstanceStore {
         boolean hideRejectedInstances = rn.getActions()
                 .contains(RejectionNote.Action.HIDE_REJECTED_INSTANCES);
         Code rejectionCcode = CodeFactory.getCode(em, rn);
+        Long rejectionCodePk = rejectionCcode != null ? rejectionCcode.getPk() : null;
+        LinkedHashMap<Series,int[]> diffs = new LinkedHashMap<Series,int[]>();
+        ArrayList<Long> pks = new ArrayList<Long>();
         HashMap<String,String> iuid2cuid = new HashMap<String,String>();
         Sequence refStudySeq = data.getSequence(Tag.CurrentRequestedProcedureEvidenceSequence);
         if (refStudySeq == null)
@@ -318,40 +490,79 @@ public class InstanceStoreBean implements InstanceStore {
                         rejectionFailed("Rejection failed: Missing Type 1 attribute");
                     iuid2cuid.put(refIUID, refCUID);
                 }
-                List<Instance> insts =
-                    em.createNamedQuery(Instance.FIND_BY_SERIES_INSTANCE_UID, Instance.class)
-                      .setParameter(1, seriesIUID)
-                      .getResultList();
-                if (!insts.isEmpty()) {
-                    Series series = insts.get(0).getSeries();
-                    Study study = series.getStudy();
-                    if (!studyIUID.equals(study.getStudyInstanceUID()))
-                        rejectionFailed("Rejection failed: Mismatch of Study Instance UID");
-                    if (hideRejectedInstances
-                            && UID.ModalityPerformedProcedureStepSOPClass
-                                .equals(series.getPerformedProcedureStepClassUID())) {
-                        String mppsiuid = series.getPerformedProcedureStepInstanceUID();
-                        HashSet<String> iuids = rejectedInstances.get(mppsiuid);
-                        if (iuids == null)
-                            rejectedInstances.put(mppsiuid,
-                                    iuids = new HashSet<String>(iuid2cuid.keySet()));
-                        else
-                            iuids.addAll(iuid2cuid.keySet());
-                    }
-                    for (Instance inst : insts) {
-                        String refCUID = iuid2cuid.remove(inst.getSopInstanceUID());
-                        if (refCUID != null) {
-                            if (!refCUID.equals(inst.getSopClassUID()))
-                                rejectionFailed("Rejection failed: Mismatch of SOP Class UID");
-                            inst.setRejectionCode(rejectionCcode);
+                if (iuid2cuid.isEmpty())
+                    continue;
+                Series series = findSeries(seriesIUID);
+                if (series == null)
+                    rejectionFailed("Rejection failed: No such referenced SOP Instances");
+                Study study = series.getStudy();
+                if (!studyIUID.equals(study.getStudyInstanceUID()))
+                    rejectionFailed("Rejection failed: Mismatch of Study Instance UID");
+                if (hideRejectedInstances
+                        && UID.ModalityPerformedProcedureStepSOPClass
+                            .equals(series.getPerformedProcedureStepClassUID())) {
+                    String mppsiuid = series.getPerformedProcedureStepInstanceUID();
+                    HashSet<String> iuids = rejectedInstances.get(mppsiuid);
+                    if (iuids == null)
+                        rejectedInstances.put(mppsiuid,
+                                iuids = new HashSet<String>(iuid2cuid.keySet()));
+                    else
+                        iuids.addAll(iuid2cuid.keySet());
+                }
+                int[] diff = diffs.get(series);
+                if (diff == null)
+                    diffs.put(series, diff = new int[1]);
+                for (List<String> iuids : chunks(new ArrayList<String>(iuid2cuid.keySet()))) {
+                    List<?> rows = em.createNamedQuery(
+                            Instance.FIND_REJECTION_STATE_BY_SOP_INSTANCE_UIDS)
+                        .setParameter(1, series)
+                        .setParameter(2, iuids)
+                        .getResultList();
+                    for (Object o : rows) {
+                        Object[] row = (Object[]) o;
+                        String refCUID = iuid2cuid.remove(row[1]);
+                        if (refCUID == null)
+                            continue;
+                        if (!refCUID.equals(row[2]))
+                            rejectionFailed("Rejection failed: Mismatch of SOP Class UID");
+                        pks.add((Long) row[0]);
+                        if (!SeriesUpdate.containsCode(hideConceptNameCodes, (Long) row[3])) {
+                            if (!SeriesUpdate.containsCode(hideRejectionCodes, (Long) row[4]))
+                                diff[0]--;
+                            if (!SeriesUpdate.containsCode(hideRejectionCodes, rejectionCodePk))
+                                diff[0]++;
                         }
                     }
-                    updateSeries(series);
                 }
                 if (!iuid2cuid.isEmpty())
                     rejectionFailed("Rejection failed: No such referenced SOP Instances");
             }
         }
+        if (pks.isEmpty())
+            return;
+
+        em.flush();
+        for (List<Long> chunk : chunks(pks))
+            em.createNamedQuery(Instance.SET_REJECTION_CODE)
+                .setParameter(1, rejectionCcode)
+                .setParameter(2, chunk)
+                .executeUpdate();
+        for (Entry<Series,int[]> entry : diffs.entrySet()) {
+            Series series = entry.getKey();
+            if (deferSeriesUpdate || series.isDirty())
+                updateOrDeferSeries(series);
+            else
+                SeriesUpdate.addNumberOfInstances(em, series, entry.getValue()[0]);
+        }
+    }
+
+    private static <T> List<List<T>> chunks(List<T> list) {
+        int size = list.size();
+        List<List<T>> chunks = new ArrayList<List<T>>(
+                (size + MAX_IN_PARAMETERS - 1) / MAX_IN_PARAMETERS);
+        for (int i = 0; i < size; i += MAX_IN_PARAMETERS)
+            chunks.add(list.subList(i, Math.min(size, i + MAX_IN_PARAMETERS)));
+        return chunks;
     }
 
     @Override
@@ -377,14 +588,32 @@ public class InstanceStoreBean implements InstanceStore {
     @Override
     public FileSystem selectFileSystem(String groupID)
             throws DicomServiceException {
-        em.joinTransaction();
+        FileSystem fs = FileSystemPlacement.select(groupID);
+        if (fs != null)
+            return curFileSystem = fs;
+
+        beginTransaction();
+        boolean success = false;
         try {
-            return curFileSystem =
-                    em.createNamedQuery(FileSystem.FIND_BY_GROUP_ID_AND_STATUS, FileSystem.class)
-                        .setParameter(1, groupID)
-                        .setParameter(2, FileSystemStatus.RW)
-                        .getSingleResult();
-        } catch (NoResultException e) {
+            fs = selectFileSystem0(groupID);
+            success = true;
+            return fs;
+        } finally {
+            if (success)
+                commit();
+            else
+                rollback();
+        }
+    }
+
+    private FileSystem selectFileSystem0(String groupID)
+            throws DicomServiceException {
+        List<FileSystem> rwList =
+                em.createNamedQuery(FileSystem.FIND_BY_GROUP_ID_AND_STATUS, FileSystem.class)
+                    .setParameter(1, groupID)
+                    .setParameter(2, FileSystemStatus.RW)
+                    .getResultList();
+        if (rwList.isEmpty()) {
             List<FileSystem> resultList = 
                     em.createNamedQuery(FileSystem.FIND_BY_GROUP_ID, FileSystem.class)
                         .setParameter(1, groupID)
@@ -396,38 +625,71 @@ public class InstanceStoreBean implements InstanceStore {
                 fs.setAvailability(Availability.ONLINE);
                 fs.setStatus(FileSystemStatus.RW);
                 em.persist(fs);
-                return curFileSystem = fs;
-            }
-            for (FileSystem fs : resultList) {
-                if (fs.getStatus() == FileSystemStatus.Rw) {
-                    fs.setStatus(FileSystemStatus.RW);
-                    em.flush();
-                    return curFileSystem;
+                em.flush();
+                rwList = Collections.singletonList(fs);
+            } else {
+                for (FileSystem fs : resultList) {
+                    if (fs.getStatus() == FileSystemStatus.Rw) {
+                        fs.setStatus(FileSystemStatus.RW);
+                        em.flush();
+                        rwList = Collections.singletonList(fs);
+                        break;
+                    }
                 }
+                if (rwList.isEmpty())
+                    throw new DicomServiceException(Status.OutOfResources,
+                            "No writeable File System in File System Group " + groupID);
+            }
+        }
+        for (FileSystem fs : rwList)
+            em.detach(fs);
+        FileSystemPlacement.register(groupID, rwList);
+        return curFileSystem = FileSystemPlacement.select(groupID);
+    }
+
+    @Override
+    public FileSystem selectFileSystem(String groupID, File file)
+            throws DicomServiceException {
+        String path = file.getAbsolutePath();
+        FileSystem selected = null;
+        int selectedLength = -1;
+        for (FileSystem fs : em.createNamedQuery(FileSystem.FIND_BY_GROUP_ID, FileSystem.class)
+                .setParameter(1, groupID)
+                .getResultList()) {
+            String dir = fs.getDirectory().getPath();
+            if (dir.length() > selectedLength 
+                    && (path.equals(dir) || path.startsWith(dir + File.separatorChar))) {
+                selected = fs;
+                selectedLength = dir.length();
             }
-            throw new DicomServiceException(Status.OutOfResources,
-                    "No writeable File System in File System Group " + groupID);
         }
+        if (selected == null)
+            throw new DicomServiceException(Status.OutOfResources,
+                    "No File System of group " + groupID + " contains " + file);
+        return curFileSystem = selected;
     }
 
     private Instance findInstance(String sopIUID) {
-        return em.createNamedQuery(
+        return firstOrNull(em.createNamedQuery(
                     Instance.FIND_BY_SOP_INSTANCE_UID, Instance.class)
-                 .setParameter(1, sopIUID).getSingleResult();
+                 .setParameter(1, sopIUID));
     }
 
     private Series findSeries(String seriesIUID) {
-        return em.createNamedQuery(
+        return firstOrNull(em.createNamedQuery(
                     Series.FIND_BY_SERIES_INSTANCE_UID, Series.class)
-                 .setParameter(1, seriesIUID)
-                 .getSingleResult();
+                 .setParameter(1, seriesIUID));
     }
 
     private Study findStudy(String studyIUID) {
-        return em.createNamedQuery(
+        return firstOrNull(em.createNamedQuery(
                     Study.FIND_BY_STUDY_INSTANCE_UID, Study.class)
-                 .setParameter(1, studyIUID)
-                 .getSingleResult();
+                 .setParameter(1, studyIUID));
+    }
+
+    private static <T> T firstOrNull(TypedQuery<T> query) {
+        List<T> list = query.setMaxResults(1).getResultList();
+        return list.isEmpty() ? null : list.get(0);
     }
 
     private List<VerifyingObserver> createVerifyingObservers(Sequence seq, FuzzyStr fuzzyStr) {
@@ -474,14 +736,13 @@ public class InstanceStoreBean implements InstanceStore {
         Series series = cachedSeries;
         AttributeFilter seriesFilter = storeParam.getAttributeFilter(Entity.Series);
         if (series == null || !series.getSeriesInstanceUID().equals(seriesIUID)) {
-            updateSeries(cachedSeries);
+            updateDirtySeries(cachedSeries);
             updateRefPPS(
                     data.getNestedDataset(Tag.ReferencedPerformedProcedureStepSequence),
                     storeParam);
             checkRefPPS(data);
-            try {
-                cachedSeries = series = findSeries(seriesIUID);
-            } catch (NoResultException e) {
+            cachedSeries = series = findSeries(seriesIUID);
+            if (series == null) {
                 cachedSeries = series = new Series();
                 Study study = getStudy(data, availability, storeParam);
                 series.setStudy(study);
@@ -505,6 +766,7 @@ public class InstanceStoreBean implements InstanceStore {
         Attributes seriesAttrs = series.getAttributes();
         if (seriesAttrs.mergeSelected(data, seriesFilter.getSelection())) {
             series.setAttributes(seriesAttrs, seriesFilter, storeParam.getFuzzyStr());
+            ParentAttributes.getCache().remove(Series.class, series.getPk());
         }
         return series;
     }
@@ -534,56 +796,83 @@ public class InstanceStoreBean implements InstanceStore {
         if (mpps == null || mpps.isInProgress())
             return;
 
+        MppsRefIndex refs = curMppsRefs;
+        if (refs == null || refs.mpps != mpps)
+            curMppsRefs = refs = new MppsRefIndex(mpps);
+
         String seriesIUID = data.getString(Tag.SeriesInstanceUID);
         String sopIUID = data.getString(Tag.SOPInstanceUID);
         String sopCUID = data.getString(Tag.SOPClassUID);
-        Sequence perfSeriesSeq = mpps.getAttributes()
-                .getSequence(Tag.PerformedSeriesSequence);
-        for (Attributes perfSeries : perfSeriesSeq) {
-            if (seriesIUID.equals(perfSeries.getString(Tag.SeriesInstanceUID))) {
-                if (containsRef(sopCUID, sopIUID,
-                        perfSeries.getSequence(Tag.ReferencedImageSequence))
-                 || containsRef(sopCUID, sopIUID,
-                        perfSeries.getSequence(Tag.ReferencedNonImageCompositeSOPInstanceSequence)))
-                    return;
-                break;
-            }
-        }
-        for (Attributes perfSeries : perfSeriesSeq) {
-            if (containsRef(sopCUID, sopIUID,
-                    perfSeries.getSequence(Tag.ReferencedImageSequence))
-             || containsRef(sopCUID, sopIUID,
-                    perfSeries.getSequence(Tag.ReferencedNonImageCompositeSOPInstanceSequence)))
-            throw new DicomServiceException(Status.ProcessingFailure,
+        String refCUID = refs.bySeriesAndInstance.get(
+                MppsRefIndex.key(seriesIUID, sopIUID));
+        if (refCUID == null) {
+            refCUID = refs.byInstance.get(sopIUID);
+            if (refCUID == null)
+                throw new DicomServiceException(Status.ProcessingFailure,
+                        "No such Instance in Referenced PPS");
+            if (sopCUID.equals(refCUID))
+                throw new DicomServiceException(Status.ProcessingFailure,
                         "Mismatch of Series Instance UID in Referenced PPS");
         }
-        throw new DicomServiceException(Status.ProcessingFailure,
-                    "No such Instance in Referenced PPS");
+        if (!sopCUID.equals(refCUID))
+            throw new DicomServiceException(Status.ProcessingFailure,
+                        "Mismatch of SOP Class UID in Referenced PPS");
     }
 
-    private boolean containsRef(String sopCUID, String sopIUID, Sequence refSOPs)
-            throws DicomServiceException {
-        if (refSOPs != null)
-            for (Attributes refSOP : refSOPs)
-                if (sopIUID.equals(refSOP.getString(Tag.ReferencedSOPInstanceUID)))
-                    if (sopCUID.equals(refSOP.getString(Tag.ReferencedSOPClassUID)))
-                        return true;
-                    else
-                        throw new DicomServiceException(Status.ProcessingFailure,
-                                    "Mismatch of SOP Class UID in Referenced PPS");
-        return false;
+    /**
+     * Referenced SOP Instances of a completed or discontinued MPPS, indexed
+     * by Series and SOP Instance UID and by SOP Instance UID only. Maps
+     * to the referenced SOP Class UID of the first occurrence.
+     */
+    private static class MppsRefIndex {
+
+        final PerformedProcedureStep mpps;
+        final HashMap<String,String> bySeriesAndInstance =
+                new HashMap<String,String>();
+        final HashMap<String,String> byInstance =
+                new HashMap<String,String>();
+
+        MppsRefIndex(PerformedProcedureStep mpps) {
+            this.mpps = mpps;
+            Sequence perfSeriesSeq = mpps.getAttributes()
+                    .getSequence(Tag.PerformedSeriesSequence);
+            if (perfSeriesSeq != null)
+                for (Attributes perfSeries : perfSeriesSeq) {
+                    String seriesIUID = perfSeries.getString(Tag.SeriesInstanceUID);
+                    add(seriesIUID,
+                            perfSeries.getSequence(Tag.ReferencedImageSequence));
+                    add(seriesIUID,
+                            perfSeries.getSequence(Tag.ReferencedNonImageCompositeSOPInstanceSequence));
+                }
+        }
+
+        static String key(String seriesIUID, String sopIUID) {
+            return seriesIUID + '\\' + sopIUID;
+        }
+
+        private void add(String seriesIUID, Sequence refSOPs) {
+            if (refSOPs != null)
+                for (Attributes refSOP : refSOPs) {
+                    String iuid = refSOP.getString(Tag.ReferencedSOPInstanceUID);
+                    String cuid = refSOP.getString(Tag.ReferencedSOPClassUID, "");
+                    if (iuid == null)
+                        continue;
+                    String key = key(seriesIUID, iuid);
+                    if (!bySeriesAndInstance.containsKey(key))
+                        bySeriesAndInstance.put(key, cuid);
+                    if (!byInstance.containsKey(iuid))
+                        byInstance.put(iuid, cuid);
+                }
+        }
     }
 
     private PerformedProcedureStep findPPS(String mppsIUID) {
-        if (mppsIUID != null)
-            try {
-                return em.createNamedQuery(
+        return mppsIUID != null
+                ? firstOrNull(em.createNamedQuery(
                         PerformedProcedureStep.FIND_BY_SOP_INSTANCE_UID,
                         PerformedProcedureStep.class)
-                     .setParameter(1, mppsIUID)
-                     .getSingleResult();
-            } catch (NoResultException e) { }
-        return null;
+                     .setParameter(1, mppsIUID))
+                : null;
     }
 
     private Collection<ScheduledProcedureStep> getScheduledProcedureSteps(
@@ -613,19 +902,32 @@ public class InstanceStoreBean implements InstanceStore {
 
     @Override
     @Remove
-    public void close() {
-        if (cachedSeries != null) {
-            em.joinTransaction();
-            updateSeries(cachedSeries);
+    public void close() throws DicomServiceException {
+        try {
+            if (cachedSeries != null) {
+                beginTransaction();
+                updateDirtySeries(cachedSeries);
+            }
+            commit();
+        } catch (RuntimeException e) {
+            rollback();
+            throw e;
+        } finally {
+            release();
         }
+    }
+
+    private void release() {
         curFileSystem = null;
         cachedSeries = null;
         prevMpps = null;
         curMpps = null;
+        curMppsRefs = null;
         curRejectionCode = null;
         hideRejectionCodes = null;
         hideConceptNameCodes = null;
         rejectedInstances.clear();
+        dirtySeries.clear();
         em.close();
         em = null;
     }
@@ -634,16 +936,41 @@ public class InstanceStoreBean implements InstanceStore {
         SeriesUpdate.updateSeries(em, series, hideConceptNameCodes, hideRejectionCodes);
     }
 
+    private void updateDirtySeries(Series series) {
+        if (series != null && series.isDirty() && !deferSeriesUpdate)
+            updateSeries(series);
+    }
+
+    private void updateOrDeferSeries(Series series) {
+        if (deferSeriesUpdate)
+            markDirty(series);
+        else
+            updateSeries(series);
+    }
+
+    private void markDirty(Series series) {
+        series.setDirty(true);
+        if (deferSeriesUpdate)
+            dirtySeries.add(series);
+    }
+
+    @Override
+    public Collection<Series> removeDirtySeries() {
+        ArrayList<Series> list = new ArrayList<Series>(dirtySeries);
+        dirtySeries.clear();
+        return list;
+    }
+
     private Study getStudy(Attributes data, Availability availability, StoreParam storeParam) {
         Study study;
         AttributeFilter studyFilter = storeParam.getAttributeFilter(Entity.Study);
-        try {
-            study = findStudy(data.getString(Tag.StudyInstanceUID, null));
+        study = findStudy(data.getString(Tag.StudyInstanceUID, null));
+        if (study != null) {
             Attributes studyAttrs = study.getAttributes();
             if (studyAttrs.mergeSelected(data, studyFilter.getSelection())) {
                 study.setAttributes(studyAttrs, studyFilter, storeParam.getFuzzyStr());
             }
-        } catch (NoResultException e) {
+        } else {
             study = new Study();
             Patient patient = PatientFactory.findUniqueOrCreatePatient(em, data, storeParam);
             study.setPatient(patient);
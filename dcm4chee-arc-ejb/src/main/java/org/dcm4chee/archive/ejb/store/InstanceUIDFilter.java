@@ -0,0 +1,110 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.ejb.store;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Optional Bloom filter of SOP Instance UIDs of all stored instances, used
+ * to skip the database lookup for SOP Instance UIDs, which are definitely
+ * new. Only valid, if no other node stores instances into the same
+ * database.
+ * 
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+public abstract class InstanceUIDFilter {
+
+    private static volatile BloomFilter filter;
+    private static volatile boolean ready;
+    private static volatile Queue<String> reloadAdded;
+
+    /**
+     * Installs a new empty filter. Until {@link #setReady} is invoked after
+     * all existing SOP Instance UIDs were added, {@link #mightExist} returns
+     * always {@code true}. SOP Instance UIDs added meanwhile are recorded and
+     * added again to the new filter by {@link #setReady}, because they may
+     * have been added to the previous filter.
+     */
+    public static void reset(BloomFilter newFilter) {
+        reloadAdded = new ConcurrentLinkedQueue<String>();
+        ready = false;
+        filter = newFilter;
+    }
+
+    public static void setReady(BloomFilter loaded) {
+        Queue<String> added = reloadAdded;
+        if (filter != loaded || added == null)
+            return;
+
+        String iuid;
+        while ((iuid = added.poll()) != null)
+            loaded.put(iuid);
+        ready = true;
+        reloadAdded = null;
+    }
+
+    public static void disable() {
+        ready = false;
+        filter = null;
+        reloadAdded = null;
+    }
+
+    public static boolean isReady() {
+        return ready;
+    }
+
+    public static BloomFilter getFilter() {
+        return filter;
+    }
+
+    public static boolean mightExist(String iuid) {
+        BloomFilter f = filter;
+        return !ready || f == null || f.mightContain(iuid);
+    }
+
+    public static void add(String iuid) {
+        BloomFilter f = filter;
+        if (f != null)
+            f.put(iuid);
+        Queue<String> added = reloadAdded;
+        if (added != null)
+            added.add(iuid);
+    }
+}
@@ -38,8 +38,13 @@
 
 package org.dcm4chee.archive.ejb.store;
 
+import java.util.Arrays;
+import java.util.List;
+
+import javax.ejb.EJBException;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
 import javax.persistence.EntityManager;
-import javax.persistence.NoResultException;
 import javax.persistence.TypedQuery;
 
 import org.dcm4che.data.Attributes;
@@ -51,29 +56,143 @@ import org.dcm4chee.archive.persistence.Issuer;
  */
 public abstract class IssuerFactory {
 
+    private static final EntityPkCache<String> byEntityID =
+            new EntityPkCache<String>();
+
+    private static final EntityPkCache<List<String>> byEntityUID =
+            new EntityPkCache<List<String>>();
+
+    private static volatile boolean loaded;
+
+    public static int getCacheSize() {
+        return Math.max(byEntityID.size(), byEntityUID.size());
+    }
+
+    public static long getCacheHits() {
+        return byEntityID.getHits() + byEntityUID.getHits();
+    }
+
+    public static long getCacheMisses() {
+        return byEntityID.getMisses() + byEntityUID.getMisses();
+    }
+
+    public static synchronized void clearCache() {
+        byEntityID.clear();
+        byEntityUID.clear();
+        loaded = false;
+    }
+
     public static Issuer getIssuer(EntityManager em, String entityID,
             String entityUID, String entityUIDType) {
+        Long pk = entityID != null ? byEntityID.get(entityID) : null;
+        if (pk == null && entityUID != null)
+            pk = byEntityUID.get(Arrays.asList(entityUID, entityUIDType));
+        if (pk == null)
+            pk = findOrCreateIssuer(em, entityID, entityUID, entityUIDType);
+        return em.getReference(Issuer.class, pk);
+    }
+
+    private static synchronized void loadCache(EntityManager em) {
+        if (loaded)
+            return;
+
+        for (Issuer issuer : em.createNamedQuery(Issuer.FIND_ALL, Issuer.class)
+                .getResultList())
+            cache(issuer.getLocalNamespaceEntityID(),
+                    issuer.getUniversalEntityID(),
+                    issuer.getUniversalEntityIDType(),
+                    issuer.getPk());
+        loaded = true;
+    }
+
+    private static long findOrCreateIssuer(EntityManager em,
+            String entityID, String entityUID, String entityUIDType) {
+        if (!loaded)
+            loadCache(em);
+        if (entityID != null) {
+            Object lock = byEntityID.lock(entityID);
+            try {
+                synchronized (lock) {
+                    return findOrCreateIssuer0(em,
+                            entityID, entityUID, entityUIDType);
+                }
+            } finally {
+                byEntityID.unlock(entityID, lock);
+            }
+        }
+        List<String> key = Arrays.asList(entityUID, entityUIDType);
+        Object lock = byEntityUID.lock(key);
         try {
-            TypedQuery<Issuer> query;
-            if (entityID == null) {
-                query = em.createNamedQuery(Issuer.FIND_BY_ENTITY_UID, Issuer.class)
-                    .setParameter(1, entityUID)
-                    .setParameter(2, entityUIDType);
-            } else if (entityUID == null) {
-                query = em.createNamedQuery(Issuer.FIND_BY_ENTITY_ID, Issuer.class)
-                    .setParameter(1, entityID);
+            synchronized (lock) {
+                return findOrCreateIssuer0(em,
+                        entityID, entityUID, entityUIDType);
+            }
+        } finally {
+            byEntityUID.unlock(key, lock);
+        }
+    }
+
+    private static long findOrCreateIssuer0(EntityManager em,
+            String entityID, String entityUID, String entityUIDType) {
+        Long pk = entityID != null ? byEntityID.peek(entityID) : null;
+        if (pk == null && entityUID != null)
+            pk = byEntityUID.peek(Arrays.asList(entityUID, entityUIDType));
+        if (pk == null) {
+            Issuer issuer = findIssuer(em, entityID, entityUID, entityUIDType);
+            if (issuer != null) {
+                pk = issuer.getPk();
+                cache(issuer.getLocalNamespaceEntityID(),
+                        issuer.getUniversalEntityID(),
+                        issuer.getUniversalEntityIDType(),
+                        pk);
             } else {
-                query = em.createNamedQuery(Issuer.FIND_BY_ENTITY_ID_OR_UID, Issuer.class)
-                    .setParameter(1, entityID)
-                    .setParameter(2, entityUID)
-                    .setParameter(3, entityUIDType);
+                IssuerCreator creator =
+                        (IssuerCreator) lookup(IssuerCreator.JNDI_NAME);
+                pk = creator.createIssuer(entityID, entityUID, entityUIDType);
+                cache(entityID, entityUID, entityUIDType, pk);
+            }
+        }
+        return pk;
+    }
+
+    private static Issuer findIssuer(EntityManager em, String entityID,
+            String entityUID, String entityUIDType) {
+        TypedQuery<Issuer> query;
+        if (entityID == null) {
+            query = em.createNamedQuery(Issuer.FIND_BY_ENTITY_UID, Issuer.class)
+                .setParameter(1, entityUID)
+                .setParameter(2, entityUIDType);
+        } else if (entityUID == null) {
+            query = em.createNamedQuery(Issuer.FIND_BY_ENTITY_ID, Issuer.class)
+                .setParameter(1, entityID);
+        } else {
+            query = em.createNamedQuery(Issuer.FIND_BY_ENTITY_ID_OR_UID, Issuer.class)
+                .setParameter(1, entityID)
+                .setParameter(2, entityUID)
+                .setParameter(3, entityUIDType);
+        }
+        List<Issuer> result = query.setMaxResults(1).getResultList();
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    private static void cache(String entityID, String entityUID,
+            String entityUIDType, long pk) {
+        if (entityID != null)
+            byEntityID.put(entityID, pk);
+        if (entityUID != null)
+            byEntityUID.put(Arrays.asList(entityUID, entityUIDType), pk);
+    }
+
+    private static Object lookup(String name) {
+        try {
+            InitialContext ctx = new InitialContext();
+            try {
+                return ctx.lookup(name);
+            } finally {
+                ctx.close();
             }
-            return query.getSingleResult();
-        } catch (NoResultException e) {
-            Issuer issuer = new Issuer(entityID, entityUID, entityUIDType);
-            em.persist(issuer);
-            em.flush();
-            return issuer;
+        } catch (NamingException e) {
+            throw new EJBException(e);
         }
     }
 
@@ -38,6 +38,7 @@
 
 package org.dcm4chee.archive.ejb.store;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 
@@ -51,23 +52,77 @@ import org.dcm4che.data.Tag;
 import org.dcm4chee.archive.persistence.AttributeFilter;
 import org.dcm4chee.archive.persistence.Issuer;
 import org.dcm4chee.archive.persistence.Patient;
+import org.hibernate.proxy.HibernateProxy;
 
 /**
  * @author Gunter Zeilinger <gunterze@gmail.com>
  */
 public abstract class PatientFactory {
 
+    private static final int CACHE_SIZE = 1000;
+
+    private static final EntityPkCache<List<Object>> cache =
+            new EntityPkCache<List<Object>>(CACHE_SIZE);
+
+    public static EntityPkCache<List<Object>> getCache() {
+        return cache;
+    }
+
+    public static void invalidate(Patient patient) {
+        Issuer issuer = patient.getIssuerOfPatientID();
+        if (issuer != null)
+            cache.remove(cacheKey(patient.getPatientID(), issuer));
+    }
+
     public static Patient findPatient(EntityManager em, String pid, Issuer issuer,
             StoreParam storeParam) {
         if (pid == null)
             throw new NonUniqueResultException();
+        List<Object> key = null;
+        if (issuer != null) {
+            key = cacheKey(pid, issuer);
+            Long pk = cache.get(key);
+            if (pk != null) {
+                Patient patient = em.find(Patient.class, pk);
+                if (patient != null && pid.equals(patient.getPatientID())
+                        && patient.getIssuerOfPatientID() != null
+                        && equals(issuer, patient.getIssuerOfPatientID()))
+                    return patient;
+                cache.remove(key);
+            }
+            // exact match on (pat_id, pat_id_issuer_fk) by pat_id_issuer_idx
+            List<Patient> list = em.createNamedQuery(
+                        Patient.FIND_BY_PATIENT_ID_WITH_ISSUER, Patient.class)
+                    .setParameter(1, pid)
+                    .setParameter(2, issuer)
+                    .getResultList();
+            if (!list.isEmpty()) {
+                Patient patient = list.get(0);
+                cache.putAfterCommit(key, patient.getPk());
+                return patient;
+            }
+        }
+        // patients without issuer or with an issuer matching only partially
         TypedQuery<Patient> query = em.createNamedQuery(
                     Patient.FIND_BY_PATIENT_ID, Patient.class)
                 .setParameter(1, pid);
-        List<Patient> list = query.getResultList();
+        Patient patient = selectPatient(query.getResultList(), issuer);
+        if (key != null && patient.getIssuerOfPatientID() != null)
+            cache.putAfterCommit(key, patient.getPk());
+        return patient;
+    }
+
+    /**
+     * Selects the patient with an issuer matching the specified issuer, or
+     * else the only remaining patient without issuer.
+     * 
+     * @param list patients with the same Patient ID; patients with other
+     *        issuers are removed from it
+     */
+    static Patient selectPatient(List<Patient> list, Issuer issuer) {
         if (issuer != null) {
             for (Iterator<Patient> it = list.iterator(); it.hasNext();) {
-                Patient pat = (Patient) it.next();
+                Patient pat = it.next();
                 Issuer issuer2 = pat.getIssuerOfPatientID();
                 if (issuer2 != null) {
                     if (equals(issuer, issuer2))
@@ -84,6 +139,17 @@ public abstract class PatientFactory {
         return list.get(0);
     }
 
+    private static List<Object> cacheKey(String pid, Issuer issuer) {
+        return Arrays.<Object>asList(pid, pkOf(issuer));
+    }
+
+    private static long pkOf(Issuer issuer) {
+        return issuer instanceof HibernateProxy
+                ? (Long) ((HibernateProxy) issuer)
+                        .getHibernateLazyInitializer().getIdentifier()
+                : issuer.getPk();
+    }
+
     public static Patient followMergedWith(Patient patient) {
         while (patient.getMergedWith() != null)
             patient = patient.getMergedWith();
@@ -97,6 +163,9 @@ public abstract class PatientFactory {
         patient.setAttributes(attrs, storeParam.getAttributeFilter(Entity.Patient),
                 storeParam.getFuzzyStr());
         em.persist(patient);
+        if (issuer != null)
+            cache.putAfterCommit(cacheKey(patient.getPatientID(), issuer),
+                    patient.getPk());
         return patient;
     }
 
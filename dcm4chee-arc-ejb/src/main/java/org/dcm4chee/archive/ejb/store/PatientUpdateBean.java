@@ -76,11 +76,14 @@ public class PatientUpdateBean implements PatientUpdate {
             for (PerformedProcedureStep pps : ppss)
                 pps.setPatient(pat);
         mergedPat.setMergedWith(pat);
+        PatientFactory.invalidate(mergedPat);
+        PatientFactory.invalidate(pat);
     }
 
     @Override
     public void updatePatient(Attributes attrs, StoreParam storeParam) {
-        PatientFactory.updateOrCreatePatient(em, attrs, storeParam);
+        PatientFactory.invalidate(
+                PatientFactory.updateOrCreatePatient(em, attrs, storeParam));
     }
 
 }
@@ -39,15 +39,18 @@
 package org.dcm4chee.archive.ejb.store;
 
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 
 import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
 
 import org.dcm4che.util.StringUtils;
 import org.dcm4chee.archive.ejb.query.Builder;
 import org.dcm4chee.archive.persistence.Availability;
 import org.dcm4chee.archive.persistence.Code;
+import org.dcm4chee.archive.persistence.Instance;
 import org.dcm4chee.archive.persistence.QInstance;
 import org.dcm4chee.archive.persistence.Series;
 import org.dcm4chee.archive.persistence.Study;
@@ -62,26 +65,214 @@ import com.mysema.query.jpa.hibernate.HibernateQuery;
  */
 public class SeriesUpdate {
 
-    public static void updateSeries(EntityManager em, Series series,
+    /**
+     * Recalculates the derived attributes of the Series and its Study from
+     * the database.
+     * 
+     * @return {@code true}, if any of the previous values differed
+     */
+    public static boolean updateSeries(EntityManager em, Series series,
             List<Code> hideConceptNameCodes, List<Code> hideRejectionCodes) {
         if (series == null)
-            return;
+            return false;
+
+        boolean changed = updateSeriesAttributes(em, series,
+                hideConceptNameCodes, hideRejectionCodes);
+        return updateStudy(em, series.getStudy()) || changed;
+    }
 
-        series.setNumberOfSeriesRelatedInstances(
-                countRelatedInstancesOf(em, series, hideConceptNameCodes, hideRejectionCodes));
-        series.setRetrieveAETs(retrieveAETsOf(em, series));
-        series.setExternalRetrieveAET(externalRetrieveAETOf(em, series));
-        series.setAvailability(availabilityOf(em, series));
+    /**
+     * Recalculates the derived attributes of the Series from the database,
+     * without updating the derived attributes of its Study.
+     * 
+     * @return {@code true}, if any of the previous values differed
+     */
+    public static boolean updateSeriesAttributes(EntityManager em, Series series,
+            List<Code> hideConceptNameCodes, List<Code> hideRejectionCodes) {
+        boolean changed = false;
+        int numInstances = countRelatedInstancesOf(em, series,
+                hideConceptNameCodes, hideRejectionCodes);
+        if (series.getNumberOfSeriesRelatedInstances() != numInstances) {
+            series.setNumberOfSeriesRelatedInstances(numInstances);
+            changed = true;
+        }
+        String[] retrieveAETs = retrieveAETsOf(em, series);
+        if (!equalsAsSet(series.getRetrieveAETs(), retrieveAETs)) {
+            series.setRetrieveAETs(retrieveAETs);
+            changed = true;
+        }
+        String extRetrieveAET = externalRetrieveAETOf(em, series);
+        if (!equals(series.getExternalRetrieveAET(), extRetrieveAET)) {
+            series.setExternalRetrieveAET(extRetrieveAET);
+            changed = true;
+        }
+        Availability availability = availabilityOf(em, series);
+        if (series.getAvailability() != availability) {
+            series.setAvailability(availability);
+            changed = true;
+        }
         series.setDirty(false);
+        return changed;
+    }
+
+    /**
+     * Recalculates the derived attributes of the Study from the database.
+     * 
+     * @return {@code true}, if any of the previous values differed
+     */
+    public static boolean updateStudy(EntityManager em, Study study) {
+        boolean changed = false;
+        String[] modalities = modalitiesOf(em, study);
+        if (!equalsAsSet(study.getModalitiesInStudy(), modalities)) {
+            study.setModalitiesInStudy(modalities);
+            changed = true;
+        }
+        String[] cuids = sopClassesOf(em, study);
+        if (!equalsAsSet(study.getSOPClassesInStudy(), cuids)) {
+            study.setSOPClassesInStudy(cuids);
+            changed = true;
+        }
+        int numSeries = countRelatedSeriesOf(em, study);
+        if (study.getNumberOfStudyRelatedSeries() != numSeries) {
+            study.setNumberOfStudyRelatedSeries(numSeries);
+            changed = true;
+        }
+        int numInstances = countRelatedInstancesOf(em, study);
+        if (study.getNumberOfStudyRelatedInstances() != numInstances) {
+            study.setNumberOfStudyRelatedInstances(numInstances);
+            changed = true;
+        }
+        String[] retrieveAETs = retrieveAETsOf(em, study);
+        if (!equalsAsSet(study.getRetrieveAETs(), retrieveAETs)) {
+            study.setRetrieveAETs(retrieveAETs);
+            changed = true;
+        }
+        String extRetrieveAET = externalRetrieveAETOf(em, study);
+        if (!equals(study.getExternalRetrieveAET(), extRetrieveAET)) {
+            study.setExternalRetrieveAET(extRetrieveAET);
+            changed = true;
+        }
+        Availability availability = availabilityOf(em, study);
+        if (study.getAvailability() != availability) {
+            study.setAvailability(availability);
+            changed = true;
+        }
+        return changed;
+    }
 
+    /**
+     * Adjusts the derived attributes of the Series and its Study to a new
+     * added Instance, without recalculating them from the database.
+     */
+    public static void addInstance(EntityManager em, Series series, Instance inst,
+            List<Code> hideConceptNameCodes, List<Code> hideRejectionCodes) {
         Study study = series.getStudy();
-        study.setModalitiesInStudy(modalitiesOf(em, study));
-        study.setSOPClassesInStudy(sopClassesOf(em, study));
-        study.setNumberOfStudyRelatedSeries(countRelatedSeriesOf(em, study));
-        study.setNumberOfStudyRelatedInstances(countRelatedInstancesOf(em, study));
-        study.setRetrieveAETs(retrieveAETsOf(em, study));
-        study.setExternalRetrieveAET(externalRetrieveAETOf(em, study));
-        study.setAvailability(availabilityOf(em, study));
+        series.setRetrieveAETs(
+                intersection(series.getRetrieveAETs(), inst.getRetrieveAETs()));
+        series.setExternalRetrieveAET(
+                common(series.getExternalRetrieveAET(), inst.getExternalRetrieveAET()));
+        series.setAvailability(max(series.getAvailability(), inst.getAvailability()));
+        study.setModalitiesInStudy(
+                union(study.getModalitiesInStudy(), series.getModality()));
+        study.setSOPClassesInStudy(
+                union(study.getSOPClassesInStudy(), inst.getSopClassUID()));
+        study.setRetrieveAETs(
+                intersection(study.getRetrieveAETs(), series.getRetrieveAETs()));
+        study.setExternalRetrieveAET(
+                common(study.getExternalRetrieveAET(), series.getExternalRetrieveAET()));
+        study.setAvailability(max(study.getAvailability(), series.getAvailability()));
+        if (containsCode(hideConceptNameCodes, inst.getConceptNameCode())
+                || containsCode(hideRejectionCodes, inst.getRejectionCode()))
+            return;
+
+        addNumberOfInstances(em, series, 1);
+    }
+
+    /**
+     * Adjusts the number of related Instances of the Series and its Study
+     * by the given difference, without recalculating them from the database.
+     * 
+     * The numbers are incremented by relative updates, which lock the rows
+     * of the Series and the Study until the transaction is committed, so
+     * concurrent transactions adding Instances to the same Study do not
+     * overwrite each others numbers. The Study is locked first, in the same
+     * order as by the recalculation of the numbers in
+     * {@link DerivedAttributesUpdateBean}. The Series and the Study are refreshed
+     * afterwards, so later flushes do not write back previous numbers.
+     */
+    public static void addNumberOfInstances(EntityManager em, Series series,
+            int diff) {
+        if (diff == 0)
+            return;
+
+        Study study = series.getStudy();
+        em.flush();
+        em.lock(study, LockModeType.PESSIMISTIC_WRITE);
+        em.createNamedQuery(Series.ADD_NUMBER_OF_INSTANCES)
+            .setParameter(1, diff)
+            .setParameter(2, series)
+            .executeUpdate();
+        em.refresh(series);
+        int num = series.getNumberOfSeriesRelatedInstances();
+        int prev = num - diff;
+        int seriesDiff = prev == 0 && num != 0 ? 1
+                       : prev != 0 && num == 0 ? -1
+                       : 0;
+        em.createNamedQuery(Study.ADD_NUMBER_OF_INSTANCES)
+            .setParameter(1, diff)
+            .setParameter(2, seriesDiff)
+            .setParameter(3, study)
+            .executeUpdate();
+        em.refresh(study);
+    }
+
+    static boolean containsCode(List<Code> codes, Long codePk) {
+        if (codePk != null && codes != null)
+            for (Code other : codes)
+                if (other.getPk() == codePk.longValue())
+                    return true;
+        return false;
+    }
+
+    private static boolean containsCode(List<Code> codes, Code code) {
+        if (code != null && codes != null)
+            for (Code other : codes)
+                if (other.getPk() == code.getPk())
+                    return true;
+        return false;
+    }
+
+    private static String[] intersection(String[] a, String[] b) {
+        if (a.length == 0 || b.length == 0)
+            return StringUtils.EMPTY_STRING;
+        LinkedHashSet<String> set = new LinkedHashSet<String>(Arrays.asList(a));
+        set.retainAll(Arrays.asList(b));
+        return set.toArray(StringUtils.EMPTY_STRING);
+    }
+
+    private static String[] union(String[] a, String s) {
+        if (s == null || Arrays.asList(a).contains(s))
+            return a;
+        String[] union = Arrays.copyOf(a, a.length + 1);
+        union[a.length] = s;
+        return union;
+    }
+
+    private static String common(String a, String b) {
+        return a != null && a.equals(b) ? a : null;
+    }
+
+    private static Availability max(Availability a, Availability b) {
+        return a == null || b != null && b.compareTo(a) > 0 ? b : a;
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static boolean equalsAsSet(String[] a, String[] b) {
+        return new HashSet<String>(Arrays.asList(a))
+                .equals(new HashSet<String>(Arrays.asList(b)));
     }
 
     private static int countRelatedInstancesOf(EntityManager em, Series series,
@@ -186,7 +377,7 @@ public class SeriesUpdate {
             if (common == null) {
                 common = aet;
             } else {
-                if (!common.equals(aet));
+                if (!common.equals(aet))
                     return null;
             }
         }
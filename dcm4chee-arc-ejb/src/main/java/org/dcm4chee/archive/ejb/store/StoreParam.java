@@ -61,6 +61,8 @@ public class StoreParam {
     private String externalRetrieveAET;
     private List<StoreDuplicate> storeDuplicates = Collections.emptyList();
     private List<RejectionNote> rejectionNotes = Collections.emptyList();
+    private int groupCommitSize = 1;
+    private int derivedAttributesMaxStaleness;
 
     public final boolean isStoreOriginalAttributes() {
         return storeOriginalAttributes;
@@ -126,6 +128,22 @@ public class StoreParam {
         return rejectionNotes;
     }
 
+    public final int getGroupCommitSize() {
+        return groupCommitSize;
+    }
+
+    public final void setGroupCommitSize(int groupCommitSize) {
+        this.groupCommitSize = groupCommitSize;
+    }
+
+    public final int getDerivedAttributesMaxStaleness() {
+        return derivedAttributesMaxStaleness;
+    }
+
+    public final void setDerivedAttributesMaxStaleness(int maxStaleness) {
+        this.derivedAttributesMaxStaleness = maxStaleness;
+    }
+
     public RejectionNote getRejectionNote(Code code) {
         if (code != null)
             for (RejectionNote rn : rejectionNotes)
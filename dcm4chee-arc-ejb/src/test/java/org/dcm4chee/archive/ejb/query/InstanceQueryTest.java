@@ -105,6 +105,8 @@ public class InstanceQueryTest {
                         StudyQueryImpl.class,
                         SeriesQueryImpl.class,
                         InstanceQueryImpl.class,
+                        ParentAttributes.class,
+                        AttributesCache.class,
                         Builder.class,
                         MatchDateTimeRange.class,
                         MatchPersonName.class)
@@ -0,0 +1,197 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.ejb.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Date;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.VR;
+import org.dcm4chee.archive.persistence.Utils;
+import org.hibernate.Query;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+public class ParentAttributesTest {
+
+    private static final long SERIES_PK = 1L;
+    private static final long STUDY_PK = 2L;
+    private static final long PATIENT_PK = 3L;
+
+    private ResultQuery inheritedAttrs;
+    private ResultQuery encodedAttrs;
+
+    /**
+     * Returns a fixed result and counts its executions.
+     */
+    private static class ResultQuery implements InvocationHandler {
+        Object result;
+        int executed;
+
+        Query query() {
+            return (Query) Proxy.newProxyInstance(
+                    Query.class.getClassLoader(),
+                    new Class<?>[] { Query.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("uniqueResult")) {
+                executed++;
+                return result;
+            }
+            return proxy;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        ParentAttributes.getCache().clear();
+        inheritedAttrs = new ResultQuery();
+        encodedAttrs = new ResultQuery();
+    }
+
+    @After
+    public void tearDown() {
+        ParentAttributes.getCache().clear();
+    }
+
+    @Test
+    public void testCacheHit() {
+        inheritedAttrs.result = inherited("Name^One", 1, 1);
+        Date now = new Date();
+        assertEquals("Name^One", get(tuple(now, 1, now, 1, now, 1)));
+        inheritedAttrs.result = inherited("Name^Two", 1, 1);
+        assertEquals("Name^One", get(tuple(now, 1, now, 1, now, 1)));
+        assertEquals(1, inheritedAttrs.executed);
+    }
+
+    @Test
+    public void testReturnsCopy() {
+        inheritedAttrs.result = inherited("Name^One", 1, 1);
+        Object[] tuple = tuple(new Date(), 1, new Date(), 1, new Date(), 1);
+        Attributes attrs1 = ParentAttributes.get(inheritedAttrs.query(),
+                encodedAttrs.query(), SERIES_PK, tuple, 0);
+        attrs1.setString(Tag.PatientName, VR.PN, "Modified");
+        Attributes attrs2 = ParentAttributes.get(inheritedAttrs.query(),
+                encodedAttrs.query(), SERIES_PK, tuple, 0);
+        assertNotSame(attrs1, attrs2);
+        assertEquals("Name^One", attrs2.getString(Tag.PatientName));
+    }
+
+    @Test
+    public void testUpdateWithinSameSecond() {
+        Date time = new Date(1350000000000L);
+        inheritedAttrs.result = inherited("Name^One", 1, 1);
+        assertEquals("Name^One", get(tuple(time, 1, time, 1, time, 1)));
+        inheritedAttrs.result = inherited("Name^Two", 1, 2);
+        assertEquals("Name^Two", get(tuple(time, 1, time, 1, time, 2)));
+        inheritedAttrs.result = inherited("Name^Three", 2, 2);
+        assertEquals("Name^Three", get(tuple(time, 1, time, 2, time, 2)));
+        inheritedAttrs.result = inherited("Name^Four", 2, 2);
+        assertEquals("Name^Four", get(tuple(time, 2, time, 2, time, 2)));
+        assertEquals(4, inheritedAttrs.executed);
+    }
+
+    @Test
+    public void testNoInheritedAttributes() {
+        inheritedAttrs.result = new Object[] { null, 0, 0 };
+        assertDecodedFromEncodedAttributes();
+    }
+
+    @Test
+    public void testOutdatedInheritedAttributes() {
+        inheritedAttrs.result = inherited("Name^Outdated", 1, 1);
+        assertDecodedFromEncodedAttributes();
+    }
+
+    private void assertDecodedFromEncodedAttributes() {
+        Attributes patient = new Attributes();
+        patient.setString(Tag.PatientName, VR.PN, "Name^One");
+        Attributes study = new Attributes();
+        study.setString(Tag.StudyID, VR.SH, "1");
+        Attributes series = new Attributes();
+        series.setString(Tag.Modality, VR.CS, "CT");
+        encodedAttrs.result = new Object[] {
+                Utils.encodeAttributes(series),
+                Utils.encodeAttributes(study),
+                Utils.encodeAttributes(patient) };
+        Date now = new Date();
+        Attributes attrs = ParentAttributes.get(inheritedAttrs.query(),
+                encodedAttrs.query(), SERIES_PK, tuple(now, 1, now, 2, now, 1), 0);
+        assertEquals("Name^One", attrs.getString(Tag.PatientName));
+        assertEquals("1", attrs.getString(Tag.StudyID));
+        assertEquals("CT", attrs.getString(Tag.Modality));
+        assertEquals(1, inheritedAttrs.executed);
+        assertEquals(1, encodedAttrs.executed);
+    }
+
+    private String get(Object[] tuple) {
+        return ParentAttributes.get(inheritedAttrs.query(),
+                encodedAttrs.query(), SERIES_PK, tuple, 0)
+                .getString(Tag.PatientName);
+    }
+
+    private static Object[] tuple(Date seriesTime, int seriesVersion,
+            Date studyTime, int studyVersion,
+            Date patientTime, int patientVersion) {
+        return new Object[] {
+                seriesTime, seriesVersion,
+                STUDY_PK, studyTime, studyVersion,
+                PATIENT_PK, patientTime, patientVersion };
+    }
+
+    private static Object[] inherited(String patientName,
+            int studyVersion, int patientVersion) {
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.PatientName, VR.PN, patientName);
+        return new Object[] {
+                Utils.encodeAttributes(attrs), studyVersion, patientVersion };
+    }
+}
@@ -107,6 +107,8 @@ public class PatientQueryTest {
                         StudyQueryImpl.class,
                         SeriesQueryImpl.class,
                         InstanceQueryImpl.class,
+                        ParentAttributes.class,
+                        AttributesCache.class,
                         Builder.class,
                         MatchDateTimeRange.class,
                         MatchPersonName.class)
@@ -97,6 +97,8 @@ public class SeriesQueryTest {
                         StudyQueryImpl.class,
                         SeriesQueryImpl.class,
                         InstanceQueryImpl.class,
+                        ParentAttributes.class,
+                        AttributesCache.class,
                         Builder.class,
                         MatchDateTimeRange.class,
                         MatchPersonName.class)
@@ -93,6 +93,13 @@ public class StudyQueryTest {
     private static final QueryParam COMBINED_DATE_TIME = queryParam(false, true);
     private static final QueryParam COMBINED_DATE_TIME_MATCH_UNKNOWN = queryParam(true, true);
 
+    private static QueryParam paged(int pageSize, int maxNumberOfMatches) {
+        QueryParam queryParam = queryParam(true, false);
+        queryParam.setPageSize(pageSize);
+        queryParam.setMaxNumberOfMatches(maxNumberOfMatches);
+        return queryParam;
+    }
+
     private static IDWithIssuer[] pids(String id) {
         return new IDWithIssuer[] { new IDWithIssuer(id, ISSUER) };
     }
@@ -111,6 +118,8 @@ public class StudyQueryTest {
                         StudyQueryImpl.class,
                         SeriesQueryImpl.class,
                         InstanceQueryImpl.class,
+                        ParentAttributes.class,
+                        AttributesCache.class,
                         Builder.class,
                         MatchDateTimeRange.class,
                         MatchPersonName.class,
@@ -153,6 +162,32 @@ public class StudyQueryTest {
         query.close();
     }
 
+    @Test
+    public void testPaged() throws Exception {
+        query.findStudies(pids("MODS_IN_STUDY"), modalitiesInStudy("PR"), paged(1, 0));
+        assertEquals(3, countMatches(query));
+        assertFalse(query.isMaxNumberOfMatchesExceeded());
+        query.close();
+    }
+
+    @Test
+    public void testMaxNumberOfMatches() throws Exception {
+        QueryParam queryParam = queryParam(true, false);
+        queryParam.setMaxNumberOfMatches(2);
+        query.findStudies(pids("MODS_IN_STUDY"), modalitiesInStudy("PR"), queryParam);
+        assertEquals(2, countMatches(query));
+        assertTrue(query.isMaxNumberOfMatchesExceeded());
+        query.close();
+    }
+
+    @Test
+    public void testPagedMaxNumberOfMatches() throws Exception {
+        query.findStudies(pids("MODS_IN_STUDY"), modalitiesInStudy("PR"), paged(2, 2));
+        assertEquals(2, countMatches(query));
+        assertTrue(query.isMaxNumberOfMatchesExceeded());
+        query.close();
+    }
+
     @Test
     public void testByDateTime() throws Exception {
         query.findStudies(pids("RANGE-MATCHING"),
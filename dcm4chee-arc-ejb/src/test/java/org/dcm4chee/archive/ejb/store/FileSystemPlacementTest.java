@@ -0,0 +1,149 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.ejb.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.dcm4chee.archive.persistence.Availability;
+import org.dcm4chee.archive.persistence.FileSystem;
+import org.dcm4chee.archive.persistence.FileSystemStatus;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+public class FileSystemPlacementTest {
+
+    private static final String GROUP_ID = "TEST";
+
+    @After
+    public void tearDown() {
+        FileSystemPlacement.setPolicy(FileSystemPlacement.Policy.ROUND_ROBIN);
+        FileSystemPlacement.invalidateAll();
+    }
+
+    @Test
+    public void testRoundRobin() throws Exception {
+        List<FileSystem> fsList = fileSystems(1, 2, 3);
+        FileSystemPlacement.register(GROUP_ID, fsList);
+        Set<FileSystem> selected = new HashSet<FileSystem>();
+        for (int i = 0; i < 3; i++)
+            selected.add(FileSystemPlacement.select(GROUP_ID));
+        assertEquals(3, selected.size());
+    }
+
+    @Test
+    public void testLeastRecentlyWritten() throws Exception {
+        FileSystemPlacement.setPolicy(
+                FileSystemPlacement.Policy.LEAST_RECENTLY_WRITTEN);
+        List<FileSystem> fsList = fileSystems(11, 12, 13);
+        FileSystemPlacement.register(GROUP_ID, fsList);
+        FileSystemPlacement.written(fsList.get(0));
+        FileSystemPlacement.written(fsList.get(2));
+        for (int i = 0; i < 3; i++)
+            assertSame(fsList.get(1), FileSystemPlacement.select(GROUP_ID));
+        FileSystemPlacement.written(fsList.get(1));
+        assertSame(fsList.get(0), FileSystemPlacement.select(GROUP_ID));
+    }
+
+    @Test
+    public void testMostFreeSpace() throws Exception {
+        FileSystemPlacement.setPolicy(FileSystemPlacement.Policy.MOST_FREE_SPACE);
+        List<FileSystem> fsList = fileSystems(21, 22, 23);
+        FileSystemPlacement.setUsableSpace(21, 1000L);
+        FileSystemPlacement.setUsableSpace(22, 3000L);
+        FileSystemPlacement.setUsableSpace(23, 2000L);
+        FileSystemPlacement.register(GROUP_ID, fsList);
+        assertSame(fsList.get(1), FileSystemPlacement.select(GROUP_ID));
+        FileSystemPlacement.setUsableSpace(22, 500L);
+        assertSame(fsList.get(2), FileSystemPlacement.select(GROUP_ID));
+    }
+
+    @Test
+    public void testRegisterKeepsUnchangedGroup() throws Exception {
+        FileSystemPlacement.setPolicy(
+                FileSystemPlacement.Policy.LEAST_RECENTLY_WRITTEN);
+        List<FileSystem> fsList = fileSystems(31, 32);
+        FileSystemPlacement.register(GROUP_ID, fsList);
+        FileSystemPlacement.written(fsList.get(0));
+        List<FileSystem> reloaded = fileSystems(31, 32);
+        FileSystemPlacement.register(GROUP_ID, reloaded);
+        assertSame(reloaded.get(1), FileSystemPlacement.select(GROUP_ID));
+        assertSame(reloaded.get(1), FileSystemPlacement.select(GROUP_ID));
+    }
+
+    @Test
+    public void testRegisterChangedGroup() throws Exception {
+        FileSystemPlacement.register(GROUP_ID, fileSystems(41, 42));
+        List<FileSystem> fsList = fileSystems(43);
+        FileSystemPlacement.register(GROUP_ID, fsList);
+        assertEquals(1,
+                FileSystemPlacement.getNumberOfWriteableFileSystems(GROUP_ID));
+        assertSame(fsList.get(0), FileSystemPlacement.select(GROUP_ID));
+        FileSystemPlacement.register(GROUP_ID, fileSystems());
+        assertNull(FileSystemPlacement.select(GROUP_ID));
+    }
+
+    private static List<FileSystem> fileSystems(long... pks) throws Exception {
+        Field pkField = FileSystem.class.getDeclaredField("pk");
+        pkField.setAccessible(true);
+        FileSystem[] fsArray = new FileSystem[pks.length];
+        File tmpDir = new File(System.getProperty("java.io.tmpdir"));
+        for (int i = 0; i < pks.length; i++) {
+            FileSystem fs = new FileSystem();
+            pkField.setLong(fs, pks[i]);
+            fs.setGroupID(GROUP_ID);
+            fs.setURI(new File(tmpDir, "fs" + pks[i]).toURI().toString());
+            fs.setAvailability(Availability.ONLINE);
+            fs.setStatus(FileSystemStatus.RW);
+            fsArray[i] = fs;
+        }
+        return Arrays.asList(fsArray);
+    }
+}
@@ -51,9 +51,11 @@ import javax.ejb.EJB;
 import org.dcm4che.data.Attributes;
 import org.dcm4che.data.Tag;
 import org.dcm4che.io.SAXReader;
+import org.dcm4chee.archive.ejb.query.AttributesCache;
 import org.dcm4chee.archive.ejb.query.Builder;
 import org.dcm4chee.archive.ejb.query.IANQuery;
 import org.dcm4chee.archive.ejb.query.IANQueryBean;
+import org.dcm4chee.archive.ejb.query.ParentAttributes;
 import org.dcm4chee.archive.persistence.Availability;
 import org.dcm4chee.archive.persistence.Instance;
 import org.dcm4chee.archive.persistence.PerformedProcedureStep;
@@ -81,15 +83,25 @@ public class InstanceStoreTest {
     public static JavaArchive createDeployment() {
        return ShrinkWrap.create(JavaArchive.class, "test.jar")
                 .addClasses(
+                        AttributesCache.class,
+                        BloomFilter.class,
                         Builder.class,
+                        CodeCreator.class,
+                        CodeCreatorBean.class,
                         CodeFactory.class,
                         Entity.class,
                         EntityAlreadyExistsException.class,
+                        EntityPkCache.class,
+                        FileSystemPlacement.class,
                         IANQuery.class,
                         IANQueryBean.class,
                         InstanceStore.class,
                         InstanceStoreBean.class,
+                        InstanceUIDFilter.class,
+                        IssuerCreator.class,
+                        IssuerCreatorBean.class,
                         IssuerFactory.class,
+                        ParentAttributes.class,
                         PatientFactory.class,
                         NonUniquePatientException.class,
                         PatientMismatchException.class,
@@ -108,7 +120,8 @@ public class InstanceStoreTest {
                 .addAsResource("mpps-set.xml")
                 .addAsResource("ct-1.xml")
                 .addAsResource("ct-2.xml")
-                .addAsResource("pr-1.xml");
+                .addAsResource("pr-1.xml")
+                .addAsResource("ko-reject.xml");
     }
 
     @EJB
@@ -120,6 +133,9 @@ public class InstanceStoreTest {
     @EJB
     private InstanceStore instanceStore;
 
+    @EJB
+    private InstanceStore instanceStore2;
+
     @After
     public void clearDB() {
         removePatient.removePatient("TEST-20110607", "DCM4CHEE_TESTDATA");
@@ -185,6 +201,55 @@ public class InstanceStoreTest {
         assertEquals(Availability.NEARLINE, study.getAvailability());
   }
 
+    @Test
+    public void interleavedStoreTest() throws Exception {
+        StoreParam storeParam = StoreParamFactory.create();
+        Instance ct1 = instanceStore.newInstance(SOURCE_AET,
+                SAXReader.parse("resource:ct-1.xml"), new Attributes(),
+                Availability.ONLINE, storeParam);
+        Instance pr1 = instanceStore2.newInstance(SOURCE_AET,
+                SAXReader.parse("resource:pr-1.xml"), new Attributes(),
+                Availability.ONLINE, storeParam);
+        Instance ct2 = instanceStore.newInstance(SOURCE_AET,
+                SAXReader.parse("resource:ct-2.xml"), new Attributes(),
+                Availability.ONLINE, storeParam);
+        instanceStore.close();
+        instanceStore2.close();
+        Series ctSeries = ct2.getSeries();
+        Study study = ctSeries.getStudy();
+        assertEquals(ctSeries, ct1.getSeries());
+        assertEquals(study, pr1.getSeries().getStudy());
+        assertEquals(2, ctSeries.getNumberOfSeriesRelatedInstances());
+        assertEquals(2, study.getNumberOfStudyRelatedSeries());
+        assertEquals(3, study.getNumberOfStudyRelatedInstances());
+    }
+
+    @Test
+    public void rejectTest() throws Exception {
+        StoreParam storeParam = StoreParamFactory.create();
+        storeParam.setRejectionNotes(Arrays.asList(
+                new RejectionNote("113001", "DCM", null, "Rejected for Quality Reasons")
+                        .addAction(RejectionNote.Action.HIDE_REJECTED_INSTANCES)));
+        Instance ct1 = instanceStore.newInstance(SOURCE_AET,
+                SAXReader.parse("resource:ct-1.xml"), new Attributes(),
+                Availability.ONLINE, storeParam);
+        instanceStore.newInstance(SOURCE_AET,
+                SAXReader.parse("resource:ct-2.xml"), new Attributes(),
+                Availability.ONLINE, storeParam);
+        instanceStore.newInstance(SOURCE_AET,
+                SAXReader.parse("resource:pr-1.xml"), new Attributes(),
+                Availability.ONLINE, storeParam);
+        instanceStore.newInstance(SOURCE_AET,
+                SAXReader.parse("resource:ko-reject.xml"), new Attributes(),
+                Availability.ONLINE, storeParam);
+        instanceStore.close();
+        Series ctSeries = ct1.getSeries();
+        Study study = ctSeries.getStudy();
+        assertEquals(1, ctSeries.getNumberOfSeriesRelatedInstances());
+        assertEquals(3, study.getNumberOfStudyRelatedSeries());
+        assertEquals(3, study.getNumberOfStudyRelatedInstances());
+    }
+
     private Object[] sort(Object[] a) {
         Arrays.sort(a);
         return a;
@@ -0,0 +1,107 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.ejb.store;
+
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import javax.persistence.NoResultException;
+import javax.persistence.NonUniqueResultException;
+
+import org.dcm4chee.archive.persistence.Issuer;
+import org.dcm4chee.archive.persistence.Patient;
+import org.junit.Test;
+
+/**
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+public class PatientFactoryTest {
+
+    private static final String UID = "1.2.40.0.13.1.1.99";
+
+    private static Patient patient(Issuer issuer) {
+        Patient patient = new Patient();
+        patient.setIssuerOfPatientID(issuer);
+        return patient;
+    }
+
+    private static ArrayList<Patient> list(Patient... patients) {
+        return new ArrayList<Patient>(Arrays.asList(patients));
+    }
+
+    @Test
+    public void testSelectByPartialIssuerEntityID() {
+        Patient other = patient(new Issuer("B", null, null));
+        Patient match = patient(new Issuer("A", null, null));
+        assertSame(match, PatientFactory.selectPatient(list(other, match),
+                new Issuer("A", UID, "ISO")));
+    }
+
+    @Test
+    public void testSelectByPartialIssuerEntityUID() {
+        Patient other = patient(new Issuer("B", null, null));
+        Patient match = patient(new Issuer(null, UID, "ISO"));
+        assertSame(match, PatientFactory.selectPatient(list(other, match),
+                new Issuer("A", UID, "ISO")));
+    }
+
+    @Test
+    public void testSelectPatientWithoutIssuer() {
+        Patient other = patient(new Issuer("B", null, null));
+        Patient noIssuer = patient(null);
+        assertSame(noIssuer, PatientFactory.selectPatient(
+                list(other, noIssuer), new Issuer("A", null, null)));
+    }
+
+    @Test(expected = NoResultException.class)
+    public void testSelectNoMatchingIssuer() {
+        PatientFactory.selectPatient(
+                list(patient(new Issuer(null, UID, "ISO"))),
+                new Issuer("A", UID, "DNS"));
+    }
+
+    @Test(expected = NonUniqueResultException.class)
+    public void testSelectNonUniqueWithoutIssuer() {
+        PatientFactory.selectPatient(
+                list(patient(null), patient(null)),
+                new Issuer("A", null, null));
+    }
+}
@@ -49,20 +49,59 @@ import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
 import javax.persistence.PrePersist;
 import javax.persistence.Table;
 
+import org.hibernate.annotations.Index;
+
 /**
  * @author Damien Evans <damien.daddy@gmail.com>
  * @author Justin Falk <jfalkmu@gmail.com>
  * @author Gunter Zeilinger <gunterze@gmail.com>
  */
+@NamedQueries({
+@NamedQuery(
+    name="FileRef.classifyDuplicate",
+    query="SELECT COUNT(f), " +
+          "SUM(CASE WHEN f.digest = ?2 THEN 1 ELSE 0 END), " +
+          "SUM(CASE WHEN fs.groupID = ?3 THEN 1 ELSE 0 END), " +
+          "SUM(CASE WHEN fs = ?4 AND f.filePath = ?5 " +
+                   "AND f.containerOffset = ?6 THEN 1 ELSE 0 END) " +
+          "FROM FileRef f LEFT JOIN f.fileSystem fs " +
+          "WHERE f.instance = ?1"),
+@NamedQuery(
+    name="FileRef.findContainerEntries",
+    query="SELECT f.pk, f.containerOffset, f.fileSize, rc.pk " +
+          "FROM FileRef f JOIN f.instance i LEFT JOIN i.rejectionCode rc " +
+          "WHERE f.fileSystem.pk = ?1 AND f.filePath = ?2 " +
+          "ORDER BY f.containerOffset"),
+@NamedQuery(
+    name="FileRef.relocateContainerEntry",
+    query="UPDATE FileRef f SET f.filePath = ?1, f.containerOffset = ?2 " +
+          "WHERE f.pk = ?3"),
+@NamedQuery(
+    name="FileRef.deleteByPks",
+    query="DELETE FROM FileRef f WHERE f.pk IN (?1)")
+})
 @Entity
 @Table(name = "file_ref")
+@org.hibernate.annotations.Table(appliesTo = "file_ref", 
+    indexes = { @Index(name = "file_inst_digest_idx", 
+        columnNames = { "instance_fk", "file_digest" } ) } )
 public class FileRef implements Serializable {
 
     private static final long serialVersionUID = 1735835006678974580L;
 
+    public static final String CLASSIFY_DUPLICATE =
+            "FileRef.classifyDuplicate";
+    public static final String FIND_CONTAINER_ENTRIES =
+            "FileRef.findContainerEntries";
+    public static final String RELOCATE_CONTAINER_ENTRY =
+            "FileRef.relocateContainerEntry";
+    public static final String DELETE_BY_PKS = "FileRef.deleteByPks";
+
     @Id
     @GeneratedValue
     @Column(name = "pk")
@@ -73,9 +112,16 @@ public class FileRef implements Serializable {
     private Date createdTime;
 
     @Basic(optional = false)
-    @Column(name = "filepath", updatable = false)
+    @Column(name = "filepath")
     private String filePath;
 
+    // existing databases require: ALTER TABLE file_ref
+    // ADD container_offset BIGINT DEFAULT -1 NOT NULL
+    // (NUMBER(19,0) instead of BIGINT on Oracle)
+    @Basic(optional = false)
+    @Column(name = "container_offset")
+    private long containerOffset = -1L;
+
     @Basic(optional = false)
     @Column(name = "file_tsuid", updatable = false)
     private String transferSyntaxUID;
@@ -107,6 +153,12 @@ public class FileRef implements Serializable {
         this.digest = digest;
     }
 
+    public FileRef(FileSystem fileSystem, String filePath, long containerOffset,
+            String transferSyntaxUID, long fileSize, String digest) {
+        this(fileSystem, filePath, transferSyntaxUID, fileSize, digest);
+        this.containerOffset = containerOffset;
+    }
+
     @PrePersist
     public void onPrePersist() {
         Date now = new Date();
@@ -125,6 +177,18 @@ public class FileRef implements Serializable {
         return filePath;
     }
 
+    /**
+     * Returns the offset of the object in the container file at
+     * {@link #getFilePath()}, or -1 if the object is stored in its own file.
+     */
+    public long getContainerOffset() {
+        return containerOffset;
+    }
+
+    public boolean isContainerEntry() {
+        return containerOffset >= 0;
+    }
+
     public String getTransferSyntaxUID() {
         return transferSyntaxUID;
     }
@@ -153,6 +217,7 @@ public class FileRef implements Serializable {
     public String toString() {
         return "File[pk=" + pk
                 + ", path=" + filePath
+                + (containerOffset >= 0 ? "#" + containerOffset : "")
                 + ", tsuid=" + transferSyntaxUID
                 + ", size=" + fileSize
                 + "]";
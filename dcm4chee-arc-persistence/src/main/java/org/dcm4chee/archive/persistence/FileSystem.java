@@ -62,6 +62,9 @@ import javax.persistence.Table;
 @Entity
 @Table(name = "filesystem")
 @NamedQueries({
+@NamedQuery(
+    name = "FileSystem.findAll",
+    query = "SELECT fs FROM FileSystem fs"),
 @NamedQuery(
     name = "FileSystem.findByGroupID",
     query = "SELECT fs FROM FileSystem fs WHERE fs.groupID = ?1"),
@@ -76,6 +79,7 @@ public class FileSystem implements Serializable {
 
     private static final long serialVersionUID = -5237294062957988389L;
 
+    public static final String FIND_ALL = "FileSystem.findAll";
     public static final String FIND_BY_GROUP_ID = "FileSystem.findByGroupID";
     public static final String FIND_BY_GROUP_ID_AND_STATUS = "FileSystem.findByGroupIDAndStatus";
     public static final String GET_GROUP_IDS = "FileSystem.getGroupIDs";
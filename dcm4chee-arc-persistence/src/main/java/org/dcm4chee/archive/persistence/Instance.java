@@ -78,7 +78,15 @@ import org.hibernate.annotations.Index;
     query="SELECT i FROM Instance i WHERE i.sopInstanceUID = ?1 AND i.replaced = false"),
 @NamedQuery(
     name="Instance.findBySeriesInstanceUID",
-    query="SELECT i FROM Instance i WHERE i.series.seriesInstanceUID = ?1 AND i.replaced = false")
+    query="SELECT i FROM Instance i WHERE i.series.seriesInstanceUID = ?1 AND i.replaced = false"),
+@NamedQuery(
+    name="Instance.findRejectionStateBySOPInstanceUIDs",
+    query="SELECT i.pk, i.sopInstanceUID, i.sopClassUID, cn.pk, rc.pk " +
+          "FROM Instance i LEFT JOIN i.conceptNameCode cn LEFT JOIN i.rejectionCode rc " +
+          "WHERE i.series = ?1 AND i.replaced = false AND i.sopInstanceUID IN (?2)"),
+@NamedQuery(
+    name="Instance.setRejectionCode",
+    query="UPDATE Instance i SET i.rejectionCode = ?1 WHERE i.pk IN (?2)")
 })
 @Entity
 @Table(name = "instance")
@@ -90,6 +98,10 @@ public class Instance implements Serializable {
             "Instance.findBySOPInstanceUID";
     public static final String FIND_BY_SERIES_INSTANCE_UID =
             "Instance.findBySeriesInstanceUID";
+    public static final String FIND_REJECTION_STATE_BY_SOP_INSTANCE_UIDS =
+            "Instance.findRejectionStateBySOPInstanceUIDs";
+    public static final String SET_REJECTION_CODE =
+            "Instance.setRejectionCode";
 
     @Id
     @GeneratedValue
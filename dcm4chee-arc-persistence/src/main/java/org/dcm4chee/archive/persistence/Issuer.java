@@ -57,6 +57,9 @@ import org.hibernate.annotations.Index;
  * @author Michael Backhaus <michael.backhaus@agfa.com>
  */
 @NamedQueries({
+@NamedQuery(
+    name="Issuer.findAll",
+    query="SELECT i FROM Issuer i"),
 @NamedQuery(
     name="Issuer.findByEntityID",
     query="SELECT i FROM Issuer i WHERE i.entityID = ?1"),
@@ -78,6 +81,8 @@ public class Issuer implements Serializable {
 
     private static final long serialVersionUID = -5050458184841995777L;
 
+    public static final String FIND_ALL = "Issuer.findAll";
+
     public static final String FIND_BY_ENTITY_ID = "Issuer.findByEntityID";
 
     public static final String FIND_BY_ENTITY_UID = "Issuer.findByEntityUID";
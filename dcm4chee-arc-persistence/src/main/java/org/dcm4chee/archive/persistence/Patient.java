@@ -78,10 +78,21 @@ import org.hibernate.annotations.Index;
 @NamedQuery(
     name="Patient.findByPatientIDWithIssuer",
     query="SELECT p FROM Patient p " +
-          "WHERE p.patientID = ?1 AND p.issuerOfPatientID = ?2")
+          "WHERE p.patientID = ?1 AND p.issuerOfPatientID = ?2"),
+@NamedQuery(
+    name="Patient.findWithDirtyInheritedAttributes",
+    query="SELECT p.pk, p.attributesVersion FROM Patient p " +
+          "WHERE p.inheritedDirty = true AND p.pk > ?1 ORDER BY p.pk"),
+@NamedQuery(
+    name="Patient.clearInheritedDirty",
+    query="UPDATE Patient p SET p.inheritedDirty = false " +
+          "WHERE p.pk = ?1 AND p.attributesVersion = ?2")
 })
 @Entity
 @Table(name = "patient")
+@org.hibernate.annotations.Table(appliesTo = "patient", 
+    indexes = { @Index(name = "pat_id_issuer_idx", 
+        columnNames = { "pat_id", "pat_id_issuer_fk" } ) } )
 public class Patient implements Serializable {
 
     private static final long serialVersionUID = 6430339764844147679L;
@@ -92,6 +103,12 @@ public class Patient implements Serializable {
     public static final String FIND_BY_PATIENT_ID_WITH_ISSUER =
             "Patient.findByPatientIDWithIssuer";
 
+    public static final String FIND_WITH_DIRTY_INHERITED_ATTRIBUTES =
+            "Patient.findWithDirtyInheritedAttributes";
+
+    public static final String CLEAR_INHERITED_DIRTY =
+            "Patient.clearInheritedDirty";
+
     @Id
     @GeneratedValue
     @Column(name = "pk")
@@ -105,6 +122,18 @@ public class Patient implements Serializable {
     @Column(name = "updated_time")
     private Date updatedTime;
 
+    @Basic(optional = false)
+    @Column(name = "attrs_version")
+    private int attributesVersion;
+
+    /**
+     * Indicates that the inherited attributes of its Series are outdated.
+     */
+    @Basic(optional = false)
+    @Column(name = "inherited_dirty")
+    @Index(name="pat_inh_dirty_idx")
+    private boolean inheritedDirty;
+
     @Basic(optional = false)
     @Column(name = "pat_id")
     @Index(name="pat_id_idx")
@@ -222,6 +251,19 @@ public class Patient implements Serializable {
         return updatedTime;
     }
 
+    /**
+     * Returns the number of updates of the encoded attributes, which -
+     * unlike the updated time - differs also for updates within the
+     * precision of the time stamp.
+     */
+    public int getAttributesVersion() {
+        return attributesVersion;
+    }
+
+    public boolean isInheritedDirty() {
+        return inheritedDirty;
+    }
+
     @Index(name="patient_id_idx")
     public String getPatientID() {
         return patientID;
@@ -332,7 +374,9 @@ public class Patient implements Serializable {
         patientCustomAttribute3 =
             AttributeFilter.selectStringValue(attrs, filter.getCustomAttribute3(), "*");
 
+        inheritedDirty = encodedAttributes != null;
         encodedAttributes = Utils.encodeAttributes(
                 cachedAttributes = new Attributes(attrs, filter.getSelection()));
+        attributesVersion++;
     }
 }
@@ -95,6 +95,41 @@ import org.hibernate.annotations.Index;
                  "s.study.encodedAttributes, " +
                  "s.study.patient.encodedAttributes " +
           "FROM Series s WHERE s.pk = ?1"),
+@NamedQuery(
+    name="Series.attributesToInherit",
+    query="SELECT s.encodedAttributes, " +
+                 "st.encodedAttributes, " +
+                 "p.encodedAttributes, " +
+                 "s.attributesVersion, " +
+                 "st.attributesVersion, " +
+                 "p.attributesVersion " +
+          "FROM Series s JOIN s.study st JOIN st.patient p WHERE s.pk = ?1"),
+@NamedQuery(
+    name="Series.setInheritedAttributes",
+    query="UPDATE Series s SET s.inheritedAttributes = ?1, " +
+              "s.inheritedStudyVersion = ?2, " +
+              "s.inheritedPatientVersion = ?3, " +
+              "s.inheritedDirty = false " +
+          "WHERE s.pk = ?4 AND s.attributesVersion = ?5"),
+@NamedQuery(
+    name="Series.findPksWithDirtyInheritedAttributes",
+    query="SELECT s.pk FROM Series s " +
+          "WHERE s.inheritedDirty = true AND s.pk > ?1 ORDER BY s.pk"),
+@NamedQuery(
+    name="Series.findPksOfStudy",
+    query="SELECT s.pk FROM Series s WHERE s.study.pk = ?1"),
+@NamedQuery(
+    name="Series.findPksOfPatient",
+    query="SELECT s.pk FROM Series s WHERE s.study.patient.pk = ?1"),
+@NamedQuery(
+    name="Series.findDirty",
+    query="SELECT s.pk, s.study.pk FROM Series s " +
+          "WHERE s.dirty = true AND s.pk > ?1 ORDER BY s.pk"),
+@NamedQuery(
+    name="Series.addNumberOfInstances",
+    query="UPDATE Series s " +
+          "SET s.numberOfSeriesRelatedInstances = s.numberOfSeriesRelatedInstances + ?1 " +
+          "WHERE s = ?2"),
 @NamedQuery(
     name="Series.retrieveAETs",
     query="SELECT DISTINCT(i.retrieveAETs) FROM Instance i WHERE i.series = ?1 AND i.replaced = false"),
@@ -106,6 +141,7 @@ import org.hibernate.annotations.Index;
     query="SELECT MAX(i.availability) FROM Instance i WHERE i.series = ?1 AND i.replaced = false")
 })
 @Entity
+@org.hibernate.annotations.Entity(dynamicUpdate = true)
 @Table(name = "series")
 public class Series implements Serializable {
 
@@ -114,6 +150,14 @@ public class Series implements Serializable {
     public static final String FIND_BY_SERIES_INSTANCE_UID = "Series.findBySeriesInstanceUID";
     public static final String ENCODED_ATTRIBUTES = "Series.encodedAttributes";
     public static final String ENCODED_ATTRIBUTES2 = "Series.encodedAttributes2";
+    public static final String ATTRIBUTES_TO_INHERIT = "Series.attributesToInherit";
+    public static final String SET_INHERITED_ATTRIBUTES = "Series.setInheritedAttributes";
+    public static final String FIND_PKS_WITH_DIRTY_INHERITED_ATTRIBUTES =
+            "Series.findPksWithDirtyInheritedAttributes";
+    public static final String FIND_PKS_OF_STUDY = "Series.findPksOfStudy";
+    public static final String FIND_PKS_OF_PATIENT = "Series.findPksOfPatient";
+    public static final String FIND_DIRTY = "Series.findDirty";
+    public static final String ADD_NUMBER_OF_INSTANCES = "Series.addNumberOfInstances";
     public static final String RETRIEVE_AETS = "Series.retrieveAETs";
     public static final String EXTERNAL_RETRIEVE_AET = "Series.externalRetrieveAET";
     public static final String AVAILABILITY = "Series.availability";
@@ -131,6 +175,10 @@ public class Series implements Serializable {
     @Column(name = "updated_time")
     private Date updatedTime;
 
+    @Basic(optional = false)
+    @Column(name = "attrs_version")
+    private int attributesVersion;
+
     @Basic(optional = false)
     @Column(name = "series_iuid", updatable = false)
     @Index(name="series_iuid_idx")
@@ -260,6 +308,29 @@ public class Series implements Serializable {
     @Column(name = "series_attrs")
     private byte[] encodedAttributes;
 
+    /**
+     * Patient, Study and Series attributes merged into one blob, maintained
+     * asynchronously; {@code null} if not yet calculated. Outdated, if the
+     * attributes versions of Study and Patient differ from the versions it
+     * was merged from.
+     */
+    @Basic(optional = true)
+    @Column(name = "inherited_attrs")
+    private byte[] inheritedAttributes;
+
+    @Basic(optional = false)
+    @Column(name = "inherited_study_version")
+    private int inheritedStudyVersion;
+
+    @Basic(optional = false)
+    @Column(name = "inherited_pat_version")
+    private int inheritedPatientVersion;
+
+    @Basic(optional = false)
+    @Column(name = "inherited_dirty")
+    @Index(name="series_inh_dirty_idx")
+    private boolean inheritedDirty;
+
     @Transient
     private Attributes cachedAttributes;
 
@@ -320,6 +391,15 @@ public class Series implements Serializable {
         return updatedTime;
     }
 
+    /**
+     * Returns the number of updates of the encoded attributes, which -
+     * unlike the updated time - differs also for updates within the
+     * precision of the time stamp.
+     */
+    public int getAttributesVersion() {
+        return attributesVersion;
+    }
+
     public String getSeriesInstanceUID() {
         return seriesInstanceUID;
     }
@@ -460,6 +540,22 @@ public class Series implements Serializable {
         return encodedAttributes;
     }
 
+    public byte[] getInheritedAttributes() {
+        return inheritedAttributes;
+    }
+
+    public int getInheritedStudyVersion() {
+        return inheritedStudyVersion;
+    }
+
+    public int getInheritedPatientVersion() {
+        return inheritedPatientVersion;
+    }
+
+    public boolean isInheritedDirty() {
+        return inheritedDirty;
+    }
+
     public Code getInstitutionCode() {
         return institutionCode;
     }
@@ -546,6 +642,8 @@ public class Series implements Serializable {
 
         encodedAttributes = Utils.encodeAttributes(
                 cachedAttributes = new Attributes(attrs, filter.getSelection()));
-        
+        attributesVersion++;
+        inheritedAttributes = null;
+        inheritedDirty = true;
     }
 }
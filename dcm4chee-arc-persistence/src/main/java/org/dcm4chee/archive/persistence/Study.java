@@ -79,6 +79,9 @@ import org.hibernate.annotations.Index;
 @NamedQuery(
     name="Study.findByStudyInstanceUID",
     query="SELECT s FROM Study s WHERE s.studyInstanceUID = ?1"),
+@NamedQuery(
+    name="Study.findPksAfter",
+    query="SELECT s.pk FROM Study s WHERE s.pk > ?1 ORDER BY s.pk"),
 @NamedQuery(
     name="Study.modalitiesInStudy",
     query="SELECT DISTINCT(s.modality) FROM Series s WHERE s.study = ?1"),
@@ -91,6 +94,12 @@ import org.hibernate.annotations.Index;
 @NamedQuery(
     name="Study.countRelatedInstances",
     query="SELECT SUM(s.numberOfSeriesRelatedInstances) FROM Series s WHERE s.study = ?1"),
+@NamedQuery(
+    name="Study.addNumberOfInstances",
+    query="UPDATE Study s " +
+          "SET s.numberOfStudyRelatedInstances = s.numberOfStudyRelatedInstances + ?1, " +
+              "s.numberOfStudyRelatedSeries = s.numberOfStudyRelatedSeries + ?2 " +
+          "WHERE s = ?3"),
 @NamedQuery(
     name="Study.retrieveAETs",
     query="SELECT DISTINCT(s.retrieveAETs) FROM Series s WHERE s.study = ?1"),
@@ -99,22 +108,36 @@ import org.hibernate.annotations.Index;
     query="SELECT DISTINCT(s.externalRetrieveAET) FROM Series s WHERE s.study = ?1"),
 @NamedQuery(
     name="Study.availability",
-    query="SELECT MAX(s.availability) FROM Series s WHERE s.study = ?1")
+    query="SELECT MAX(s.availability) FROM Series s WHERE s.study = ?1"),
+@NamedQuery(
+    name="Study.findWithDirtyInheritedAttributes",
+    query="SELECT st.pk, st.attributesVersion FROM Study st " +
+          "WHERE st.inheritedDirty = true AND st.pk > ?1 ORDER BY st.pk"),
+@NamedQuery(
+    name="Study.clearInheritedDirty",
+    query="UPDATE Study st SET st.inheritedDirty = false " +
+          "WHERE st.pk = ?1 AND st.attributesVersion = ?2")
 })
 @Entity
+@org.hibernate.annotations.Entity(dynamicUpdate = true)
 @Table(name = "study")
 public class Study implements Serializable {
 
     private static final long serialVersionUID = -6358525535057418771L;
 
     public static final String FIND_BY_STUDY_INSTANCE_UID = "Study.findByStudyInstanceUID";
+    public static final String FIND_PKS_AFTER = "Study.findPksAfter";
     public static final String MODALITIES_IN_STUDY = "Study.modalitiesInStudy";
     public static final String SOP_CLASSES_IN_STUDY = "Study.sopClassesInStudy";
     public static final String COUNT_RELATED_SERIES = "Study.countRelatedSeries";
     public static final String COUNT_RELATED_INSTANCES = "Study.countRelatedInstances";
+    public static final String ADD_NUMBER_OF_INSTANCES = "Study.addNumberOfInstances";
     public static final String RETRIEVE_AETS = "Study.retrieveAETs";
     public static final String EXTERNAL_RETRIEVE_AET = "Study.externalRetrieveAET";
     public static final String AVAILABILITY = "Study.availability";
+    public static final String FIND_WITH_DIRTY_INHERITED_ATTRIBUTES =
+            "Study.findWithDirtyInheritedAttributes";
+    public static final String CLEAR_INHERITED_DIRTY = "Study.clearInheritedDirty";
 
     @Id
     @GeneratedValue
@@ -129,6 +152,18 @@ public class Study implements Serializable {
     @Column(name = "updated_time")
     private Date updatedTime;
 
+    @Basic(optional = false)
+    @Column(name = "attrs_version")
+    private int attributesVersion;
+
+    /**
+     * Indicates that the inherited attributes of its Series are outdated.
+     */
+    @Basic(optional = false)
+    @Column(name = "inherited_dirty")
+    @Index(name="study_inh_dirty_idx")
+    private boolean inheritedDirty;
+
     @Basic(optional = false)
     @Column(name = "study_iuid", updatable = false)
     @Index(name="study_iuid_idx")
@@ -290,6 +325,19 @@ public class Study implements Serializable {
         return updatedTime;
     }
 
+    /**
+     * Returns the number of updates of the encoded attributes, which -
+     * unlike the updated time - differs also for updates within the
+     * precision of the time stamp.
+     */
+    public int getAttributesVersion() {
+        return attributesVersion;
+    }
+
+    public boolean isInheritedDirty() {
+        return inheritedDirty;
+    }
+
     public String getStudyInstanceUID() {
         return studyInstanceUID;
     }
@@ -426,7 +474,15 @@ public class Study implements Serializable {
         return patient;
     }
 
+    /**
+     * Also increments the attributes version, if the Study is moved to
+     * another Patient, which changes the attributes inherited by its Series.
+     */
     public void setPatient(Patient patient) {
+        if (this.patient != null && this.patient != patient) {
+            attributesVersion++;
+            inheritedDirty = true;
+        }
         this.patient = patient;
     }
 
@@ -467,7 +523,9 @@ public class Study implements Serializable {
         studyCustomAttribute3 =
             AttributeFilter.selectStringValue(attrs, filter.getCustomAttribute3(), "*");
 
+        inheritedDirty = encodedAttributes != null;
         encodedAttributes = Utils.encodeAttributes(
                 cachedAttributes = new Attributes(attrs, filter.getSelection()));
+        attributesVersion++;
     }
 }
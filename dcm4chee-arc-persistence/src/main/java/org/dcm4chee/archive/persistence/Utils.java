@@ -41,11 +41,18 @@ package org.dcm4chee.archive.persistence;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Fragments;
+import org.dcm4che.data.Sequence;
 import org.dcm4che.data.Tag;
 import org.dcm4che.data.UID;
 import org.dcm4che.data.VR;
+import org.dcm4che.io.DicomInputHandler;
 import org.dcm4che.io.DicomInputStream;
 import org.dcm4che.io.DicomOutputStream;
 import org.dcm4che.soundex.FuzzyStr;
@@ -55,25 +62,103 @@ import org.dcm4che.soundex.FuzzyStr;
  */
 public class Utils {
 
+    /*
+     * Encoded attributes start with MAGIC followed by the format byte.
+     * Blobs without this header are Explicit VR Little Endian encoded
+     * datasets written by previous versions, which start with the group
+     * number of the first attribute.
+     */
+    private static final int MAGIC = 0xFF;
+    private static final int EXPLICIT_VR_LE = 1;
+    private static final int DEFLATED_EXPLICIT_VR_LE = 2;
+    private static final int HEADER_LENGTH = 2;
+    private static final int MAX_BUFFER_SIZE = 0x10000;
+
+    private static volatile boolean deflateEncodedAttributes;
+
+    private static final ThreadLocal<ByteArrayOutputStream> buffers =
+            new ThreadLocal<ByteArrayOutputStream>();
+
+    private static final ThreadLocal<Deflater> deflaters =
+            new ThreadLocal<Deflater>() {
+
+                @Override
+                protected Deflater initialValue() {
+                    return new Deflater();
+                }
+    };
+
+    public static boolean isDeflateEncodedAttributes() {
+        return deflateEncodedAttributes;
+    }
+
+    public static void setDeflateEncodedAttributes(boolean deflate) {
+        deflateEncodedAttributes = deflate;
+    }
+
     public static byte[] encodeAttributes(Attributes attrs) {
-        ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+        boolean deflate = deflateEncodedAttributes;
+        ByteArrayOutputStream out = buffers.get();
+        if (out == null)
+            buffers.set(out = new ByteArrayOutputStream(512));
+        else
+            out.reset();
+        out.write(MAGIC);
+        out.write(deflate ? DEFLATED_EXPLICIT_VR_LE : EXPLICIT_VR_LE);
         try {
-            DicomOutputStream dos = new DicomOutputStream(out,
-                    UID.ExplicitVRLittleEndian);
-            dos.writeDataset(null, attrs);
+            if (deflate) {
+                Deflater deflater = deflaters.get();
+                deflater.reset();
+                DeflaterOutputStream dos = new DeflaterOutputStream(out, deflater);
+                new DicomOutputStream(dos, UID.ExplicitVRLittleEndian)
+                        .writeDataset(null, attrs);
+                dos.finish();
+            } else {
+                new DicomOutputStream(out, UID.ExplicitVRLittleEndian)
+                        .writeDataset(null, attrs);
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        return out.toByteArray();
+        byte[] b = out.toByteArray();
+        if (b.length > MAX_BUFFER_SIZE)
+            buffers.remove();
+        return b;
+    }
+
+    /**
+     * Returns {@code true} if the blob was encoded by a previous version or
+     * does not match the current compression setting.
+     */
+    public static boolean isReencodingRequired(byte[] b) {
+        if (b == null || b.length == 0)
+            return false;
+        if (!hasHeader(b))
+            return true;
+        return (b[1] == DEFLATED_EXPLICIT_VR_LE) != deflateEncodedAttributes;
+    }
+
+    private static boolean hasHeader(byte[] b) {
+        return b.length >= HEADER_LENGTH && (b[0] & 0xff) == MAGIC
+                && (b[1] == EXPLICIT_VR_LE || b[1] == DEFLATED_EXPLICIT_VR_LE);
+    }
+
+    private static DicomInputStream open(byte[] b) throws IOException {
+        if (!hasHeader(b))
+            return new DicomInputStream(new ByteArrayInputStream(b));
+
+        InputStream in = new ByteArrayInputStream(b, HEADER_LENGTH,
+                b.length - HEADER_LENGTH);
+        if (b[1] == DEFLATED_EXPLICIT_VR_LE)
+            in = new InflaterInputStream(in);
+        return new DicomInputStream(in, UID.ExplicitVRLittleEndian);
     }
 
     public static Attributes decodeAttributes(byte[] b) {
         if (b == null || b.length == 0)
             return new Attributes(0);
-        ByteArrayInputStream is = new ByteArrayInputStream(b);
         try {
-            DicomInputStream dis = new DicomInputStream(is);
-            return dis.readDataset(-1, -1);
+            return open(b).readDataset(-1, -1);
         } catch (IOException e) {
             throw new BlobCorruptedException(e);
         }
@@ -82,16 +167,87 @@ public class Utils {
     public static void decodeAttributes(Attributes attrs, byte[] b) {
         if (b == null || b.length == 0)
             return;
-        ByteArrayInputStream is = new ByteArrayInputStream(b);
         try {
-            DicomInputStream dis = new DicomInputStream(is);
-            dis.readFileMetaInformation();
+            DicomInputStream dis = open(b);
+            if (!hasHeader(b))
+                dis.readFileMetaInformation();
+            dis.readAttributes(attrs, -1, -1);
+        } catch (IOException e) {
+            throw new BlobCorruptedException(e);
+        }
+    }
+
+    /**
+     * Decodes only top level attributes contained in {@code selection} and
+     * the Specific Character Set, skipping the values of all other
+     * attributes without parsing them. Decodes all attributes, if
+     * {@code selection} is {@code null}.
+     */
+    public static void decodeAttributes(Attributes attrs, byte[] b,
+            Attributes selection) {
+        if (selection == null) {
+            decodeAttributes(attrs, b);
+            return;
+        }
+        if (b == null || b.length == 0)
+            return;
+        try {
+            DicomInputStream dis = open(b);
+            if (!hasHeader(b))
+                dis.readFileMetaInformation();
+            dis.setDicomInputHandler(new SelectiveInputHandler(selection));
             dis.readAttributes(attrs, -1, -1);
         } catch (IOException e) {
             throw new BlobCorruptedException(e);
         }
     }
 
+    private static class SelectiveInputHandler implements DicomInputHandler {
+
+        private final Attributes selection;
+
+        SelectiveInputHandler(Attributes selection) {
+            this.selection = selection;
+        }
+
+        @Override
+        public void readValue(DicomInputStream dis, Attributes attrs)
+                throws IOException {
+            int tag = dis.tag();
+            if (dis.level() > 0 || tag == Tag.SpecificCharacterSet
+                    || selection.contains(tag)) {
+                dis.readValue(dis, attrs);
+            } else if (dis.length() != -1) {
+                dis.skipFully(dis.length());
+            } else {
+                // values of undefined length have to be parsed to be skipped
+                dis.readValue(dis, new Attributes());
+            }
+        }
+
+        @Override
+        public void readValue(DicomInputStream dis, Sequence seq)
+                throws IOException {
+            dis.readValue(dis, seq);
+        }
+
+        @Override
+        public void readValue(DicomInputStream dis, Fragments frags)
+                throws IOException {
+            dis.readValue(dis, frags);
+        }
+
+        @Override
+        public void startDataset(DicomInputStream dis) throws IOException {
+            dis.startDataset(dis);
+        }
+
+        @Override
+        public void endDataset(DicomInputStream dis) throws IOException {
+            dis.endDataset(dis);
+        }
+    }
+
     public static void setStudyQueryAttributes(Attributes attrs,
             int numberOfStudyRelatedSeries,
             int numberOfStudyRelatedInstances,
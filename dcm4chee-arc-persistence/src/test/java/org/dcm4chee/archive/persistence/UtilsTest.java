@@ -0,0 +1,325 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2012
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.dcm4che.data.Attributes;
+import org.dcm4che.data.Sequence;
+import org.dcm4che.data.Tag;
+import org.dcm4che.data.UID;
+import org.dcm4che.data.VR;
+import org.dcm4che.io.DicomOutputStream;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * @author Gunter Zeilinger <gunterze@gmail.com>
+ */
+public class UtilsTest {
+
+    @After
+    public void tearDown() {
+        Utils.setDeflateEncodedAttributes(false);
+    }
+
+    private static Attributes attrs() {
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.PatientName, VR.PN, "Doe^John");
+        attrs.setString(Tag.PatientID, VR.LO, "PID");
+        attrs.setString(Tag.StudyInstanceUID, VR.UI, "1.2.40.0.13.1.1.99");
+        Sequence seq = attrs.newSequence(Tag.ProcedureCodeSequence, 1);
+        Attributes item = new Attributes();
+        item.setString(Tag.CodeValue, VR.SH, "CT1");
+        item.setString(Tag.CodingSchemeDesignator, VR.SH, "99DCM4CHEE");
+        seq.add(item);
+        return attrs;
+    }
+
+    /**
+     * Encodes attributes as previous versions did, without header.
+     */
+    private static byte[] encodeWithoutHeader(Attributes attrs)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new DicomOutputStream(out, UID.ExplicitVRLittleEndian)
+                .writeDataset(null, attrs);
+        return out.toByteArray();
+    }
+
+    private static void assertDecodes(Attributes expected, byte[] b) {
+        assertEquals(expected, Utils.decodeAttributes(b));
+        Attributes attrs = new Attributes();
+        Utils.decodeAttributes(attrs, b);
+        assertEquals(expected, attrs);
+    }
+
+    @Test
+    public void testDecodeWithoutHeader() throws IOException {
+        Attributes attrs = attrs();
+        byte[] b = encodeWithoutHeader(attrs);
+        assertTrue(Utils.isReencodingRequired(b));
+        assertDecodes(attrs, b);
+    }
+
+    @Test
+    public void testEncodeDecode() {
+        Attributes attrs = attrs();
+        byte[] b = Utils.encodeAttributes(attrs);
+        assertFalse(Utils.isReencodingRequired(b));
+        assertDecodes(attrs, b);
+    }
+
+    @Test
+    public void testEncodeDecodeDeflated() {
+        Attributes attrs = attrs();
+        Utils.setDeflateEncodedAttributes(true);
+        byte[] b = Utils.encodeAttributes(attrs);
+        assertFalse(Utils.isReencodingRequired(b));
+        assertDecodes(attrs, b);
+        Utils.setDeflateEncodedAttributes(false);
+        assertTrue(Utils.isReencodingRequired(b));
+        assertDecodes(attrs, b);
+    }
+
+    /**
+     * Returns Study attributes, as typically stored in the Study table.
+     */
+    private static Attributes studyAttrs() {
+        Attributes attrs = attrs();
+        attrs.setString(Tag.SpecificCharacterSet, VR.CS, "ISO_IR 100");
+        attrs.setString(Tag.StudyDate, VR.DA, "20120724");
+        attrs.setString(Tag.StudyTime, VR.TM, "101530.000000");
+        attrs.setString(Tag.AccessionNumber, VR.SH, "A12345678");
+        attrs.setString(Tag.InstitutionName, VR.LO, "General Hospital");
+        attrs.setString(Tag.ReferringPhysicianName, VR.PN, "Smith^John^^Dr.");
+        attrs.setString(Tag.StudyDescription, VR.LO, "CT THORAX WITH CONTRAST");
+        attrs.setString(Tag.PhysiciansOfRecord, VR.PN, "Smith^John^^Dr.");
+        attrs.setString(Tag.NameOfPhysiciansReadingStudy, VR.PN, "Miller^Ann^^Dr.");
+        attrs.setString(Tag.AdmittingDiagnosesDescription, VR.LO, "SUSPECTED PNEUMONIA");
+        attrs.setString(Tag.StudyID, VR.SH, "12345");
+        attrs.setString(Tag.RequestingPhysician, VR.PN, "Smith^John^^Dr.");
+        attrs.setString(Tag.RequestedProcedureDescription, VR.LO, "CT THORAX WITH CONTRAST");
+        return attrs;
+    }
+
+    @Test
+    public void testDeflatedSize() {
+        Attributes attrs = studyAttrs();
+        byte[] plain = Utils.encodeAttributes(attrs);
+        Utils.setDeflateEncodedAttributes(true);
+        byte[] deflated = Utils.encodeAttributes(attrs);
+        assertTrue("deflated: " + deflated.length + ", plain: " + plain.length,
+                deflated.length < plain.length);
+        assertDecodes(attrs, deflated);
+    }
+
+    private static Attributes selection(int... tags) {
+        Attributes selection = new Attributes(tags.length);
+        for (int tag : tags)
+            selection.setNull(tag, VR.UN);
+        return selection;
+    }
+
+    private static Attributes decodeSelected(byte[] b, int... tags) {
+        Attributes attrs = new Attributes();
+        Utils.decodeAttributes(attrs, b, selection(tags));
+        return attrs;
+    }
+
+    /**
+     * Encodes Procedure Code Sequence with undefined length, followed by
+     * Patient Name and Patient ID, as written by other encoders.
+     */
+    private static byte[] encodeUndefinedLengthSequence() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xFF);
+        out.write(1);
+        header(out, Tag.ProcedureCodeSequence, "SQ", -1);
+        itemHeader(out, 0xFFFEE000, -1);
+        header(out, Tag.CodeValue, "SH", 4);
+        out.write(bytes("CT1 "), 0, 4);
+        itemHeader(out, 0xFFFEE00D, 0);
+        itemHeader(out, 0xFFFEE0DD, 0);
+        header(out, Tag.PatientName, "PN", 8);
+        out.write(bytes("Doe^John"), 0, 8);
+        header(out, Tag.PatientID, "LO", 4);
+        out.write(bytes("PID "), 0, 4);
+        return out.toByteArray();
+    }
+
+    private static void header(ByteArrayOutputStream out, int tag, String vr,
+            int len) {
+        writeTag(out, tag);
+        out.write(vr.charAt(0));
+        out.write(vr.charAt(1));
+        if (vr.equals("SQ")) {
+            writeShort(out, 0);
+            writeInt(out, len);
+        } else {
+            writeShort(out, len);
+        }
+    }
+
+    private static void itemHeader(ByteArrayOutputStream out, int tag,
+            int len) {
+        writeTag(out, tag);
+        writeInt(out, len);
+    }
+
+    private static void writeTag(ByteArrayOutputStream out, int tag) {
+        writeShort(out, tag >>> 16);
+        writeShort(out, tag);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int v) {
+        out.write(v);
+        out.write(v >> 8);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int v) {
+        writeShort(out, v);
+        writeShort(out, v >> 16);
+    }
+
+    private static byte[] bytes(String s) {
+        try {
+            return s.getBytes("US-ASCII");
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    public void testDecodeSelected() {
+        byte[] b = Utils.encodeAttributes(attrs());
+        Attributes attrs = decodeSelected(b, Tag.PatientName, Tag.StudyInstanceUID);
+        assertEquals(2, attrs.size());
+        assertEquals("Doe^John", attrs.getString(Tag.PatientName));
+        assertEquals("1.2.40.0.13.1.1.99", attrs.getString(Tag.StudyInstanceUID));
+        assertFalse(attrs.contains(Tag.PatientID));
+        assertFalse(attrs.contains(Tag.ProcedureCodeSequence));
+    }
+
+    @Test
+    public void testDecodeSelectedSequence() {
+        byte[] b = Utils.encodeAttributes(attrs());
+        Attributes attrs = decodeSelected(b, Tag.ProcedureCodeSequence);
+        assertEquals(1, attrs.size());
+        assertEquals(attrs().getSequence(Tag.ProcedureCodeSequence),
+                attrs.getSequence(Tag.ProcedureCodeSequence));
+    }
+
+    @Test
+    public void testDecodeSelectedWithoutSelection() {
+        Attributes expected = attrs();
+        Attributes attrs = new Attributes();
+        Utils.decodeAttributes(attrs, Utils.encodeAttributes(expected), null);
+        assertEquals(expected, attrs);
+    }
+
+    @Test
+    public void testDecodeSelectedSkipsUndefinedLengthSequence() {
+        byte[] b = encodeUndefinedLengthSequence();
+        Attributes attrs = decodeSelected(b, Tag.PatientName);
+        assertEquals(1, attrs.size());
+        assertEquals("Doe^John", attrs.getString(Tag.PatientName));
+    }
+
+    @Test
+    public void testDecodeSelectedUndefinedLengthSequence() {
+        byte[] b = encodeUndefinedLengthSequence();
+        Attributes attrs = decodeSelected(b, Tag.ProcedureCodeSequence,
+                Tag.PatientID);
+        assertEquals(2, attrs.size());
+        assertEquals("CT1", attrs.getNestedDataset(Tag.ProcedureCodeSequence)
+                .getString(Tag.CodeValue));
+        assertEquals("PID", attrs.getString(Tag.PatientID));
+        assertNull(attrs.getString(Tag.PatientName));
+    }
+
+    @Test
+    public void testDecodeSelectedDeflated() {
+        Utils.setDeflateEncodedAttributes(true);
+        byte[] b = Utils.encodeAttributes(attrs());
+        Attributes attrs = decodeSelected(b, Tag.PatientID);
+        assertEquals(1, attrs.size());
+        assertEquals("PID", attrs.getString(Tag.PatientID));
+    }
+
+    @Test
+    public void testDecodeSelectedWithoutHeader() throws IOException {
+        byte[] b = encodeWithoutHeader(attrs());
+        Attributes attrs = decodeSelected(b, Tag.PatientID);
+        assertEquals(1, attrs.size());
+        assertEquals("PID", attrs.getString(Tag.PatientID));
+    }
+
+    @Test
+    public void testDecodeSelectedSpecificCharacterSet() {
+        Attributes expected = new Attributes();
+        expected.setString(Tag.SpecificCharacterSet, VR.CS, "ISO_IR 100");
+        expected.setString(Tag.PatientName, VR.PN, "B\u00fcrger^Hans");
+        expected.setString(Tag.PatientID, VR.LO, "PID");
+        byte[] b = Utils.encodeAttributes(expected);
+        Attributes attrs = decodeSelected(b, Tag.PatientName);
+        assertEquals(2, attrs.size());
+        assertEquals("ISO_IR 100", attrs.getString(Tag.SpecificCharacterSet));
+        assertEquals("B\u00fcrger^Hans", attrs.getString(Tag.PatientName));
+    }
+
+    @Test
+    public void testReencode() throws IOException {
+        Attributes attrs = attrs();
+        byte[] old = encodeWithoutHeader(attrs);
+        Utils.setDeflateEncodedAttributes(true);
+        byte[] deflated = Utils.encodeAttributes(Utils.decodeAttributes(old));
+        assertFalse(Utils.isReencodingRequired(deflated));
+        Utils.setDeflateEncodedAttributes(false);
+        byte[] inflated = Utils.encodeAttributes(Utils.decodeAttributes(deflated));
+        assertFalse(Utils.isReencodingRequired(inflated));
+        assertDecodes(attrs, inflated);
+    }
+}
@@ -44,14 +44,24 @@ import org.dcm4che.data.Attributes;
 import org.dcm4che.data.Tag;
 import org.dcm4che.io.SAXReader;
 import org.dcm4che.soundex.ESoundex;
+import org.dcm4chee.archive.ejb.query.AttributesCache;
 import org.dcm4chee.archive.ejb.query.Builder;
 import org.dcm4chee.archive.ejb.query.IANQuery;
 import org.dcm4chee.archive.ejb.query.IANQueryBean;
+import org.dcm4chee.archive.ejb.query.ParentAttributes;
+import org.dcm4chee.archive.ejb.store.BloomFilter;
+import org.dcm4chee.archive.ejb.store.CodeCreator;
+import org.dcm4chee.archive.ejb.store.CodeCreatorBean;
 import org.dcm4chee.archive.ejb.store.CodeFactory;
 import org.dcm4chee.archive.ejb.store.Entity;
 import org.dcm4chee.archive.ejb.store.EntityAlreadyExistsException;
+import org.dcm4chee.archive.ejb.store.EntityPkCache;
+import org.dcm4chee.archive.ejb.store.FileSystemPlacement;
 import org.dcm4chee.archive.ejb.store.InstanceStore;
 import org.dcm4chee.archive.ejb.store.InstanceStoreBean;
+import org.dcm4chee.archive.ejb.store.InstanceUIDFilter;
+import org.dcm4chee.archive.ejb.store.IssuerCreator;
+import org.dcm4chee.archive.ejb.store.IssuerCreatorBean;
 import org.dcm4chee.archive.ejb.store.IssuerFactory;
 import org.dcm4chee.archive.ejb.store.ModalityWorklistManager;
 import org.dcm4chee.archive.ejb.store.ModalityWorklistManagerBean;
@@ -83,15 +93,25 @@ public class InitTestData {
     private static final String SOURCE_AET = "SOURCE_AET";
     private static final String RETRIEVE_AETS = "RETRIEVE_AET";
     private static final Class<?>[] CLASSES = {
+        AttributesCache.class,
+        BloomFilter.class,
         Builder.class,
+        CodeCreator.class,
+        CodeCreatorBean.class,
         CodeFactory.class,
         Entity.class,
         EntityAlreadyExistsException.class,
+        EntityPkCache.class,
+        FileSystemPlacement.class,
         IANQuery.class,
         IANQueryBean.class,
         InstanceStore.class,
         InstanceStoreBean.class,
+        InstanceUIDFilter.class,
+        IssuerCreator.class,
+        IssuerCreatorBean.class,
         IssuerFactory.class,
+        ParentAttributes.class,
         PatientFactory.class,
         ModalityWorklistManager.class,
         ModalityWorklistManagerBean.class,